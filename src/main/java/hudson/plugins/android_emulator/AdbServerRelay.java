@@ -0,0 +1,146 @@
+package hudson.plugins.android_emulator;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes an adb server, which only listens on the loopback interface, reachable from one other machine.
+ * <p>
+ * This allows a build running on one machine to use an emulator running on a separate emulator
+ * host, by pointing its adb clients at the relay port on that host.  As the adb server gives full
+ * control of the emulator, the relay only listens on the interface through which the build machine
+ * is reached, and drops connections from any other address.
+ * </p>
+ * All of the methods here run on the emulator host.
+ */
+final class AdbServerRelay implements Runnable {
+
+    /** Relays currently running on this machine, by the port they listen on. */
+    private static final Map<Integer, AdbServerRelay> relays = new HashMap<Integer, AdbServerRelay>();
+
+    private final ServerSocket serverSocket;
+    private final int adbServerPort;
+
+    /** Addresses of the machine allowed to connect. */
+    private final List<InetAddress> clientAddresses;
+
+    private AdbServerRelay(ServerSocket serverSocket, int adbServerPort, List<InetAddress> clientAddresses) {
+        this.serverSocket = serverSocket;
+        this.adbServerPort = adbServerPort;
+        this.clientAddresses = clientAddresses;
+    }
+
+    /**
+     * Starts relaying connections from the given machine, on a newly-allocated port, to the given adb server.
+     *
+     * @param adbServerPort The local port of the adb server.
+     * @param clientHost The host name of the machine which should be able to connect.
+     * @return The port on which the relay is listening.
+     */
+    static synchronized int start(int adbServerPort, String clientHost) throws IOException {
+        final List<InetAddress> clientAddresses = Arrays.asList(InetAddress.getAllByName(clientHost));
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(getLocalAddressFor(clientAddresses.get(0)), 0));
+        AdbServerRelay relay = new AdbServerRelay(serverSocket, adbServerPort, clientAddresses);
+        final int port = relay.serverSocket.getLocalPort();
+        relays.put(port, relay);
+
+        Thread thread = new Thread(relay, "adb server relay " + port + " -> " + adbServerPort);
+        thread.setDaemon(true);
+        thread.start();
+        return port;
+    }
+
+    /**
+     * Stops accepting connections on the given relay port.
+     * Existing connections end once the adb server is shut down.
+     *
+     * @param port The port on which the relay is listening.
+     */
+    static synchronized void stop(int port) {
+        AdbServerRelay relay = relays.remove(port);
+        if (relay != null) {
+            IOUtils.closeQuietly(relay.serverSocket);
+        }
+    }
+
+    /**
+     * Determines the address of the local interface through which the given address is reached.
+     * No packets are sent; this only looks up the route.
+     */
+    private static InetAddress getLocalAddressFor(InetAddress remote) throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.connect(remote, 9);
+            InetAddress local = socket.getLocalAddress();
+            if (local == null || local.isAnyLocalAddress()) {
+                throw new IOException("No route to " + remote);
+            }
+            return local;
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            Socket client = null;
+            try {
+                client = serverSocket.accept();
+                if (!clientAddresses.contains(client.getInetAddress())) {
+                    closeQuietly(client);
+                    continue;
+                }
+                Socket server = new Socket(InetAddress.getByName("127.0.0.1"), adbServerPort);
+                pipe(client, server);
+                pipe(server, client);
+            } catch (IOException e) {
+                // Either the relay was stopped, or the adb server is gone
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /** Copies everything from one socket to the other on a new thread, closing both when done. */
+    private static void pipe(final Socket from, final Socket to) {
+        Thread thread = new Thread("adb server relay " + from.getPort() + " -> " + to.getPort()) {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    IOUtils.copy(in, out);
+                } catch (IOException ignore) {
+                } finally {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+}
@@ -14,10 +14,13 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.Hudson;
+import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Result;
+import hudson.model.StreamBuildListener;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.sdk.Tool;
+import hudson.plugins.android_emulator.util.ImagePrefetcher;
 import hudson.plugins.android_emulator.util.Utils;
 import hudson.plugins.android_emulator.util.ValidationResult;
 import hudson.remoting.Callable;
@@ -50,9 +53,20 @@ import java.io.StringWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,17 +74,46 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Logger LOGGER = Logger.getLogger(AndroidEmulator.class.getName());
+
     /** Duration by which the emulator should start being available via adb. */
     private static final int ADB_CONNECT_TIMEOUT_MS = 60 * 1000;
 
     /** Duration by which emulator booting should normally complete. */
     private static final int BOOT_COMPLETE_TIMEOUT_MS = 360 * 1000;
 
+    /**
+     * Minimum duration by which an emulator booting from a snapshot should be visible to adb;
+     * otherwise the snapshot is deemed bad.
+     */
+    private static final int SNAPSHOT_BOOT_TIMEOUT_MS = 60 * 1000;
+
     /** Interval during which killing a process should complete. */
     private static final int KILL_PROCESS_TIMEOUT_MS = 10 * 1000;
 
+    /** AVDs whose snapshots are being regenerated in the background, by node name. */
+    private static final Map<String, List<String>> regeneratingSnapshots = new HashMap<String, List<String>>();
+
+    /** AVDs being run directly by a build, rather than cloned, as "node name/AVD name". */
+    private static final Set<String> goldenAvdsInUse = new HashSet<String>();
+
+    /** Used to give each throwaway AVD clone a unique name. */
+    private static final AtomicInteger cloneCounter = new AtomicInteger();
+
+    /** Held while choosing an emulator host for a build, so that two builds can't both claim the last free one. */
+    private static final Object emulatorHostLock = new Object();
+
+    /** How long a build may wait for a free emulator host, if all of them became busy after it was dispatched. */
+    private static final long EMULATOR_HOST_WAIT_MS = 5 * 60 * 1000;
+
+    /** Maximum time to hold up emulator start-up while waiting for images to be read into the page cache. */
+    private static final int IMAGE_PREFETCH_TIMEOUT_MS = 60 * 1000;
+
     private DescriptorImpl descriptor;
 
+    /** Config hashes already calculated, by node name and matrix combination. */
+    private transient ConcurrentMap<String, CachedConfigHash> configHashes;
+
     // Config properties: AVD name
     @Exported public final String avdName;
 
@@ -88,6 +131,7 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
     @Exported public final boolean wipeData;
     @Exported public final boolean showWindow;
     @Exported public final boolean useSnapshots;
+    @Exported public final boolean tuneDevice;
 
     // Advanced properties
     @Exported public final boolean deleteAfterBuild;
@@ -95,6 +139,7 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
     @Exported public final int startupTimeout;
     @Exported public final String commandLineOptions;
     @Exported public final String executable;
+    @Exported public final String emulatorHostLabel;
 
 
     @DataBoundConstructor
@@ -102,7 +147,8 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             String screenResolution, String deviceLocale, String sdCardSize,
             HardwareProperty[] hardwareProperties, boolean wipeData, boolean showWindow,
             boolean useSnapshots, boolean deleteAfterBuild, int startupDelay, int startupTimeout,
-            String commandLineOptions, String targetAbi, String executable, String avdNameSuffix) {
+            String commandLineOptions, String targetAbi, String executable, String avdNameSuffix,
+            boolean tuneDevice, String emulatorHostLabel) {
         this.avdName = avdName;
         this.osVersion = osVersion;
         this.screenDensity = screenDensity;
@@ -120,6 +166,8 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         this.commandLineOptions = commandLineOptions;
         this.targetAbi = targetAbi;
         this.avdNameSuffix = avdNameSuffix;
+        this.tuneDevice = tuneDevice;
+        this.emulatorHostLabel = emulatorHostLabel;
     }
 
     public boolean getUseNamedEmulator() {
@@ -146,14 +194,30 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
      * @return A hash representing the emulator configuration for this instance.
      */
     public String getConfigHash(Node node, Combination combination) {
-        EnvVars envVars;
-        try {
-            envVars = node.toComputer().getEnvironment();
-        } catch (Exception e) {
-            e.printStackTrace();
+        final EnvVars envVars = EmulatorConfigIndex.getNodeEnvironment(node);
+        if (envVars == null) {
             return null;
         }
 
+        // This is called very frequently by the TaskDispatcher, so reuse earlier results where possible.
+        // They remain valid for as long as the node environment they were calculated from is cached
+        final String key = node.getNodeName() + '|' + (combination == null ? "" : combination.toString());
+        synchronized (this) {
+            if (configHashes == null) {
+                configHashes = new ConcurrentHashMap<String, CachedConfigHash>();
+            }
+        }
+        final CachedConfigHash cached = configHashes.get(key);
+        if (cached != null && cached.environment == envVars) {
+            return cached.hash;
+        }
+        final String hash = calculateConfigHash(envVars, combination);
+        configHashes.put(key, new CachedConfigHash(envVars, hash));
+        return hash;
+    }
+
+    private String calculateConfigHash(EnvVars envVars, Combination combination) {
+
         // Expand variables using the node's environment and the matrix properties, if any
         String avdName = Utils.expandVariables(envVars, combination, this.avdName);
         String osVersion = Utils.expandVariables(envVars, combination, this.osVersion);
@@ -205,10 +269,34 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         // Emulator properties
         String commandLineOptions = Utils.expandVariables(envVars, buildVars, this.commandLineOptions);
 
-        // SDK location
+        // Run the emulator on a dedicated emulator host, if one is configured
         Node node = Computer.currentComputer().getNode();
+        Launcher emulatorLauncher = launcher;
+        Computer emulatorHost = null;
+        EnvVars nodeEnvVars = envVars;
+        String emulatorHostLabel = Utils.expandVariables(envVars, buildVars, this.emulatorHostLabel);
+        if (emulatorHostLabel != null) {
+            String hash = descriptor.shouldKeepInWorkspace ? null : EmulatorConfig.getAvdName(avdName, osVersion,
+                    screenDensity, screenResolution, deviceLocale, targetAbi, avdNameSuffix);
+            Node hostNode = reserveEmulatorHost(build, emulatorHostLabel, hash, logger);
+            if (hostNode == null) {
+                log(logger, Messages.NO_EMULATOR_HOST_AVAILABLE(emulatorHostLabel));
+                build.setResult(Result.NOT_BUILT);
+                return null;
+            }
+            if (hostNode != node) {
+                log(logger, Messages.USING_EMULATOR_HOST(hostNode.getDisplayName()));
+                node = hostNode;
+                emulatorHost = hostNode.toComputer();
+                emulatorLauncher = hostNode.createLauncher(listener);
+                nodeEnvVars = emulatorHost.getEnvironment();
+            }
+        }
+        final boolean isRemote = emulatorHost != null;
+
+        // SDK location
         String androidHome = Utils.expandVariables(envVars, buildVars, descriptor.androidHome);
-        androidHome = Utils.discoverAndroidHome(launcher, node, envVars, androidHome);
+        androidHome = Utils.discoverAndroidHome(emulatorLauncher, node, nodeEnvVars, androidHome);
 
         // Despite the nice inline checks and warnings when the user is editing the config,
         // these are not binding, so the user may have saved invalid configuration.
@@ -224,7 +312,9 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
 
         // Build emulator config, ensuring that variables expand to valid SDK values
         EmulatorConfig emuConfig;
-        boolean shouldKeepInWorkspace = descriptor.shouldKeepInWorkspace && Util.fixEmptyAndTrim(avdName) == null;
+        // The workspace is on the build machine, so can't hold the AVD when using an emulator host
+        boolean shouldKeepInWorkspace = descriptor.shouldKeepInWorkspace && Util.fixEmptyAndTrim(avdName) == null
+                && !isRemote;
         final String androidSdkHome = (envVars != null && shouldKeepInWorkspace ? envVars.get("WORKSPACE") : null);
         try {
             emuConfig = EmulatorConfig.create(avdName, osVersion, screenDensity,
@@ -237,9 +327,10 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         }
 
         // Confirm that the required SDK tools are available
-        AndroidSdk androidSdk = Utils.getAndroidSdk(launcher, androidHome, androidSdkHome);
+        AndroidSdk androidSdk = Utils.getAndroidSdk(emulatorLauncher, androidHome, androidSdkHome);
         if (androidSdk == null) {
-            if (!descriptor.shouldInstallSdk) {
+            if (!descriptor.shouldInstallSdk || isRemote) {
+                // Automatic installation only happens on the build machine
                 // Couldn't find an SDK, don't want to install it, give up
                 log(logger, Messages.SDK_TOOLS_NOT_FOUND());
                 build.setResult(Result.NOT_BUILT);
@@ -249,38 +340,43 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             // Ok, let's download and install the SDK
             log(logger, Messages.INSTALLING_SDK());
             try {
-                androidSdk = SdkInstaller.install(launcher, listener, androidSdkHome);
+                androidSdk = SdkInstaller.install(emulatorLauncher, listener, androidSdkHome);
             } catch (SdkInstallationException e) {
                 log(logger, Messages.SDK_INSTALLATION_FAILED(), e);
                 build.setResult(Result.NOT_BUILT);
                 return null;
             }
         } else if (descriptor.shouldKeepInWorkspace) {
-            SdkInstaller.optOutOfSdkStatistics(launcher, listener, androidSdkHome);
+            SdkInstaller.optOutOfSdkStatistics(emulatorLauncher, listener, androidSdkHome);
         }
 
-        // Install the required SDK components for the desired platform, if necessary
-        if (descriptor.shouldInstallSdk) {
-            SdkInstaller.installDependencies(logger, launcher, androidSdk, emuConfig);
+        // Install the required SDK components for the desired platform, if necessary.
+        // Emulator hosts are shared between many builds, so are expected to be provisioned up front
+        if (descriptor.shouldInstallSdk && !isRemote) {
+            SdkInstaller.installDependencies(logger, emulatorLauncher, androidSdk, emuConfig);
         }
 
         // Ok, everything looks good.. let's go
         String displayHome = androidSdk.hasKnownRoot() ? androidSdk.getSdkRoot() : Messages.USING_PATH();
         log(logger, Messages.USING_SDK(displayHome));
 
-        return doSetUp(build, launcher, listener, androidSdk, emuConfig, expandedProperties);
+        return doSetUp(build, emulatorLauncher, listener, androidSdk, emuConfig, expandedProperties, emulatorHost);
     }
 
     private Environment doSetUp(final AbstractBuild<?, ?> build, final Launcher launcher,
             final BuildListener listener, final AndroidSdk androidSdk,
-            final EmulatorConfig emuConfig, final HardwareProperty[] hardwareProperties)
+            final EmulatorConfig emuConfig, final HardwareProperty[] hardwareProperties,
+            final Computer emulatorHost)
                 throws IOException, InterruptedException {
         final PrintStream logger = listener.getLogger();
 
-        // First ensure that emulator exists
+        // First ensure that emulator exists, with the desired hardware properties
         final boolean emulatorAlreadyExists;
         try {
-            Callable<Boolean, AndroidEmulatorException> task = emuConfig.getEmulatorCreationTask(androidSdk, listener);
+            final HardwareProperty[] avdProperties = emuConfig.isNamedEmulator() ? new HardwareProperty[0]
+                    : hardwareProperties;
+            Callable<Boolean, AndroidEmulatorException> task = emuConfig.getEmulatorCreationTask(androidSdk, avdProperties,
+                    listener);
             emulatorAlreadyExists = launcher.getChannel().call(task);
         } catch (EmulatorDiscoveryException ex) {
             log(logger, Messages.CANNOT_START_EMULATOR(ex.getMessage()));
@@ -292,16 +388,70 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             return null;
         }
 
-        // Update emulator configuration with desired hardware properties
-        if (!emuConfig.isNamedEmulator() && hardwareProperties.length != 0) {
-            Callable<Void, IOException> task = emuConfig.getEmulatorConfigTask(hardwareProperties, listener);
-            launcher.getChannel().call(task);
-        }
-
         // Write the auth token file for the emulator
         Callable<Void, IOException> authFileTask = emuConfig.getEmulatorAuthFileTask();
         launcher.getChannel().callAsync(authFileTask);
 
+        // Determine whether we need to create the first snapshot
+        SnapshotState initialSnapshotState;
+        boolean snapshotIsBad = false;
+        if (useSnapshots && androidSdk.supportsSnapshots()) {
+            boolean hasSnapshot = emuConfig.hasExistingSnapshot(launcher, androidSdk);
+            if (hasSnapshot && !launcher.getChannel().call(emuConfig.getSnapshotHealthTask())) {
+                // The snapshot previously failed to boot; cold boot until it has been regenerated
+                log(logger, Messages.SNAPSHOT_MARKED_BAD());
+                initialSnapshotState = SnapshotState.NONE;
+                snapshotIsBad = true;
+            } else if (hasSnapshot) {
+                // Boot from the existing "jenkins" snapshot
+                initialSnapshotState = SnapshotState.BOOT;
+            } else {
+                // Create an initial "jenkins" snapshot...
+                initialSnapshotState = SnapshotState.INITIALISE;
+                // ..with a clean start
+                emuConfig.setShouldWipeData();
+            }
+        } else {
+            // If snapshots are disabled or not supported, there's nothing to do
+            initialSnapshotState = SnapshotState.NONE;
+        }
+
+        // Give the build its own throwaway clone of the AVD, so that other builds with the same emulator
+        // configuration can run at the same time.  Only a build which needs to create the initial
+        // snapshot runs the AVD itself; if another build is already doing so, we cold boot a clone
+        final Computer emulatorComputer = emulatorHost == null ? Computer.currentComputer() : emulatorHost;
+        String goldenAvdLock = null;
+        if (descriptor.shouldCloneAvds && !deleteAfterBuild && !emuConfig.isClone() && !emuConfig.isWorkspaceLocal()
+                && emulatorComputer != null) {
+            final String lockKey = emulatorComputer.getName() + "/" + emuConfig.getAvdName();
+            final boolean needsGoldenAvd = initialSnapshotState == SnapshotState.INITIALISE;
+            if (needsGoldenAvd && acquireGoldenAvd(lockKey)) {
+                goldenAvdLock = lockKey;
+            } else {
+                if (needsGoldenAvd || isGoldenAvdInUse(lockKey)) {
+                    // The images may be changing underneath us, so only the pristine user data is usable
+                    initialSnapshotState = SnapshotState.NONE;
+                    emuConfig.setShouldWipeData();
+                }
+                final String cloneName = String.format("%s_clone%d", emuConfig.getAvdName(),
+                        cloneCounter.incrementAndGet());
+                try {
+                    launcher.getChannel().call(emuConfig.getAvdCloneTask(cloneName, listener));
+                } catch (IOException ex) {
+                    log(logger, Messages.AVD_CLONE_FAILED(cloneName), ex);
+                    build.setResult(Result.NOT_BUILT);
+                    return null;
+                }
+                emuConfig.setCloneName(cloneName);
+            }
+        }
+        final SnapshotState snapshotState = initialSnapshotState;
+
+        // Start reading the emulator images into the page cache while we get on with the rest of setup
+        final long prefetchStartTime = System.currentTimeMillis();
+        final Future<ImagePrefetcher.Result> prefetch = launcher.getChannel().callAsync(
+                emuConfig.getImagePrefetchTask(androidSdk, useSnapshots && androidSdk.supportsSnapshots()));
+
         // Delay start up by the configured amount of time
         final int delaySecs = startupDelay;
         if (delaySecs > 0) {
@@ -309,7 +459,21 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             Thread.sleep(delaySecs * 1000);
         }
 
-        final AndroidEmulatorContext emu = new AndroidEmulatorContext(build, launcher, listener, androidSdk);
+        final AndroidEmulatorContext emu;
+        try {
+            emu = new AndroidEmulatorContext(build, launcher, listener, androidSdk, emulatorHost);
+        } catch (IOException ex) {
+            releaseGoldenAvd(goldenAvdLock);
+            if (emuConfig.isClone()) {
+                try {
+                    launcher.getChannel().call(emuConfig.getEmulatorDeletionTask(listener));
+                } catch (Exception e) {
+                    log(logger, Messages.FAILED_TO_DELETE_AVD(e.getLocalizedMessage()));
+                }
+            }
+            throw ex;
+        }
+        emu.setGoldenAvdLock(goldenAvdLock);
 
         // We manually start the adb-server so that later commands will not have to start it,
         // allowing them to complete faster.
@@ -318,22 +482,26 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         Proc adbStart2 = emu.getToolProcStarter(Tool.ADB, "start-server").stdout(logger).stderr(logger).start();
         adbStart2.joinWithTimeout(5L, TimeUnit.SECONDS, listener);
 
-        // Determine whether we need to create the first snapshot
-        final SnapshotState snapshotState;
-        if (useSnapshots && androidSdk.supportsSnapshots()) {
-            boolean hasSnapshot = emuConfig.hasExistingSnapshot(launcher, androidSdk);
-            if (hasSnapshot) {
-                // Boot from the existing "jenkins" snapshot
-                snapshotState = SnapshotState.BOOT;
-            } else {
-                // Create an initial "jenkins" snapshot...
-                snapshotState = SnapshotState.INITIALISE;
-                // ..with a clean start
-                emuConfig.setShouldWipeData();
+        // Stage the AVD's writable images on a RAM disk, if configured.  When creating the initial
+        // snapshot, the emulator state must be persisted, so we leave the on-disk images in place
+        if (descriptor.ramDiskDirectory != null && snapshotState != SnapshotState.INITIALISE) {
+            Callable<EmulatorRamDisk.Stage, IOException> task = emuConfig.getRamDiskStagingTask(
+                    descriptor.ramDiskDirectory, descriptor.ramDiskBudget,
+                    snapshotState == SnapshotState.BOOT, listener);
+            try {
+                emuConfig.setRamDiskStage(launcher.getChannel().call(task));
+            } catch (IOException ex) {
+                log(logger, Messages.RAM_DISK_UNAVAILABLE(descriptor.ramDiskDirectory), ex);
+            }
+        }
+
+        // Wiping data means the emulator copies the entire user data image on boot; where possible,
+        // we instead replace it with a copy-on-write clone of the pristine image, which is instant.
+        // When on a RAM disk, there's no previous data to replace, so the emulator's copy is cheap
+        if (emuConfig.shouldWipeData() && emuConfig.getRamDiskStage() == null) {
+            if (launcher.getChannel().call(emuConfig.getUserDataResetTask(androidSdk, listener))) {
+                emuConfig.setUserDataReset();
             }
-        } else {
-            // If snapshots are disabled or not supported, there's nothing to do
-            snapshotState = SnapshotState.NONE;
         }
 
         // Compile complete command for starting emulator
@@ -342,6 +510,9 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
                 emu.userPort(), emu.adbPort(), emu.getEmulatorCallbackPort(),
                 ADB_CONNECT_TIMEOUT_MS / 1000);
 
+        // Let the prefetch finish, so that the emulator doesn't have to compete with it for disk I/O
+        waitForImagePrefetch(logger, prefetch, prefetchStartTime);
+
         // Start emulator process
         if (snapshotState == SnapshotState.BOOT) {
             log(logger, Messages.STARTING_EMULATOR_FROM_SNAPSHOT());
@@ -369,6 +540,7 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         // Check whether a failure was reported on stdout
         if (emulatorOutput.toString().contains("image is used by another emulator")) {
             log(logger, Messages.EMULATOR_ALREADY_IN_USE(emuConfig.getAvdName()));
+            cleanUp(emuConfig, emu);
             return null;
         }
 
@@ -379,6 +551,10 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
 
         // Wait for TCP socket to become available
         int socket = waitForSocket(launcher, emu.getEmulatorCallbackPort(), ADB_CONNECT_TIMEOUT_MS);
+        if (socket < 0 && snapshotState == SnapshotState.BOOT) {
+            return retryWithoutSnapshot(build, launcher, listener, androidSdk, emuConfig, hardwareProperties,
+                    emulatorHost, emu, ADB_CONNECT_TIMEOUT_MS);
+        }
         if (socket < 0) {
             log(logger, Messages.EMULATOR_DID_NOT_START());
             build.setResult(Result.NOT_BUILT);
@@ -395,6 +571,16 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         // indicate that any methods wanting to check the "emulator" process state should ignore it.
         boolean ignoreProcess = !launcher.isUnix() && androidSdk.getSdkToolsMajorVersion() >= 12;
 
+        // A device restored from a snapshot is already running, so adb should see it almost immediately.
+        // If it doesn't, the snapshot is probably unusable; slow machines may take longer, though
+        if (snapshotState == SnapshotState.BOOT) {
+            final int deviceTimeout = Math.max(SNAPSHOT_BOOT_TIMEOUT_MS, startupTimeout * 1000);
+            if (!waitForDevice(deviceTimeout, emu)) {
+                return retryWithoutSnapshot(build, launcher, listener, androidSdk, emuConfig, hardwareProperties,
+                        emulatorHost, emu, deviceTimeout);
+            }
+        }
+
         // Monitor device for boot completion signal
         log(logger, Messages.WAITING_FOR_BOOT_COMPLETION());
         int bootTimeout = BOOT_COMPLETE_TIMEOUT_MS;
@@ -405,6 +591,10 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             bootTimeout *= 2;
         }
         boolean bootSucceeded = waitForBootCompletion(ignoreProcess, bootTimeout, emuConfig, emu);
+        if (!bootSucceeded && snapshotState == SnapshotState.BOOT) {
+            return retryWithoutSnapshot(build, launcher, listener, androidSdk, emuConfig, hardwareProperties,
+                    emulatorHost, emu, bootTimeout);
+        }
         if (!bootSucceeded) {
             if ((System.currentTimeMillis() - bootTime) < bootTimeout) {
                 log(logger, Messages.EMULATOR_STOPPED_DURING_BOOT());
@@ -457,43 +647,66 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             proc.joinWithTimeout(adbTimeout, TimeUnit.MILLISECONDS, emu.launcher().getListener());
         }
 
+        // Apply the CI tuning profile.  This is done even when booting from a snapshot, as the snapshot
+        // may have been saved before the profile was enabled or changed, and reapplying it is harmless
+        if (tuneDevice) {
+            applyDeviceTuning(emuConfig, emu);
+        }
+
         // Initialise snapshot image, if required
         if (snapshotState == SnapshotState.INITIALISE) {
-            // In order to create a clean initial snapshot, give the system some more time to settle
-            log(logger, Messages.WAITING_INITIAL_SNAPSHOT());
-            Thread.sleep((long) (bootDuration * 0.8));
-
-            // Clear main log before creating snapshot
-            final String clearArgs = String.format("-s %s logcat -c", emu.serial());
-            ArgumentListBuilder adbCmd = emu.getToolCommand(Tool.ADB, clearArgs);
-            emu.getProcStarter(adbCmd).join();
-            final String msg = Messages.LOG_CREATING_SNAPSHOT();
-            final String logArgs = String.format("-s %s shell log -p v -t Jenkins '%s'", emu.serial(), msg);
-            adbCmd = emu.getToolCommand(Tool.ADB, logArgs);
-            emu.getProcStarter(adbCmd).join();
-
-            // Pause execution of the emulator
-            boolean stopped = emu.sendCommand("avd stop");
+            boolean stopped = pauseForSnapshot(emu, bootDuration);
             if (stopped) {
-                // Attempt snapshot generation
-                log(logger, Messages.EMULATOR_PAUSED_SNAPSHOT());
-                int creationTimeout = AndroidEmulatorContext.EMULATOR_COMMAND_TIMEOUT_MS * 4;
-                boolean success = emu.sendCommand("avd snapshot save "+ Constants.SNAPSHOT_NAME, creationTimeout);
-                if (!success) {
-                    log(logger, Messages.SNAPSHOT_CREATION_FAILED());
-                }
+                saveSnapshot(emu);
 
                 // Restart emulator execution
                 boolean restarted = emu.sendCommand("avd start");
                 if (!restarted) {
                     log(logger, Messages.EMULATOR_RESUME_FAILED());
+                    build.setResult(Result.NOT_BUILT);
                     cleanUp(emuConfig, emu, logWriter, logcatFile, logcatStream, artifactsDir);
+                    return null;
                 }
-            } else {
-                log(logger, Messages.SNAPSHOT_CREATION_FAILED());
             }
         }
 
+        // If we couldn't use the snapshot, generate a new one once the build is done with the emulator
+        final boolean needsSnapshotRegeneration = snapshotIsBad && !deleteAfterBuild;
+
+        // Make our adb server reachable from the build machine, if the emulator is running elsewhere
+        String emulatorHostName = null;
+        if (emulatorHost != null) {
+            emulatorHostName = emulatorHost.getHostName();
+            final Computer buildComputer = Computer.currentComputer();
+            final String buildHostName = buildComputer == null ? null : buildComputer.getHostName();
+            if (emulatorHostName == null || buildHostName == null) {
+                log(logger, Messages.EMULATOR_HOST_UNREACHABLE(emulatorHost.getDisplayName()));
+                build.setResult(Result.NOT_BUILT);
+                cleanUp(emuConfig, emu, logWriter, logcatFile, logcatStream, artifactsDir);
+                return null;
+            }
+            try {
+                emu.setAdbServerRelayPort(launcher.getChannel().call(new StartAdbServerRelayTask(emu.adbServerPort(),
+                        buildHostName)));
+            } catch (IOException ex) {
+                log(logger, Messages.EMULATOR_HOST_UNREACHABLE(emulatorHost.getDisplayName()), ex);
+                build.setResult(Result.NOT_BUILT);
+                cleanUp(emuConfig, emu, logWriter, logcatFile, logcatStream, artifactsDir);
+                return null;
+            }
+            log(logger, Messages.ADB_SERVER_RELAYED(emulatorHostName, emu.adbServerRelayPort()));
+        }
+        final String adbServerHost = emulatorHostName;
+        final String emulatorNodeName = emulatorHost == null ? null : emulatorHost.getName();
+
+        // Remember that this machine now has this emulator, so that future builds can be sent here.
+        // An AVD being set up for cloning is only recorded once the build is done with it
+        if (emulatorComputer != null && !deleteAfterBuild && goldenAvdLock == null
+                && !(emuConfig.isClone() && snapshotState == SnapshotState.NONE)) {
+            AvdInventory.record(emulatorComputer.getName(), emuConfig.getGoldenAvdName(),
+                    snapshotState != SnapshotState.NONE);
+        }
+
         // Done!
         final long bootCompleteTime = System.currentTimeMillis();
         log(logger, Messages.EMULATOR_IS_READY((bootCompleteTime - bootTime) / 1000));
@@ -507,7 +720,24 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
                 env.put("ANDROID_AVD_ADB_PORT", Integer.toString(emu.adbPort()));
                 env.put("ANDROID_AVD_USER_PORT", Integer.toString(emu.userPort()));
                 env.put("ANDROID_AVD_NAME", emuConfig.getAvdName());
-                env.put("ANDROID_ADB_SERVER_PORT", Integer.toString(emu.adbServerPort()));
+                if (emuConfig.isClone() || (emuConfig.getRamDiskStage() != null
+                        && emuConfig.getRamDiskStage().hasSnapshots())) {
+                    // Snapshots are saved into files which will be deleted at the end of the build
+                    env.put("ANDROID_AVD_SNAPSHOTS_DISCARDED", "true");
+                }
+                if (adbServerHost == null) {
+                    env.put("ANDROID_ADB_SERVER_PORT", Integer.toString(emu.adbServerPort()));
+                } else {
+                    // Point adb clients on the build machine at the adb server on the emulator host.
+                    // ANDROID_ADB_SERVER_PORT is left alone, as an adb client which doesn't understand
+                    // ADB_SERVER_SOCKET would otherwise start its own server on the relay's port number
+                    env.put("ADB_SERVER_SOCKET", String.format("tcp:%s:%d", adbServerHost, emu.adbServerRelayPort()));
+                    env.put("ANDROID_AVD_HOST", adbServerHost);
+
+                    // The emulator console only listens on the emulator host, so build steps which
+                    // talk to it need to know which node to do so from
+                    env.put("ANDROID_AVD_HOST_NODE", emulatorNodeName);
+                }
                 env.put("ANDROID_TMP_LOGCAT_FILE", logcatFile.getRemote());
                 if (!emuConfig.isNamedEmulator()) {
                     env.put("ANDROID_AVD_OS", emuConfig.getOsVersion().toString());
@@ -516,7 +746,8 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
                     env.put("ANDROID_AVD_SKIN", emuConfig.getScreenResolution().getSkinName());
                     env.put("ANDROID_AVD_LOCALE", emuConfig.getDeviceLocale());
                 }
-                if (androidSdk.hasKnownRoot()) {
+                // The SDK found belongs to the emulator host, so is of no use to the build machine
+                if (androidSdk.hasKnownRoot() && adbServerHost == null) {
                     env.put("JENKINS_ANDROID_HOME", androidSdk.getSdkRoot());
                     env.put("ANDROID_HOME", androidSdk.getSdkRoot());
 
@@ -533,11 +764,208 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
                     throws IOException, InterruptedException {
                 cleanUp(emuConfig, emu, logWriter, logcatFile, logcatStream, artifactsDir);
 
+                // Now that the emulator is no longer in use, replace the snapshot which failed to boot
+                if (needsSnapshotRegeneration) {
+                    scheduleSnapshotRegeneration(build, launcher, androidSdk, emuConfig, emulatorHost);
+                }
                 return true;
             }
         };
     }
 
+    /**
+     * Stops the emulator which failed to boot from its snapshot, marks the snapshot as bad, and
+     * starts the emulator again without using the snapshot.
+     *
+     * @return The build environment, as for {@link #doSetUp}.
+     */
+    private Environment retryWithoutSnapshot(final AbstractBuild<?, ?> build, final Launcher launcher,
+            final BuildListener listener, final AndroidSdk androidSdk, final EmulatorConfig emuConfig,
+            final HardwareProperty[] hardwareProperties, final Computer emulatorHost, AndroidEmulatorContext emu,
+            int timeout) throws IOException, InterruptedException {
+        log(listener.getLogger(), Messages.SNAPSHOT_BOOT_FAILED(timeout / 1000));
+        // If we were running a clone, it's the snapshot of the original AVD which is bad
+        final EmulatorConfig goldenConfig = emuConfig.copyForGoldenAvd();
+        launcher.getChannel().call(goldenConfig.getSnapshotMarkTask(true));
+        cleanUp(emuConfig, emu);
+        return doSetUp(build, launcher, listener, androidSdk, goldenConfig, hardwareProperties, emulatorHost);
+    }
+
+    /**
+     * Applies the {@link DeviceTuningProfile} to the running emulator.
+     *
+     * @param emuConfig The emulator being run.
+     * @param emu The emulator context.
+     */
+    private static void applyDeviceTuning(EmulatorConfig emuConfig, AndroidEmulatorContext emu)
+            throws IOException, InterruptedException {
+        final String tuningCommand = DeviceTuningProfile.getShellCommand(emuConfig.getOsVersion());
+        if (tuningCommand.length() != 0) {
+            log(emu.logger(), Messages.APPLYING_DEVICE_TUNING());
+            final String tuningArgs = String.format("-s %s shell \"%s\"", emu.serial(), tuningCommand);
+            ArgumentListBuilder tuningCmd = emu.getToolCommand(Tool.ADB, tuningArgs);
+            Proc proc = emu.getProcStarter(tuningCmd).start();
+            proc.joinWithTimeout(BOOT_COMPLETE_TIMEOUT_MS / 16, TimeUnit.MILLISECONDS,
+                    emu.launcher().getListener());
+        }
+    }
+
+    /**
+     * Lets a freshly-booted emulator settle, then pauses it, ready for saving the "jenkins" snapshot.
+     *
+     * @param emu The emulator context.
+     * @param bootDuration How long the emulator took to boot.
+     * @return {@code true} if the emulator was paused, i.e. it needs to be restarted.
+     */
+    private static boolean pauseForSnapshot(AndroidEmulatorContext emu, long bootDuration)
+            throws IOException, InterruptedException {
+        final PrintStream logger = emu.logger();
+
+        // In order to create a clean initial snapshot, give the system some more time to settle
+        log(logger, Messages.WAITING_INITIAL_SNAPSHOT());
+        Thread.sleep((long) (bootDuration * 0.8));
+
+        // Clear main log before creating snapshot
+        final String clearArgs = String.format("-s %s logcat -c", emu.serial());
+        ArgumentListBuilder adbCmd = emu.getToolCommand(Tool.ADB, clearArgs);
+        emu.getProcStarter(adbCmd).join();
+        final String msg = Messages.LOG_CREATING_SNAPSHOT();
+        final String logArgs = String.format("-s %s shell log -p v -t Jenkins '%s'", emu.serial(), msg);
+        adbCmd = emu.getToolCommand(Tool.ADB, logArgs);
+        emu.getProcStarter(adbCmd).join();
+
+        // Pause execution of the emulator
+        boolean stopped = emu.sendCommand("avd stop");
+        if (!stopped) {
+            log(logger, Messages.SNAPSHOT_CREATION_FAILED());
+        }
+        return stopped;
+    }
+
+    /**
+     * Saves the state of a paused emulator as the "jenkins" snapshot.
+     *
+     * @param emu The emulator context.
+     * @return {@code true} if the emulator reported that the snapshot was saved.
+     */
+    private static boolean saveSnapshot(AndroidEmulatorContext emu) {
+        log(emu.logger(), Messages.EMULATOR_PAUSED_SNAPSHOT());
+        int creationTimeout = AndroidEmulatorContext.EMULATOR_COMMAND_TIMEOUT_MS * 4;
+        boolean success = emu.sendCommandChecked("avd snapshot save "+ Constants.SNAPSHOT_NAME, creationTimeout);
+        if (!success) {
+            log(emu.logger(), Messages.SNAPSHOT_CREATION_FAILED());
+        }
+        return success;
+    }
+
+    /**
+     * Regenerates the snapshot of the given emulator in the background, once the build is finished
+     * with it.  Until this is complete, builds which want to use the emulator on the same machine
+     * are held in the queue.
+     */
+    private void scheduleSnapshotRegeneration(final AbstractBuild<?, ?> build, final Launcher launcher,
+            final AndroidSdk androidSdk, final EmulatorConfig emuConfig, final Computer emulatorHost) {
+        final String nodeName = emulatorHost == null ? build.getBuiltOnStr() : emulatorHost.getName();
+        // The background task has no current computer of its own, so hand it the build's
+        final Computer buildComputer = Computer.currentComputer();
+        synchronized (regeneratingSnapshots) {
+            List<String> avds = regeneratingSnapshots.get(nodeName);
+            if (avds == null) {
+                avds = new ArrayList<String>();
+                regeneratingSnapshots.put(nodeName, avds);
+            }
+            avds.add(emuConfig.getGoldenAvdName());
+        }
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    regenerateSnapshot(build, launcher, androidSdk,
+                            emuConfig.copyForSnapshotRegeneration(), emulatorHost, buildComputer);
+                } finally {
+                    synchronized (regeneratingSnapshots) {
+                        regeneratingSnapshots.get(nodeName).remove(emuConfig.getGoldenAvdName());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Boots the given emulator from scratch, saves a new "jenkins" snapshot, and shuts it down again.
+     * As the build is already finished, the output of this process is not logged to the build.
+     */
+    private void regenerateSnapshot(AbstractBuild<?, ?> build, Launcher launcher, AndroidSdk androidSdk,
+            EmulatorConfig emuConfig, Computer emulatorHost, Computer buildComputer) {
+        final String avdName = emuConfig.getAvdName();
+        LOGGER.info("Regenerating snapshot for " + avdName);
+        final BuildListener listener = new StreamBuildListener(new NullStream());
+        AndroidEmulatorContext emu = null;
+        boolean saved = false;
+        boolean success = false;
+        try {
+            // Get rid of the bad snapshot first, so that it can't be mistaken for a new one
+            if (!launcher.getChannel().call(emuConfig.getSnapshotResetTask(androidSdk))) {
+                LOGGER.warning("Could not reset snapshot image for " + avdName);
+                return;
+            }
+
+            emu = new AndroidEmulatorContext(build, launcher, listener, androidSdk, emulatorHost, buildComputer);
+            emu.getToolProcStarter(Tool.ADB, "start-server").join();
+
+            final String emulatorArgs = emuConfig.getCommandArguments(SnapshotState.INITIALISE,
+                    androidSdk.supportsSnapshots(), androidSdk.supportsEmulatorEngineFlag(),
+                    emu.userPort(), emu.adbPort(), emu.getEmulatorCallbackPort(),
+                    ADB_CONNECT_TIMEOUT_MS / 1000);
+            final long bootTime = System.currentTimeMillis();
+            emu.setProcess(emu.getToolProcStarter(emuConfig.getExecutable(), emulatorArgs).start());
+
+            boolean ignoreProcess = !launcher.isUnix() && androidSdk.getSdkToolsMajorVersion() >= 12;
+            if (waitForSocket(launcher, emu.getEmulatorCallbackPort(), ADB_CONNECT_TIMEOUT_MS) >= 0
+                    && waitForBootCompletion(ignoreProcess, BOOT_COMPLETE_TIMEOUT_MS * 2, emuConfig, emu)) {
+                if (tuneDevice) {
+                    applyDeviceTuning(emuConfig, emu);
+                }
+                saved = pauseForSnapshot(emu, System.currentTimeMillis() - bootTime) && saveSnapshot(emu);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to regenerate snapshot for " + avdName, ex);
+        } catch (InterruptedException ex) {
+            LOGGER.log(Level.WARNING, "Interrupted while regenerating snapshot for " + avdName, ex);
+        } finally {
+            if (emu != null) {
+                try {
+                    if (emu.process() != null && !emu.sendCommand("kill")) {
+                        Utils.killProcess(emu.process(), KILL_PROCESS_TIMEOUT_MS);
+                    }
+                    emu.getProcStarter(emu.getToolCommand(Tool.ADB, "kill-server")).join();
+
+                    // Only trust the snapshot if the emulator said it was saved, and it's now in the AVD
+                    success = saved && emuConfig.hasExistingSnapshot(launcher, androidSdk)
+                            && launcher.getChannel().call(emuConfig.getSnapshotMarkTask(false));
+                } catch (Exception ex) {
+                    LOGGER.log(Level.WARNING, "Failed to shut down emulator after regenerating snapshot", ex);
+                }
+                emu.cleanUp();
+            }
+        }
+        LOGGER.info((success ? "Regenerated snapshot for " : "Could not regenerate snapshot for ") + avdName);
+    }
+
+    /**
+     * Determines whether the snapshot for the given AVD is currently being regenerated on the given node.
+     *
+     * @param node The node to check.
+     * @param avdName The name of the AVD.
+     * @return {@code true} if the AVD is in use by a snapshot regeneration process.
+     */
+    static boolean isRegeneratingSnapshot(Node node, String avdName) {
+        synchronized (regeneratingSnapshots) {
+            List<String> avds = regeneratingSnapshots.get(node.getNodeName());
+            return avds != null && avds.contains(avdName);
+        }
+    }
+
     /** Helper method for writing to the build log in a consistent manner. */
     public synchronized static void log(final PrintStream logger, final String message) {
         log(logger, message, false);
@@ -624,18 +1052,165 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         ArgumentListBuilder adbKillCmd = emu.getToolCommand(Tool.ADB, "kill-server");
         emu.getProcStarter(adbKillCmd).join();
 
+        // Stop relaying to the (now stopped) adb server from the build machine
+        if (emu.adbServerRelayPort() != -1) {
+            try {
+                emu.launcher().getChannel().call(new StopAdbServerRelayTask(emu.adbServerRelayPort()));
+            } catch (IOException ignore) {
+            }
+        }
+
         emu.cleanUp();
 
+        // Discard any runtime data that was staged on a RAM disk
+        if (emulatorConfig.getRamDiskStage() != null) {
+            try {
+                emu.launcher().getChannel().call(emulatorConfig.getRamDiskReleaseTask());
+            } catch (IOException ex) {
+                log(emu.logger(), Messages.RAM_DISK_RELEASE_FAILED(ex.getLocalizedMessage()));
+            }
+        }
+
         // Delete the emulator, if required
         if (deleteAfterBuild) {
             try {
                 Callable<Boolean, Exception> deletionTask = emulatorConfig.getEmulatorDeletionTask(
                         emu.launcher().getListener());
                 emu.launcher().getChannel().call(deletionTask);
+                final Computer emulatorComputer = emu.remoteHost() == null ? Computer.currentComputer()
+                        : emu.remoteHost();
+                if (emulatorComputer != null) {
+                    AvdInventory.forget(emulatorComputer.getName(), emulatorConfig.getAvdName());
+                }
+            } catch (Exception ex) {
+                log(emu.logger(), Messages.FAILED_TO_DELETE_AVD(ex.getLocalizedMessage()));
+            }
+        }
+
+        // Discard the throwaway clone of the AVD, if we were using one
+        if (emulatorConfig.isClone() && !deleteAfterBuild) {
+            try {
+                emu.launcher().getChannel().call(emulatorConfig.getEmulatorDeletionTask(emu.launcher().getListener()));
             } catch (Exception ex) {
                 log(emu.logger(), Messages.FAILED_TO_DELETE_AVD(ex.getLocalizedMessage()));
             }
         }
+
+        // Now that the AVD has its snapshot and is no longer running, other builds can clone it
+        if (emu.goldenAvdLock() != null) {
+            releaseGoldenAvd(emu.goldenAvdLock());
+            emu.setGoldenAvdLock(null);
+            final Computer emulatorComputer = emu.remoteHost() == null ? Computer.currentComputer()
+                    : emu.remoteHost();
+            if (emulatorComputer != null) {
+                AvdInventory.record(emulatorComputer.getName(), emulatorConfig.getGoldenAvdName(),
+                        emulatorConfig.shouldUseSnapshots());
+            }
+        }
+    }
+
+    /**
+     * Marks an AVD as being run directly by a build, so that other builds know not to rely on its
+     * images being consistent while cloning it.
+     *
+     * @param lockKey The node name and AVD name.
+     * @return {@code true} if no other build was already running the AVD.
+     */
+    private static boolean acquireGoldenAvd(String lockKey) {
+        synchronized (goldenAvdsInUse) {
+            return goldenAvdsInUse.add(lockKey);
+        }
+    }
+
+    private static void releaseGoldenAvd(String lockKey) {
+        if (lockKey == null) {
+            return;
+        }
+        synchronized (goldenAvdsInUse) {
+            goldenAvdsInUse.remove(lockKey);
+        }
+    }
+
+    /** @return Whether the AVD is being run directly by a build, or having its snapshot regenerated. */
+    private static boolean isGoldenAvdInUse(String lockKey) {
+        synchronized (goldenAvdsInUse) {
+            if (goldenAvdsInUse.contains(lockKey)) {
+                return true;
+            }
+        }
+        final int separator = lockKey.indexOf('/');
+        synchronized (regeneratingSnapshots) {
+            List<String> avds = regeneratingSnapshots.get(lockKey.substring(0, separator));
+            return avds != null && avds.contains(lockKey.substring(separator + 1));
+        }
+    }
+
+    /**
+     * Finds the online node with the given label which can take another emulator, and is currently
+     * running the fewest emulators.
+     *
+     * @param label The label expression identifying the dedicated emulator hosts.
+     * @param hash The emulator configuration hash, i.e. the AVD name, if hosts already running the
+     *             same AVD should be skipped; otherwise {@code null}.
+     * @param descriptor The global configuration, with each emulator host's capacity.
+     * @return The node on which to run the emulator, or {@code null} if none is available.
+     */
+    static Node findEmulatorHost(String label, String hash, DescriptorImpl descriptor) {
+        Label hostLabel = Hudson.getInstance().getLabel(label);
+        if (hostLabel == null) {
+            return null;
+        }
+
+        Node bestNode = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (Node node : hostLabel.getNodes()) {
+            Computer computer = node.toComputer();
+            if (computer == null || computer.isOffline() || computer.getChannel() == null) {
+                continue;
+            }
+            if (hash != null && (EmulatorConfigIndex.isRunning(node, hash) || isRegeneratingSnapshot(node, hash))) {
+                continue;
+            }
+            if (EmulatorCapacity.check(node, descriptor) != null) {
+                continue;
+            }
+            int running = EmulatorConfigIndex.getEmulatorCount(node);
+            if (running < bestCount) {
+                bestNode = node;
+                bestCount = running;
+            }
+        }
+        return bestNode;
+    }
+
+    /**
+     * Chooses an emulator host for the given build, and records it in the {@link EmulatorConfigIndex}
+     * so that other builds don't choose the same host for the same AVD.  If no host is free, e.g.
+     * because another build claimed it after this one was dispatched, we wait a little for one.
+     *
+     * @return The node on which to run the emulator, or {@code null} if none became available.
+     */
+    private Node reserveEmulatorHost(AbstractBuild<?, ?> build, String label, String hash, PrintStream logger)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + EMULATOR_HOST_WAIT_MS;
+        boolean logged = false;
+        while (true) {
+            synchronized (emulatorHostLock) {
+                Node hostNode = findEmulatorHost(label, hash, descriptor);
+                if (hostNode != null) {
+                    EmulatorConfigIndex.assignEmulatorHost(build, hostNode.getNodeName());
+                    return hostNode;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return null;
+            }
+            if (!logged) {
+                log(logger, Messages.WAITING_FOR_EMULATOR_HOST(label));
+                logged = true;
+            }
+            Thread.sleep(10 * 1000);
+        }
     }
 
     /**
@@ -676,6 +1251,31 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         return null;
     }
 
+    /**
+     * Waits for the emulator images to have been read into the page cache, or times out.
+     *
+     * @param logger Where to log the outcome.
+     * @param prefetch The prefetch task which is running on the remote node.
+     * @param startTime When the prefetch task was started.
+     */
+    private void waitForImagePrefetch(PrintStream logger, Future<ImagePrefetcher.Result> prefetch,
+            long startTime) throws InterruptedException {
+        final long waitStartTime = System.currentTimeMillis();
+        try {
+            ImagePrefetcher.Result result = prefetch.get(IMAGE_PREFETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            // Anything which completed before we started waiting here came for free
+            long waitedMs = System.currentTimeMillis() - waitStartTime;
+            long overlappedMs = Math.max(0, Math.min(result.getDurationMs(), waitStartTime - startTime));
+            log(logger, Messages.IMAGES_PREFETCHED(result.getFilesRead(), result.getMegabytesRead(),
+                    result.getDurationMs(), overlappedMs, waitedMs, result.getFilesSkipped()));
+        } catch (TimeoutException ex) {
+            // Leave it running; the emulator will just have to share the disk with it for a while
+            log(logger, Messages.IMAGE_PREFETCH_TIMED_OUT(IMAGE_PREFETCH_TIMEOUT_MS / 1000));
+        } catch (ExecutionException ex) {
+            log(logger, Messages.IMAGE_PREFETCH_FAILED(), ex.getCause());
+        }
+    }
+
     /**
      * Waits for an emulator to tell us which port it is using, or times out.
      *
@@ -693,6 +1293,27 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         return -1;
     }
 
+    /**
+     * Waits for the emulator to be visible to adb, which happens well before booting completes, or times out.
+     *
+     * @param timeout How long to keep waiting (in milliseconds) before giving up.
+     * @param emu The emulator context
+     * @return <code>true</code> if adb found the device, <code>false</code> if we timed-out.
+     */
+    private boolean waitForDevice(final int timeout, AndroidEmulatorContext emu) {
+        final String args = String.format("-s %s wait-for-device", emu.serial());
+        try {
+            Proc proc = emu.getToolProcStarter(Tool.ADB, args).start();
+            return proc.joinWithTimeout(timeout, TimeUnit.MILLISECONDS, emu.launcher().getListener()) == 0;
+        } catch (InterruptedException ex) {
+            log(emu.logger(), Messages.INTERRUPTED_DURING_BOOT_COMPLETION());
+        } catch (IOException ex) {
+            log(emu.logger(), Messages.COULD_NOT_CHECK_BOOT_COMPLETION());
+            ex.printStackTrace(emu.logger());
+        }
+        return false;
+    }
+
     /**
      * Checks whether the emulator running on the given port has finished booting yet, or times out.
      * @param ignoreProcess Whether to bypass checking that the process is alive (e.g. on Windows).
@@ -746,6 +1367,19 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         return false;
     }
 
+    /** A config hash, and the node environment it was calculated from. */
+    private static final class CachedConfigHash {
+
+        final EnvVars environment;
+        final String hash;
+
+        CachedConfigHash(EnvVars environment, String hash) {
+            this.environment = environment;
+            this.hash = hash;
+        }
+
+    }
+
     @Extension(ordinal=-100) // Negative ordinal makes us execute after other wrappers (i.e. Xvnc)
     public static final class DescriptorImpl extends BuildWrapperDescriptor implements Serializable {
 
@@ -760,9 +1394,47 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         /** Whether the SDK should be automatically installed where it's not found. */
         public boolean shouldInstallSdk = true;
 
+        /** Whether SDK packages should be downloaded once by the master, and sent from there to nodes. */
+        public boolean shouldCacheSdk;
+
+        /**
+         * Directory on the master, or base URL, in which to look for SDK packages before downloading
+         * them from Google.
+         * <p>If <code>null</code>, packages are only cached once some node has downloaded them.</p>
+         */
+        public String sdkPackageSource;
+
         /** Whether the emulators should be kept in the workspace. */
         public boolean shouldKeepInWorkspace = false;
 
+        /**
+         * Directory on a RAM-backed filesystem (e.g. <tt>/dev/shm</tt>) in which emulator runtime data
+         * should be staged for the duration of a build.
+         * <p>If <code>null</code>, emulators use the images in their AVD directory directly.</p>
+         */
+        public String ramDiskDirectory;
+
+        /** Maximum number of megabytes of RAM disk space that emulators on one machine may use. */
+        public int ramDiskBudget;
+
+        /** First TCP port used by emulators on each machine; zero for the default. */
+        public int portRangeStart;
+
+        /** Number of emulators which may run at the same time on each machine; zero for the default. */
+        public int maxEmulatorsPerNode;
+
+        /** Whether builds should run throwaway clones of AVDs, so that the same AVD can be used concurrently. */
+        public boolean shouldCloneAvds;
+
+        /** Megabytes of memory each emulator is expected to need on its machine; zero if not to be checked. */
+        public int emulatorMemoryMb;
+
+        /** Number of CPU cores each emulator is expected to need on its machine; zero if not to be checked. */
+        public int emulatorCpuCores;
+
+        /** Megabytes of disk space which generated AVDs may use on each machine; zero for no limit. */
+        public int avdCacheBudgetMb;
+
         public DescriptorImpl() {
             super(AndroidEmulator.class);
             load();
@@ -778,10 +1450,59 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             androidHome = json.optString("androidHome");
             shouldInstallSdk = json.optBoolean("shouldInstallSdk", true);
             shouldKeepInWorkspace = json.optBoolean("shouldKeepInWorkspace", false);
+            shouldCacheSdk = json.optBoolean("shouldCacheSdk", false);
+            sdkPackageSource = Util.fixEmptyAndTrim(json.optString("sdkPackageSource"));
+            shouldCloneAvds = json.optBoolean("shouldCloneAvds", false);
+            ramDiskDirectory = Util.fixEmptyAndTrim(json.optString("ramDiskDirectory"));
+            ramDiskBudget = 0;
+            try {
+                ramDiskBudget = Math.max(0, Integer.parseInt(json.optString("ramDiskBudget")));
+            } catch (NumberFormatException e) {}
+            portRangeStart = parsePortSetting(json, "portRangeStart", EmulatorPortAllocator.DEFAULT_PORT_RANGE_START);
+            maxEmulatorsPerNode = parsePortSetting(json, "maxEmulatorsPerNode",
+                    EmulatorPortAllocator.DEFAULT_MAX_EMULATORS);
+            emulatorMemoryMb = 0;
+            try {
+                emulatorMemoryMb = Math.max(0, Integer.parseInt(json.optString("emulatorMemoryMb")));
+            } catch (NumberFormatException e) {}
+            emulatorCpuCores = 0;
+            try {
+                emulatorCpuCores = Math.max(0, Integer.parseInt(json.optString("emulatorCpuCores")));
+            } catch (NumberFormatException e) {}
+            avdCacheBudgetMb = 0;
+            try {
+                avdCacheBudgetMb = Math.max(0, Integer.parseInt(json.optString("avdCacheBudgetMb")));
+            } catch (NumberFormatException e) {}
+            String error = EmulatorPortAllocator.validateRange(getPortRangeStart(), getMaxEmulatorsPerNode());
+            if (error != null) {
+                throw new FormException(error, "android-emulator.portRangeStart");
+            }
             save();
             return true;
         }
 
+        /** Parses a port setting, storing zero if it's empty or the same as the default. */
+        private static int parsePortSetting(JSONObject json, String key, int defaultValue) throws FormException {
+            final String value = Util.fixEmptyAndTrim(json.optString(key));
+            if (value == null) {
+                return 0;
+            }
+            try {
+                int number = Integer.parseInt(value);
+                return number == defaultValue ? 0 : number;
+            } catch (NumberFormatException e) {
+                throw new FormException(Messages.INVALID_NUMBER(value), "android-emulator." + key);
+            }
+        }
+
+        public int getPortRangeStart() {
+            return portRangeStart == 0 ? EmulatorPortAllocator.DEFAULT_PORT_RANGE_START : portRangeStart;
+        }
+
+        public int getMaxEmulatorsPerNode() {
+            return maxEmulatorsPerNode == 0 ? EmulatorPortAllocator.DEFAULT_MAX_EMULATORS : maxEmulatorsPerNode;
+        }
+
         @Override
         public BuildWrapper newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             String avdName = null;
@@ -795,12 +1516,14 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             boolean wipeData = false;
             boolean showWindow = true;
             boolean useSnapshots = true;
+            boolean tuneDevice = false;
             boolean deleteAfterBuild = false;
             int startupDelay = 0;
             int startupTimeout = 0;
             String commandLineOptions = null;
             String executable = null;
             String avdNameSuffix = null;
+            String emulatorHostLabel = null;
 
             JSONObject emulatorData = formData.getJSONObject("useNamed");
             String useNamedValue = emulatorData.getString("value");
@@ -819,9 +1542,11 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             wipeData = formData.getBoolean("wipeData");
             showWindow = formData.getBoolean("showWindow");
             useSnapshots = formData.getBoolean("useSnapshots");
+            tuneDevice = formData.getBoolean("tuneDevice");
             deleteAfterBuild = formData.getBoolean("deleteAfterBuild");
             commandLineOptions = formData.getString("commandLineOptions");
             executable = formData.getString("executable");
+            emulatorHostLabel = Util.fixEmptyAndTrim(formData.optString("emulatorHostLabel"));
 
             try {
                 startupDelay = Integer.parseInt(formData.getString("startupDelay"));
@@ -833,7 +1558,7 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
             return new AndroidEmulator(avdName, osVersion, screenDensity, screenResolution,
                     deviceLocale, sdCardSize, hardware.toArray(new HardwareProperty[0]), wipeData,
                     showWindow, useSnapshots, deleteAfterBuild, startupDelay, startupTimeout, commandLineOptions,
-                    targetAbi, executable, avdNameSuffix);
+                    targetAbi, executable, avdNameSuffix, tuneDevice, emulatorHostLabel);
         }
 
         @Override
@@ -1114,6 +1839,41 @@ public class AndroidEmulator extends BuildWrapper implements Serializable {
         }
     }
 
+    /** Task that starts relaying connections from other machines to the local adb server. */
+    private static final class StartAdbServerRelayTask extends MasterToSlaveCallable<Integer, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int adbServerPort;
+        private final String buildHostName;
+
+        public StartAdbServerRelayTask(int adbServerPort, String buildHostName) {
+            this.adbServerPort = adbServerPort;
+            this.buildHostName = buildHostName;
+        }
+
+        public Integer call() throws IOException {
+            return AdbServerRelay.start(adbServerPort, buildHostName);
+        }
+    }
+
+    /** Task that stops relaying connections to the local adb server. */
+    private static final class StopAdbServerRelayTask extends MasterToSlaveCallable<Void, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int relayPort;
+
+        public StopAdbServerRelayTask(int relayPort) {
+            this.relayPort = relayPort;
+        }
+
+        public Void call() {
+            AdbServerRelay.stop(relayPort);
+            return null;
+        }
+    }
+
     @ExportedBean
     public static final class HardwareProperty implements Serializable {
 
@@ -1,7 +1,5 @@
 package hudson.plugins.android_emulator;
 
-import org.jvnet.hudson.plugins.port_allocator.PortAllocationManager;
-
 import java.io.IOException;
 import java.io.PrintStream;
 
@@ -12,6 +10,7 @@ import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
+import hudson.model.Hudson;
 import hudson.model.TaskListener;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.sdk.Tool;
@@ -26,9 +25,18 @@ public class AndroidEmulatorContext {
 	private int adbPort, userPort, adbServerPort, emulatorCallbackPort;
 	private String serial;
 
-	private PortAllocationManager portAllocator;
+	private EmulatorPortAllocator.Ports ports;
 	private Proc emulatorProcess;
 
+	/** The dedicated emulator host, or {@code null} if the emulator runs on the build machine. */
+	private Computer remoteHost;
+
+	/** Port on the emulator host through which remote adb clients reach our adb server, if any. */
+	private int adbServerRelayPort = -1;
+
+	/** Key under which this build has exclusive use of the AVD it's running, rather than a clone of it. */
+	private String goldenAvdLock;
+
 	private AndroidSdk sdk;
 
 	private AbstractBuild<?, ?> build;
@@ -38,52 +46,50 @@ public class AndroidEmulatorContext {
 	public AndroidEmulatorContext(AbstractBuild<?, ?> build_,
 			Launcher launcher_, BuildListener listener_, AndroidSdk sdk_)
 			throws InterruptedException, IOException {
+		this(build_, launcher_, listener_, sdk_, null);
+	}
+
+	/**
+	 * @param host The computer on which the emulator should run, if it's not the one running the
+	 *             build; the launcher must then also be for that computer.
+	 */
+	public AndroidEmulatorContext(AbstractBuild<?, ?> build_,
+			Launcher launcher_, BuildListener listener_, AndroidSdk sdk_, Computer host)
+			throws InterruptedException, IOException {
+		this(build_, launcher_, listener_, sdk_, host, Computer.currentComputer());
+	}
+
+	/**
+	 * @param host The computer on which the emulator should run, if it's not the one running the
+	 *             build; the launcher must then also be for that computer.
+	 * @param buildComputer The computer running the build, for use where this is not called from
+	 *                      the build's executor, e.g. in the background after the build.
+	 */
+	public AndroidEmulatorContext(AbstractBuild<?, ?> build_,
+			Launcher launcher_, BuildListener listener_, AndroidSdk sdk_, Computer host,
+			Computer buildComputer) throws InterruptedException, IOException {
 		build = build_;
 		listener = listener_;
 		launcher = launcher_;
 		sdk = sdk_;
+		remoteHost = host;
 
-        // Use the Port Allocator plugin to reserve the ports we need
-        final Computer computer = Computer.currentComputer();
-        portAllocator = PortAllocationManager.getManager(computer);
-
-        // ADB allows up to 64 local devices, each of which uses two consecutive ports: one for the
-        // user telnet interface, and one to communicate with ADB.  These pairs start at port 5554.
-        // http://android.googlesource.com/platform/system/core/+/d387acc/adb/adb.h#206
-        // http://android.googlesource.com/platform/system/core/+/d387acc/adb/transport_local.cpp#44
-        //
-        // So long as the ADB server automatically registers itself with any emulators in the
-        // standard port range of 5555–5861, then we should avoid using that port range.
-        // Otherwise, when we run multiple ADB servers and emulators at the same time, each of the
-        // ADB servers will race to register with each emulator, meaning that each build will most
-        // likely end up with an emulator that always ends up appearing to be "offline".
-        // See http://b.android.com/205197
-        final int PORT_RANGE_START = 5554 + (2 * 64);
-        final int PORT_RANGE_END = PORT_RANGE_START + (2 * 64);
-
-        // When using the emulator `-port` option, the first port must be even, so here we reserve
-        // three consecutive ports, ensuring that we will get an even port followed by an odd
-        int[] ports = portAllocator.allocatePortRange(build, PORT_RANGE_START, PORT_RANGE_END, 3, true);
-
-        // Assign the ports the user and ADB interfaces should use, such that the user port is even
-        int i = 0;
-        if (ports[i] % 2 != 0) {
-            i++;
+        // Reserve the four ports the emulator needs on the machine it's going to run on
+        final Computer computer = host == null ? buildComputer : host;
+        final AndroidEmulator.DescriptorImpl descriptor =
+                Hudson.getInstance().getDescriptorByType(AndroidEmulator.DescriptorImpl.class);
+        ports = EmulatorPortAllocator.get(computer, descriptor.getPortRangeStart(),
+                descriptor.getMaxEmulatorsPerNode()).allocate(launcher.getChannel());
+        userPort = ports.getUserPort();
+        adbPort = ports.getAdbPort();
+        adbServerPort = ports.getAdbServerPort();
+        emulatorCallbackPort = ports.getEmulatorCallbackPort();
+        AndroidEmulator.log(logger(), Messages.EMULATOR_PORTS_RESERVED(userPort, adbPort,
+                ports.getInUse(), ports.getCapacity(), ports.getPeakInUse()));
+        if (ports.getCollisions() > 0) {
+            AndroidEmulator.log(logger(), Messages.EMULATOR_PORTS_IN_USE_ELSEWHERE(ports.getCollisions(),
+                    ports.getTotalCollisions()));
         }
-        userPort = ports[i++];
-        adbPort = ports[i++];
-
-        // Release the port that was reserved but not used
-        portAllocator.free(i == 2 ? ports[2] : ports[0]);
-
-        // Reserve two further ports for the ADB server and the callback socket.
-        // Use a separate port range so as not to tie up emulator ports unnecessarily
-        final int SERVER_PORT_RANGE_START = PORT_RANGE_END;
-        final int SERVER_PORT_RANGE_END = SERVER_PORT_RANGE_START + 64;
-        ports = portAllocator.allocatePortRange(build, SERVER_PORT_RANGE_START,
-                SERVER_PORT_RANGE_END, 2, false);
-        adbServerPort = ports[0];
-        emulatorCallbackPort = ports[1];
 
         // Set the emulator qualifier based on the telnet port
         serial = String.format("emulator-%d", userPort);
@@ -91,10 +97,7 @@ public class AndroidEmulatorContext {
 
     public void cleanUp() {
         // Free up the TCP ports that we reserved
-        portAllocator.free(adbPort);
-        portAllocator.free(userPort);
-        portAllocator.free(adbServerPort);
-        portAllocator.free(emulatorCallbackPort);
+        ports.release();
     }
 
 	public int adbPort() {
@@ -125,6 +128,24 @@ public class AndroidEmulatorContext {
 		return listener.getLogger();
 	}
 
+	public Computer remoteHost() {
+		return remoteHost;
+	}
+
+	public int adbServerRelayPort() {
+		return adbServerRelayPort;
+	}
+	public void setAdbServerRelayPort(int port) {
+		adbServerRelayPort = port;
+	}
+
+	public String goldenAvdLock() {
+		return goldenAvdLock;
+	}
+	public void setGoldenAvdLock(String lockKey) {
+		goldenAvdLock = lockKey;
+	}
+
 	public Proc process() {
 		return emulatorProcess;
 	}
@@ -141,7 +162,9 @@ public class AndroidEmulatorContext {
 	 * @throws InterruptedException
 	 */
 	public ProcStarter getProcStarter() throws IOException, InterruptedException {
-		final EnvVars buildEnvironment = build.getEnvironment(TaskListener.NULL);
+		// The build's environment belongs to the build machine, so use the emulator host's own instead
+		final EnvVars buildEnvironment = remoteHost == null ? build.getEnvironment(TaskListener.NULL)
+				: new EnvVars(remoteHost.getEnvironment());
 		buildEnvironment.put("ANDROID_ADB_SERVER_PORT", Integer.toString(adbServerPort));
 		if (sdk.hasKnownHome()) {
 			buildEnvironment.put("ANDROID_SDK_HOME", sdk.getSdkHome());
@@ -216,4 +239,18 @@ public class AndroidEmulatorContext {
 	public boolean sendCommand(final String command, int timeout) {
 		return Utils.sendEmulatorCommand(launcher, logger(), userPort, command, timeout);
 	}
+
+	/**
+	 * Sends a user command to the running emulator via its telnet interface, and checks that the
+	 * emulator carried it out.<br>
+	 * Execution will be cancelled if it takes longer than timeout ms.
+	 *
+	 * @param command The command to execute on the emulator's telnet interface.
+	 * @param timeout The command's timeout, in ms.
+	 * @return Whether the emulator replied that the command succeeded.
+	 */
+	public boolean sendCommandChecked(final String command, int timeout) {
+		return Utils.isEmulatorCommandAccepted(
+				Utils.getEmulatorCommandOutput(launcher, logger(), userPort, command, timeout));
+	}
 }
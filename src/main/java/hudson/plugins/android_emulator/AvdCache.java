@@ -0,0 +1,311 @@
+package hudson.plugins.android_emulator;
+
+import hudson.Extension;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.plugins.android_emulator.AndroidEmulator.DescriptorImpl;
+import hudson.plugins.android_emulator.util.Utils;
+import hudson.remoting.VirtualChannel;
+import hudson.util.NullStream;
+import hudson.util.StreamCopyThread;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the disk space used by generated AVDs on each node within the configured budget, by
+ * deleting the least-recently used ones.
+ * <p>
+ * This is a middle ground between keeping every AVD forever, and deleting each AVD after its build,
+ * which means that every build has to create its AVD and cold boot it.  Named AVDs, which we didn't
+ * create, are never touched, and neither are AVDs in use by a running build, including builds on
+ * other nodes which use this node as their emulator host.
+ * </p><p>
+ * Throwaway clones of AVDs, including named ones, are normally deleted at the end of their build,
+ * so any found here were left behind, e.g. by a restart, and are deleted regardless of the budget.
+ * </p>
+ */
+public final class AvdCache {
+
+    /** File in each AVD directory whose modification time records when a build last used the AVD. */
+    static final String LAST_USED_FILE = "jenkins-last-used";
+
+    /** AVDs used more recently than this are never evicted, in case a build has only just started. */
+    private static final long MIN_AGE_MS = TimeUnit.MINUTES.toMillis(30);
+
+    /** Name of a throwaway clone of an AVD, as created for a single build. */
+    private static final Pattern CLONE_NAME = Pattern.compile(".+_clone\\d+");
+
+    private AvdCache() {}
+
+    /**
+     * Records that the given AVD has just been used.  Must be run on the machine where the AVD lives.
+     *
+     * @param avdDirectory The AVD's directory.
+     */
+    static void touch(File avdDirectory) {
+        final File marker = new File(avdDirectory, LAST_USED_FILE);
+        try {
+            if (!marker.createNewFile()) {
+                marker.setLastModified(System.currentTimeMillis());
+            }
+        } catch (IOException ignore) {
+            // Eviction will fall back to the AVD config's modification time
+        }
+    }
+
+    /** Periodically evicts AVDs from each online node, while the emulator disk budget is exceeded. */
+    @Extension
+    public static final class EvictionWork extends AsyncPeriodicWork {
+
+        public EvictionWork() {
+            super("Android AVD eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return HOUR;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            final DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+            if (descriptor == null || descriptor.avdCacheBudgetMb <= 0) {
+                return;
+            }
+            final long budgetBytes = descriptor.avdCacheBudgetMb * 1024L * 1024L;
+
+            for (Computer computer : Hudson.getInstance().getComputers()) {
+                final VirtualChannel channel = computer.getChannel();
+                if (channel == null || computer.isOffline()) {
+                    continue;
+                }
+
+                // This includes the AVDs of builds elsewhere which run their emulator on this node
+                final String nodeName = computer.getName();
+                final Set<String> inUse = EmulatorConfigIndex.getRunningHashes(nodeName);
+                try {
+                    List<String> evicted = channel.call(new EvictionTask(budgetBytes, inUse));
+                    for (String avdName : evicted) {
+                        AvdInventory.forget(nodeName, avdName);
+                        listener.getLogger().println(Messages.AVD_EVICTED(avdName, computer.getDisplayName()));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Failed to evict AVDs from " + computer.getDisplayName()));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Deletes any left-over AVD clones, then the least-recently used generated AVDs in the default
+     * Android home directory, until they take up no more than the given budget.  Returns the names
+     * of the deleted AVDs.
+     */
+    private static final class EvictionTask extends MasterToSlaveCallable<List<String>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long budgetBytes;
+        private final Set<String> inUse;
+
+        EvictionTask(long budgetBytes, Set<String> inUse) {
+            this.budgetBytes = budgetBytes;
+            this.inUse = inUse;
+        }
+
+        public List<String> call() throws IOException {
+            final List<String> evicted = new ArrayList<String>();
+            final File avdHome = new File(Utils.getHomeDirectory(null), ".android/avd");
+            final File[] avdDirectories = avdHome.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    final String name = file.getName();
+                    return file.isDirectory() && name.endsWith(".avd") && (name.startsWith("hudson_")
+                            || CLONE_NAME.matcher(name.substring(0, name.length() - 4)).matches());
+                }
+            });
+            if (avdDirectories == null) {
+                return evicted;
+            }
+
+            final List<CachedAvd> avds = new ArrayList<CachedAvd>();
+            long total = 0;
+            for (File avdDirectory : avdDirectories) {
+                CachedAvd avd = new CachedAvd(avdDirectory);
+                avds.add(avd);
+                total += avd.size;
+            }
+
+            // Left-over clones are never used again.  As a clone's files may be hard links with the
+            // original's modification times, its age is taken from when its directory was created
+            final long now = System.currentTimeMillis();
+            for (Iterator<CachedAvd> it = avds.iterator(); it.hasNext(); ) {
+                CachedAvd avd = it.next();
+                if (!CLONE_NAME.matcher(avd.name).matches()) {
+                    continue;
+                }
+                it.remove();
+                long lastUsed = Math.max(avd.lastUsed, avd.directory.lastModified());
+                if (!isInUse(avd.name) && !isLocked(avd.directory) && now - lastUsed >= MIN_AGE_MS) {
+                    delete(avdHome, avd, evicted);
+                    total -= avd.size;
+                }
+            }
+
+            // Least-recently used first
+            Collections.sort(avds);
+            for (CachedAvd avd : avds) {
+                if (total <= budgetBytes) {
+                    break;
+                }
+                if (isInUse(avd.name) || isLocked(avd.directory) || now - avd.lastUsed < MIN_AGE_MS) {
+                    continue;
+                }
+
+                delete(avdHome, avd, evicted);
+                total -= avd.size;
+            }
+            return evicted;
+        }
+
+        private static void delete(File avdHome, CachedAvd avd, List<String> evicted) throws IOException {
+            new File(avdHome, avd.name + ".ini").delete();
+            Util.deleteRecursive(avd.directory);
+            evicted.add(avd.name);
+        }
+
+        /** @return {@code true} if a running build uses the given AVD, or the AVD it was cloned from. */
+        private boolean isInUse(String avdName) {
+            for (String name : inUse) {
+                if (avdName.equals(name) || avdName.startsWith(name + "_clone")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** @return {@code true} if an emulator, perhaps not one of ours, is running the AVD. */
+        private static boolean isLocked(File avdDirectory) {
+            String[] lockFiles = avdDirectory.list(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".lock");
+                }
+            });
+            return lockFiles != null && lockFiles.length != 0;
+        }
+    }
+
+    /** @return When the AVD in the given directory was last used by a build. */
+    private static long getLastUsed(File avdDirectory) {
+        final File marker = new File(avdDirectory, LAST_USED_FILE);
+        if (marker.exists()) {
+            return marker.lastModified();
+        }
+        return new File(avdDirectory, "config.ini").lastModified();
+    }
+
+    /**
+     * Disk space taken up by the files within the given directory.
+     * <p>
+     * Images are mostly sparse, so this counts the blocks actually allocated, rather than the files'
+     * apparent lengths.  Files which are hard linked from elsewhere are skipped, as deleting the AVD
+     * wouldn't free up their space.  Where this can't be measured, e.g. on Windows, the apparent
+     * lengths are used instead.
+     * </p>
+     */
+    private static long getSize(File directory) {
+        if (!Functions.isWindows()) {
+            long size = getAllocatedSize(directory);
+            if (size >= 0) {
+                return size;
+            }
+        }
+        return getApparentSize(directory);
+    }
+
+    /** @return Kilobytes allocated to files with a single link within the directory, or -1 if unknown. */
+    private static long getAllocatedSize(File directory) {
+        final List<String> cmd = Arrays.asList("find", directory.getAbsolutePath(), "-type", "f", "-links", "1",
+                "-exec", "du", "-k", "{}", "+");
+        try {
+            Process process = new ProcessBuilder(cmd).start();
+            process.getOutputStream().close();
+            new StreamCopyThread("", process.getErrorStream(), new NullStream()).start();
+
+            // Each line is the number of kilobytes, a tab, and the file name
+            long size = 0;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int end = line.indexOf('\t');
+                    if (end > 0) {
+                        size += Long.parseLong(line.substring(0, end).trim()) * 1024;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return process.waitFor() == 0 ? size : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /** Apparent length of all files within the given directory. */
+    private static long getApparentSize(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            size += file.isDirectory() ? getApparentSize(file) : file.length();
+        }
+        return size;
+    }
+
+    private static final class CachedAvd implements Comparable<CachedAvd> {
+
+        final File directory;
+        final String name;
+        final long size;
+        final long lastUsed;
+
+        CachedAvd(File directory) {
+            this.directory = directory;
+            this.name = directory.getName().substring(0, directory.getName().length() - 4);
+            this.size = getSize(directory);
+            this.lastUsed = getLastUsed(directory);
+        }
+
+        public int compareTo(CachedAvd other) {
+            return Long.valueOf(lastUsed).compareTo(other.lastUsed);
+        }
+
+    }
+
+}
@@ -0,0 +1,191 @@
+package hudson.plugins.android_emulator;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.plugins.android_emulator.util.Utils;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of which AVDs exist on each node, and whether they have a snapshot to boot from, so that
+ * emulator builds can be steered towards nodes where they won't have to create the AVD (and install
+ * its platform and system image) or cold boot it first.
+ * <p>
+ * The inventory of each node is scanned when it comes online, and then kept up to date by builds as
+ * they create and delete emulators.
+ * </p>
+ */
+public final class AvdInventory {
+
+    private static final Logger LOGGER = Logger.getLogger(AvdInventory.class.getName());
+
+    /** Node has no copy of the AVD. */
+    static final int COLD = 0;
+
+    /** Node has the AVD, but no snapshot of it. */
+    static final int AVD_EXISTS = 1;
+
+    /** Node has the AVD and its snapshot. */
+    static final int SNAPSHOT_EXISTS = 2;
+
+    /** For each node name, the AVD names it has, mapped to {@link #AVD_EXISTS} or {@link #SNAPSHOT_EXISTS}. */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Integer>> inventories =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+
+    private AvdInventory() {}
+
+    /**
+     * Determines how well-prepared the given node is to run the given AVD.
+     *
+     * @param nodeName The node name; empty for the master.
+     * @param avdName The AVD name.
+     * @param useSnapshots Whether the build would boot from a snapshot, if available.
+     * @return {@link #COLD}, {@link #AVD_EXISTS} or {@link #SNAPSHOT_EXISTS}.
+     */
+    static int getWarmth(String nodeName, String avdName, boolean useSnapshots) {
+        Map<String, Integer> avds = inventories.get(nodeName);
+        Integer warmth = avds == null ? null : avds.get(avdName);
+        if (warmth == null) {
+            return COLD;
+        }
+        return useSnapshots ? warmth : Math.min(warmth, AVD_EXISTS);
+    }
+
+    /**
+     * Finds the nodes other than the given one which are better prepared to run the given AVD.
+     * Whether they could actually take a build right now is up to the caller to check.
+     *
+     * @param currentNode The node being offered the build.
+     * @param avdName The AVD the build would run.
+     * @param useSnapshots Whether the build would boot from a snapshot, if available.
+     * @return The better nodes, which may be empty.
+     */
+    static List<Node> getWarmerNodes(Node currentNode, String avdName, boolean useSnapshots) {
+        final List<Node> nodes = new ArrayList<Node>();
+        final int currentWarmth = getWarmth(currentNode.getNodeName(), avdName, useSnapshots);
+        if (currentWarmth == SNAPSHOT_EXISTS) {
+            return nodes;
+        }
+
+        for (String nodeName : inventories.keySet()) {
+            if (nodeName.equals(currentNode.getNodeName())
+                    || getWarmth(nodeName, avdName, useSnapshots) <= currentWarmth) {
+                continue;
+            }
+            final Node node = nodeName.length() == 0 ? Hudson.getInstance() : Hudson.getInstance().getNode(nodeName);
+            if (node != null) {
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /** Records that the given AVD now exists on the given node. */
+    static void record(String nodeName, String avdName, boolean hasSnapshot) {
+        getInventory(nodeName).put(avdName, hasSnapshot ? SNAPSHOT_EXISTS : AVD_EXISTS);
+    }
+
+    /** Records that the given AVD no longer exists on the given node. */
+    static void forget(String nodeName, String avdName) {
+        getInventory(nodeName).remove(avdName);
+    }
+
+    private static ConcurrentMap<String, Integer> getInventory(String nodeName) {
+        ConcurrentMap<String, Integer> avds = inventories.get(nodeName);
+        if (avds == null) {
+            ConcurrentMap<String, Integer> newAvds = new ConcurrentHashMap<String, Integer>();
+            avds = inventories.putIfAbsent(nodeName, newAvds);
+            if (avds == null) {
+                avds = newAvds;
+            }
+        }
+        return avds;
+    }
+
+    /** Scans each node for existing AVDs when it comes online, and forgets them when it goes away. */
+    @Extension
+    public static final class NodeListener extends ComputerListener {
+
+        @Override
+        public void onOnline(final Computer c, TaskListener listener) {
+            final String nodeName = c.getName();
+            final VirtualChannel channel = c.getChannel();
+            if (channel == null) {
+                return;
+            }
+
+            // Don't hold up the node coming online while we look around its disk
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        Map<String, Integer> avds = channel.call(new AvdScanTask());
+                        ConcurrentMap<String, Integer> inventory = new ConcurrentHashMap<String, Integer>(avds);
+                        inventories.put(nodeName, inventory);
+                        LOGGER.fine(String.format("Found %d AVDs on %s", avds.size(), c.getDisplayName()));
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "Failed to scan for AVDs on " + c.getDisplayName(), e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            // Forget about nodes that have been removed
+            for (String nodeName : inventories.keySet()) {
+                if (nodeName.length() != 0 && Hudson.getInstance().getNode(nodeName) == null) {
+                    inventories.remove(nodeName);
+                }
+            }
+        }
+
+    }
+
+    /** Lists the AVDs in the default Android home directory, and whether each has a snapshot image. */
+    private static final class AvdScanTask extends MasterToSlaveCallable<Map<String, Integer>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        public Map<String, Integer> call() {
+            final Map<String, Integer> avds = new HashMap<String, Integer>();
+            final File avdHome = new File(Utils.getHomeDirectory(null), ".android/avd");
+            final String[] metadataFiles = avdHome.list(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".ini");
+                }
+            });
+            if (metadataFiles == null) {
+                return avds;
+            }
+
+            for (String metadataFile : metadataFiles) {
+                final String avdName = metadataFile.substring(0, metadataFile.length() - 4);
+                final File avdDirectory = new File(avdHome, avdName + ".avd");
+                if (!new File(avdDirectory, "config.ini").exists()) {
+                    continue;
+                }
+                final boolean hasSnapshot = new File(avdDirectory, "snapshots.img").exists()
+                        || new File(avdDirectory, "snapshots/jenkins").isDirectory();
+                avds.put(avdName, hasSnapshot ? SNAPSHOT_EXISTS : AVD_EXISTS);
+            }
+            return avds;
+        }
+    }
+
+}
@@ -0,0 +1,416 @@
+package hudson.plugins.android_emulator;
+
+import hudson.Util;
+import hudson.plugins.android_emulator.util.FileCloner;
+import hudson.plugins.android_emulator.util.IniFile;
+import hudson.plugins.android_emulator.util.Utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates AVDs by writing their files directly, rather than by running {@code android create avd}.
+ * <p>
+ * The {@code android} tool takes several seconds just to start up, and then has to be driven via
+ * its interactive prompt and have its output scraped to find out whether it worked.  An AVD is
+ * really only a metadata file and a directory containing {@code config.ini} and a copy of the
+ * system image's user data, so we can resolve the platform and system image ourselves, and write
+ * the files in one go.
+ * </p><p>
+ * Only the standard SDK layouts are understood; if the platform or system image can't be found,
+ * the caller should fall back to the {@code android} tool, which will also give a useful error if
+ * the platform really isn't installed.  These methods must be run on the machine where the SDK
+ * lives, i.e. from within a remote task.
+ * </p>
+ */
+final class AvdWriter {
+
+    /** Tag given to system images which have none, i.e. stock Android. */
+    private static final String DEFAULT_TAG = "default";
+
+    private final File sdkRoot;
+    private final String targetName;
+
+    /** Platform or add-on directory of the target. */
+    private final File targetDirectory;
+
+    /** Directory of the platform the target is based on; the same as the target for non add-ons. */
+    private final File platformDirectory;
+
+    private final SystemImage image;
+
+    private AvdWriter(File sdkRoot, String targetName, File targetDirectory, File platformDirectory,
+            SystemImage image) {
+        this.sdkRoot = sdkRoot;
+        this.targetName = targetName;
+        this.targetDirectory = targetDirectory;
+        this.platformDirectory = platformDirectory;
+        this.image = image;
+    }
+
+    /**
+     * Finds the platform and system image needed to create an AVD for the given target.
+     *
+     * @param sdkRoot The root of the Android SDK.
+     * @param platform The target platform.
+     * @param targetAbi The requested ABI, optionally prefixed with a tag, e.g. "google_apis/x86";
+     *                  may be {@code null} if the platform has only one system image.
+     * @return A writer for the resolved target, or {@code null} if the platform or a matching system
+     *         image could not be found in any of the known layouts.
+     * @throws EmulatorCreationException If more than one system image matches the given ABI.
+     */
+    static AvdWriter resolve(File sdkRoot, AndroidPlatform platform, String targetAbi)
+            throws EmulatorCreationException {
+        final String targetName = platform.getTargetName();
+        final int level = platform.getSdkLevel();
+        if (level <= 0) {
+            return null;
+        }
+
+        File platformDirectory = new File(sdkRoot, "platforms/android-" + level);
+        File targetDirectory = platformDirectory;
+        if (platform.isCustomPlatform()) {
+            targetDirectory = findAddOn(sdkRoot, targetName);
+            if (targetDirectory == null) {
+                return null;
+            }
+        }
+        if (!new File(platformDirectory, "android.jar").exists()) {
+            return null;
+        }
+
+        // Split e.g. "google_apis/x86" into its tag and ABI
+        String tag = null;
+        String abi = Util.fixEmptyAndTrim(targetAbi);
+        if (abi != null && abi.contains("/")) {
+            tag = abi.substring(0, abi.indexOf('/'));
+            abi = abi.substring(abi.indexOf('/') + 1);
+        }
+
+        // Gather every system image which could belong to this target
+        final List<SystemImage> candidates = new ArrayList<SystemImage>();
+        if (platform.isCustomPlatform()) {
+            addImages(candidates, new File(targetDirectory, "images"), null);
+            if (candidates.isEmpty()) {
+                // Newer add-ons, like Google APIs, ship their images as tagged system images
+                addTaggedImages(candidates, new File(sdkRoot, "system-images/android-" + level), true);
+            }
+        } else {
+            addTaggedImages(candidates, new File(sdkRoot, "system-images/android-" + level), false);
+            addImages(candidates, new File(platformDirectory, "images"), DEFAULT_TAG);
+        }
+
+        // Narrow them down to what was asked for
+        final List<SystemImage> matches = new ArrayList<SystemImage>();
+        for (SystemImage candidate : candidates) {
+            if (tag != null && !tag.equals(candidate.tag)) {
+                continue;
+            }
+            if (tag == null && !platform.isCustomPlatform() && !DEFAULT_TAG.equals(candidate.tag)) {
+                continue;
+            }
+            if (abi != null && !abi.equals(candidate.abi)) {
+                continue;
+            }
+            matches.add(candidate);
+        }
+
+        if (matches.isEmpty()) {
+            return null;
+        }
+        if (matches.size() > 1) {
+            StringBuilder available = new StringBuilder();
+            for (SystemImage match : matches) {
+                available.append("\n  ").append(match);
+            }
+            throw new EmulatorCreationException(Messages.MORE_THAN_ONE_ABI(targetName, available));
+        }
+        return new AvdWriter(sdkRoot, targetName, targetDirectory, platformDirectory, matches.get(0));
+    }
+
+    /**
+     * Writes a new AVD, replacing any existing AVD of the same name.
+     * <p>
+     * The AVD's {@code config.ini} is written last, so that an AVD is never considered to exist
+     * unless it was written in full.
+     * </p>
+     *
+     * @param avdHome Directory containing AVDs, i.e. {@code ~/.android/avd}.
+     * @param avdName Name of the AVD to create.
+     * @param resolution Screen resolution, which may correspond to a skin.
+     * @param density Screen density.
+     * @param sdCardSize Size of the SD card which the caller will create, or {@code null} for none.
+     * @param withSnapshots Whether to add an empty snapshot image to the AVD.
+     * @param shareImages Whether the AVD must not hold its own copy of any system image file, e.g.
+     *                    because it lives in a workspace; the emulator then reads them from the SDK.
+     * @param overrides Further config values, e.g. hardware properties, which take precedence.
+     * @throws IOException If the AVD files could not be written.
+     */
+    void write(File avdHome, String avdName, ScreenResolution resolution, ScreenDensity density,
+            String sdCardSize, boolean withSnapshots, boolean shareImages, Map<String, String> overrides)
+            throws IOException {
+        final File avdDirectory = new File(avdHome, avdName + ".avd");
+        Util.deleteRecursive(avdDirectory);
+        if (!avdDirectory.mkdirs()) {
+            throw new IOException(Messages.AVD_DIRECTORY_CREATION_FAILED(avdDirectory));
+        }
+
+        try {
+            // The metadata file tells the emulator where to find the AVD
+            final Map<String, String> metadata = new LinkedHashMap<String, String>();
+            metadata.put("avd.ini.encoding", "UTF-8");
+            metadata.put("path", avdDirectory.getAbsolutePath());
+            metadata.put("path.rel", "avd" + File.separator + avdDirectory.getName());
+            metadata.put("target", targetName);
+            writeIniFile(new File(avdHome, avdName + ".ini"), metadata);
+
+            // Start from the hardware defaults of the target and skin, as the tool would do
+            final Map<String, String> config = new LinkedHashMap<String, String>();
+            config.put("avd.ini.encoding", "UTF-8");
+            mergeIniFile(config, new File(targetDirectory, "hardware.ini"));
+            mergeIniFile(config, new File(image.directory, "hardware.ini"));
+
+            config.put("abi.type", image.abi);
+            putCpuArchitecture(config, image.abi);
+            config.put("image.sysdir.1", getSdkRelativePath(image.directory));
+            config.put("tag.id", image.tag);
+            config.put("tag.display", getTagDisplayName(image.tag));
+
+            final File skinDirectory = findSkin(resolution);
+            if (skinDirectory == null) {
+                config.put("skin.name", resolution.getDimensionString());
+                config.put("skin.path", resolution.getDimensionString());
+            } else {
+                mergeIniFile(config, new File(skinDirectory, "hardware.ini"));
+                config.put("skin.name", skinDirectory.getName());
+                config.put("skin.path", getSdkRelativePath(skinDirectory));
+            }
+            config.put("hw.lcd.density", String.valueOf(density.getDpi()));
+
+            if (sdCardSize != null) {
+                config.put("sdcard.size", sdCardSize);
+            }
+
+            // The emulator never writes to the initial user data image, so it can share the original.
+            // If the AVD has no copy at all, the emulator looks for it in the system image directory
+            final File userData = new File(image.directory, "userdata.img");
+            if (userData.exists()) {
+                final File avdUserData = new File(avdDirectory, "userdata.img");
+                if (!FileCloner.hardlink(userData, avdUserData) && !shareImages) {
+                    Util.copyFile(userData, avdUserData);
+                }
+            }
+
+            final File snapshots = new File(sdkRoot, "tools/lib/emulator/snapshots.img");
+            if (withSnapshots && snapshots.exists()) {
+                Util.copyFile(snapshots, new File(avdDirectory, "snapshots.img"));
+                config.put("snapshot.present", "true");
+            }
+
+            config.putAll(overrides);
+            writeIniFile(new File(avdDirectory, "config.ini"), config);
+        } catch (IOException e) {
+            // Don't leave a half-written AVD behind
+            new File(avdHome, avdName + ".ini").delete();
+            try {
+                Util.deleteRecursive(avdDirectory);
+            } catch (IOException ignore) {
+            }
+            throw e;
+        }
+    }
+
+    /** @return Description of the resolved system image, for logging. */
+    String getImageDescription() {
+        return targetName + " " + image;
+    }
+
+    /** @return The directory of the skin matching the given resolution, or {@code null} if none exists. */
+    private File findSkin(ScreenResolution resolution) {
+        if (resolution.isCustomResolution()) {
+            return null;
+        }
+        final String skinName = resolution.getSkinName();
+        File[] searchPath = { new File(image.directory, "skins"), new File(targetDirectory, "skins"),
+                new File(platformDirectory, "skins"), new File(sdkRoot, "skins") };
+        for (File skins : searchPath) {
+            File skin = new File(skins, skinName);
+            if (skin.isDirectory()) {
+                return skin;
+            }
+        }
+        return null;
+    }
+
+    private String getSdkRelativePath(File directory) {
+        String path = directory.getAbsolutePath();
+        String root = sdkRoot.getAbsolutePath();
+        if (path.startsWith(root + File.separator)) {
+            path = path.substring(root.length() + 1);
+        }
+        return path + File.separator;
+    }
+
+    /** Finds the directory of the add-on with the given "vendor:name:level" target name. */
+    private static File findAddOn(File sdkRoot, String targetName) {
+        File[] addOns = new File(sdkRoot, "add-ons").listFiles();
+        if (addOns == null) {
+            return null;
+        }
+        for (File addOn : addOns) {
+            File manifest = new File(addOn, "manifest.ini");
+            if (!manifest.isFile()) {
+                continue;
+            }
+            try {
+                Map<String, String> values = Utils.parseConfigFile(manifest);
+                String name = String.format("%s:%s:%s", values.get("vendor"), values.get("name"), values.get("api"));
+                if (name.equals(targetName)) {
+                    return addOn;
+                }
+            } catch (IOException ignore) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the system images under a versioned {@code system-images} directory, which contains
+     * either ABI directories, or tag directories which themselves contain ABI directories.
+     *
+     * @param onlyTagged Whether to ignore untagged, i.e. stock, images.
+     */
+    private static void addTaggedImages(List<SystemImage> images, File versionDirectory, boolean onlyTagged) {
+        File[] children = versionDirectory.listFiles(DIRECTORIES);
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (isSystemImage(child)) {
+                // Older layout, without tags
+                if (!onlyTagged) {
+                    images.add(new SystemImage(child, DEFAULT_TAG, child.getName()));
+                }
+            } else if (!onlyTagged || !DEFAULT_TAG.equals(child.getName())) {
+                addImages(images, child, child.getName());
+            }
+        }
+    }
+
+    /**
+     * Adds the system images in the given directory, which either is one, or contains ABI directories.
+     *
+     * @param tag The tag to give the images, or {@code null} to read it from each image's properties.
+     */
+    private static void addImages(List<SystemImage> images, File directory, String tag) {
+        if (isSystemImage(directory)) {
+            images.add(new SystemImage(directory, tag == null ? readTag(directory) : tag, readAbi(directory)));
+            return;
+        }
+        File[] abiDirectories = directory.listFiles(DIRECTORIES);
+        if (abiDirectories == null) {
+            return;
+        }
+        for (File abiDirectory : abiDirectories) {
+            if (isSystemImage(abiDirectory)) {
+                String imageTag = tag == null ? readTag(abiDirectory) : tag;
+                images.add(new SystemImage(abiDirectory, imageTag, abiDirectory.getName()));
+            }
+        }
+    }
+
+    private static boolean isSystemImage(File directory) {
+        return new File(directory, "system.img").isFile();
+    }
+
+    private static String readTag(File imageDirectory) {
+        String tag = readSourceProperty(imageDirectory, "SystemImage.TagId");
+        return tag == null ? DEFAULT_TAG : tag;
+    }
+
+    private static String readAbi(File imageDirectory) {
+        String abi = readSourceProperty(imageDirectory, "SystemImage.Abi");
+        return abi == null ? "armeabi" : abi;
+    }
+
+    private static String readSourceProperty(File imageDirectory, String key) {
+        File properties = new File(imageDirectory, "source.properties");
+        if (!properties.isFile()) {
+            return null;
+        }
+        try {
+            return Util.fixEmptyAndTrim(Utils.parseConfigFile(properties).get(key));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void putCpuArchitecture(Map<String, String> config, String abi) {
+        if (abi.startsWith("armeabi")) {
+            config.put("hw.cpu.arch", "arm");
+            if (abi.equals("armeabi-v7a")) {
+                config.put("hw.cpu.model", "cortex-a8");
+            }
+        } else if (abi.equals("arm64-v8a")) {
+            config.put("hw.cpu.arch", "arm64");
+        } else {
+            // x86, x86_64, mips and mips64 use the ABI name as-is
+            config.put("hw.cpu.arch", abi);
+        }
+    }
+
+    private static String getTagDisplayName(String tag) {
+        if (DEFAULT_TAG.equals(tag)) {
+            return "Default";
+        }
+        if ("google_apis".equals(tag)) {
+            return "Google APIs";
+        }
+        return tag;
+    }
+
+    /** Adds the values from the given properties file, if it exists. */
+    private static void mergeIniFile(Map<String, String> values, File file) throws IOException {
+        if (file.isFile()) {
+            values.putAll(Utils.parseConfigFile(file));
+        }
+    }
+
+    private static void writeIniFile(File file, Map<String, String> values) throws IOException {
+        IniFile ini = IniFile.load(file);
+        ini.setAll(values);
+        ini.save();
+    }
+
+    private static final FileFilter DIRECTORIES = new FileFilter() {
+        public boolean accept(File file) {
+            return file.isDirectory();
+        }
+    };
+
+    /** A system image directory, with the tag and ABI it provides. */
+    private static final class SystemImage {
+
+        final File directory;
+        final String tag;
+        final String abi;
+
+        SystemImage(File directory, String tag, String abi) {
+            this.directory = directory;
+            this.tag = tag;
+            this.abi = abi;
+        }
+
+        @Override
+        public String toString() {
+            return DEFAULT_TAG.equals(tag) ? abi : tag + "/" + abi;
+        }
+
+    }
+
+}
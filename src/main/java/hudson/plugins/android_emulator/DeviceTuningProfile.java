@@ -0,0 +1,61 @@
+package hudson.plugins.android_emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Device settings which make an emulator better suited to running automated tests: animations are
+ * disabled, the screen stays on and unlocked, installed APKs aren't sent for verification, and
+ * crash and ANR dialogs don't get in the way of the UI under test.
+ * <p>
+ * Background sync is effectively off already, as emulators created by this plugin have no accounts
+ * added; the master sync switch itself has no shell command or setting through which to change it.
+ * </p>
+ */
+final class DeviceTuningProfile {
+
+    private DeviceTuningProfile() {}
+
+    /**
+     * Builds a single shell command line which applies the tuning profile, so that it can be done in
+     * one adb invocation.  Individual commands which aren't supported on the platform just fail,
+     * without affecting the others.
+     *
+     * @param platform The platform the emulator is running, or {@code null} if unknown.
+     * @return The command line to pass to <tt>adb shell</tt>; empty if the platform is too old to tune.
+     */
+    static String getShellCommand(AndroidPlatform platform) {
+        // Assume a recent platform for named emulators, where we don't know the version
+        final int sdkLevel = platform == null ? Integer.MAX_VALUE : platform.getSdkLevel();
+
+        List<String> commands = new ArrayList<String>();
+        if (sdkLevel >= 17) {
+            // The "settings" command and the global settings table were introduced in Android 4.2
+            commands.add("settings put global window_animation_scale 0");
+            commands.add("settings put global transition_animation_scale 0");
+            commands.add("settings put global animator_duration_scale 0");
+            commands.add("settings put global package_verifier_enable 0");
+            commands.add("settings put global verifier_verify_adb_installs 0");
+            commands.add("settings put global hide_error_dialogs 1");
+            commands.add("settings put secure anr_show_background 0");
+            commands.add("settings put secure lockscreen.disabled 1");
+            commands.add("svc power stayon true");
+        }
+        if (sdkLevel >= 26) {
+            commands.add("locksettings set-disabled true");
+        }
+        if (sdkLevel >= 23) {
+            commands.add("wm dismiss-keyguard");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String command : commands) {
+            if (sb.length() != 0) {
+                sb.append("; ");
+            }
+            sb.append(command).append(" >/dev/null 2>&1");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,148 @@
+package hudson.plugins.android_emulator;
+
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.WorkUnit;
+import hudson.plugins.android_emulator.AndroidEmulator.DescriptorImpl;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Determines whether a node has the capacity to run another emulator, based on how many emulators
+ * are already running or starting up there, and the CPU and memory each one is expected to need.
+ * This applies both to nodes running emulators for their own builds, and to emulator hosts.
+ */
+final class EmulatorCapacity {
+
+    private static final Logger LOGGER = Logger.getLogger(EmulatorCapacity.class.getName());
+
+    /** Number of CPU cores and megabytes of memory of each node, by node name. */
+    private static final ConcurrentMap<String, long[]> nodeResources = new ConcurrentHashMap<String, long[]>();
+
+    private EmulatorCapacity() {}
+
+    /**
+     * Checks whether another emulator may be started on the given node.
+     *
+     * @param node The node on which the emulator would run.
+     * @param descriptor The global configuration, with the per-emulator resource budget.
+     * @return {@code null} if there is capacity, otherwise the reason the build must wait.
+     */
+    static CauseOfBlockage check(Node node, DescriptorImpl descriptor) {
+        final int running = EmulatorConfigIndex.getEmulatorCount(node) + getStartingEmulatorCount(node);
+        if (running == 0) {
+            // Always allow one emulator, even if the node looks too small; otherwise it would wait forever
+            return null;
+        }
+
+        final String nodeName = node.getDisplayName();
+        if (running >= descriptor.getMaxEmulatorsPerNode()) {
+            return CauseOfBlockage.fromMessage(Messages._EMULATOR_LIMIT_REACHED(nodeName, running));
+        }
+
+        final int memoryMb = descriptor.emulatorMemoryMb;
+        final int cpuCores = descriptor.emulatorCpuCores;
+        if (memoryMb <= 0 && cpuCores <= 0) {
+            return null;
+        }
+        final long[] resources = getResources(node);
+        if (resources == null) {
+            // If we can't tell, don't hold up the build
+            return null;
+        }
+
+        if (cpuCores > 0 && (long) (running + 1) * cpuCores > resources[0]) {
+            return CauseOfBlockage.fromMessage(Messages._EMULATOR_CPUS_EXHAUSTED(nodeName, running, cpuCores,
+                    resources[0]));
+        }
+        if (memoryMb > 0 && resources[1] > 0 && (long) (running + 1) * memoryMb > resources[1]) {
+            return CauseOfBlockage.fromMessage(Messages._EMULATOR_MEMORY_EXHAUSTED(nodeName, running, memoryMb,
+                    resources[1]));
+        }
+        return null;
+    }
+
+    /**
+     * Counts the builds which have been assigned to an executor on the node, but which haven't started
+     * yet, and so aren't in the {@link EmulatorConfigIndex}.  This ensures that we don't hand out the
+     * same capacity to multiple builds during one queue maintenance pass.
+     */
+    private static int getStartingEmulatorCount(Node node) {
+        final Computer computer = node.toComputer();
+        if (computer == null) {
+            return 0;
+        }
+        int count = 0;
+        for (Executor executor : computer.getExecutors()) {
+            WorkUnit workUnit = executor.getCurrentWorkUnit();
+            if (workUnit == null || executor.getCurrentExecutable() != null) {
+                continue;
+            }
+            AndroidEmulator androidWrapper = TaskDispatcher.getEmulatorWrapper(workUnit.work);
+            if (androidWrapper != null && Util.fixEmptyAndTrim(androidWrapper.emulatorHostLabel) == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Discards the cached resources of the given node, or of all nodes if {@code null}. */
+    static void invalidate(String nodeName) {
+        if (nodeName == null) {
+            nodeResources.clear();
+        } else {
+            nodeResources.remove(nodeName);
+        }
+    }
+
+    /** @return The number of CPU cores and megabytes of memory of the node, or {@code null} if unknown. */
+    private static long[] getResources(Node node) {
+        long[] resources = nodeResources.get(node.getNodeName());
+        if (resources != null) {
+            return resources;
+        }
+
+        final Computer computer = node.toComputer();
+        final VirtualChannel channel = computer == null ? null : computer.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        try {
+            resources = channel.call(new ResourceProbeTask());
+            nodeResources.put(node.getNodeName(), resources);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not determine resources of " + node.getNodeName(), e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.FINE, "Interrupted while determining resources of " + node.getNodeName(), e);
+        }
+        return resources;
+    }
+
+    /** Determines the number of CPU cores, and the megabytes of physical memory (or zero if unknown). */
+    private static final class ResourceProbeTask extends MasterToSlaveCallable<long[], IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        public long[] call() {
+            long memoryMb = 0;
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                long bytes = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+                memoryMb = bytes / (1024 * 1024);
+            }
+            return new long[] { Runtime.getRuntime().availableProcessors(), memoryMb };
+        }
+    }
+
+}
@@ -9,6 +9,11 @@ import hudson.model.TaskListener;
 import hudson.plugins.android_emulator.AndroidEmulator.HardwareProperty;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.sdk.Tool;
+import hudson.plugins.android_emulator.util.FileCloner;
+import hudson.plugins.android_emulator.util.ImagePrefetcher;
+import hudson.plugins.android_emulator.util.IniFile;
+import hudson.plugins.android_emulator.util.SdCardImage;
+import hudson.plugins.android_emulator.util.SnapshotImage;
 import hudson.plugins.android_emulator.util.Utils;
 import hudson.remoting.Callable;
 import hudson.util.ArgumentListBuilder;
@@ -16,21 +21,30 @@ import hudson.util.StreamCopyThread;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.PushbackInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SerializationUtils;
 
 class EmulatorConfig implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /** Images in an AVD directory which the emulator never writes to. */
+    private static final List<String> READ_ONLY_AVD_IMAGES = Arrays.asList("userdata.img", "system.img",
+            "ramdisk.img");
+
     private String avdName;
     private AndroidPlatform osVersion;
     private ScreenDensity screenDensity;
@@ -39,12 +53,17 @@ class EmulatorConfig implements Serializable {
     private String sdCardSize;
     private String targetAbi;
     private boolean wipeData;
-    private final boolean showWindow;
+    private boolean showWindow;
     private final boolean useSnapshots;
     private final String commandLineOptions;
     private final String androidSdkHome;
     private final String executable;
     private final String avdNameSuffix;
+    private EmulatorRamDisk.Stage ramDiskStage;
+    private boolean userDataReset;
+
+    /** Name of the throwaway clone of this AVD that is being run instead of the AVD itself, if any. */
+    private String cloneName;
 
     private EmulatorConfig(String avdName, boolean wipeData, boolean showWindow,
             boolean useSnapshots, String commandLineOptions, String androidSdkHome, String executable, String
@@ -141,6 +160,14 @@ class EmulatorConfig implements Serializable {
     }
 
     public String getAvdName() {
+        if (cloneName != null) {
+            return cloneName;
+        }
+        return getGoldenAvdName();
+    }
+
+    /** @return The name of the AVD itself, even if a clone of it is being run. */
+    public String getGoldenAvdName() {
         if (isNamedEmulator()) {
             return avdName;
         }
@@ -206,6 +233,11 @@ class EmulatorConfig implements Serializable {
         return wipeData;
     }
 
+    /** Marks that the user data has already been reset, so the emulator doesn't need to wipe it. */
+    public void setUserDataReset() {
+        userDataReset = true;
+    }
+
     public boolean shouldShowWindow() {
         return showWindow;
     }
@@ -214,6 +246,61 @@ class EmulatorConfig implements Serializable {
         return useSnapshots;
     }
 
+    /** @return Whether the AVDs for this configuration are kept in a job workspace. */
+    public boolean isWorkspaceLocal() {
+        return androidSdkHome != null;
+    }
+
+    /** @return Whether a clone of the AVD is being run, rather than the AVD itself. */
+    public boolean isClone() {
+        return cloneName != null;
+    }
+
+    /**
+     * Switches this configuration to run the given clone of the AVD, as created by
+     * {@link #getAvdCloneTask(String, BuildListener)}.
+     */
+    public void setCloneName(String cloneName) {
+        this.cloneName = cloneName;
+    }
+
+    /**
+     * Creates a copy of this configuration which refers to the AVD itself, rather than any clone of it.
+     *
+     * @return A new configuration instance.
+     */
+    public EmulatorConfig copyForGoldenAvd() {
+        EmulatorConfig copy = (EmulatorConfig) SerializationUtils.clone(this);
+        copy.cloneName = null;
+        copy.ramDiskStage = null;
+        return copy;
+    }
+
+    public EmulatorRamDisk.Stage getRamDiskStage() {
+        return ramDiskStage;
+    }
+
+    public void setRamDiskStage(EmulatorRamDisk.Stage ramDiskStage) {
+        this.ramDiskStage = ramDiskStage;
+    }
+
+    /**
+     * Creates a copy of this configuration for booting the emulator from scratch, in the background,
+     * in order to create a new snapshot.  Anything specific to the build that this instance was used
+     * for is reset.
+     *
+     * @return A new configuration instance.
+     */
+    public EmulatorConfig copyForSnapshotRegeneration() {
+        EmulatorConfig copy = (EmulatorConfig) SerializationUtils.clone(this);
+        copy.wipeData = true;
+        copy.showWindow = false;
+        copy.ramDiskStage = null;
+        copy.userDataReset = false;
+        copy.cloneName = null;
+        return copy;
+    }
+
     public Tool getExecutable() {
         for (Tool t : Tool.EMULATORS) {
             if (t.executable.equals(executable)) {
@@ -227,34 +314,110 @@ class EmulatorConfig implements Serializable {
      * Gets a task that ensures that an Android AVD exists for this instance's configuration.
      *
      * @param androidSdk  The Android SDK to use.
+     * @param hardwareProperties  The hardware properties to update the AVD with.
      * @param listener The listener to use for logging.
      * @return A Callable that will handle the detection/creation of an appropriate AVD.
      */
     public Callable<Boolean, AndroidEmulatorException> getEmulatorCreationTask(AndroidSdk androidSdk,
-                                                                               BuildListener listener) {
-        return new EmulatorCreationTask(androidSdk, listener);
+            HardwareProperty[] hardwareProperties, BuildListener listener) {
+        return new EmulatorCreationTask(androidSdk, hardwareProperties, listener);
     }
 
     /**
-     * Gets a task that updates the hardware properties of the AVD for this instance.
+     * Gets a task that writes an empty emulator auth file to the machine where the AVD will run.
      *
+     * @return A Callable that will write an empty auth file.
+     */
+    public Callable<Void, IOException> getEmulatorAuthFileTask() {
+        return new EmulatorAuthFileTask();
+    }
+
+    /**
+     * Gets a task that resets the user data of this AVD by cloning its pristine user data image.
      *
-     * @param hardwareProperties  The hardware properties to update the AVD with.
+     * @param androidSdk The Android SDK to use.
      * @param listener The listener to use for logging.
-     * @return A Callable that will update the config of the current AVD.
+     * @return A Callable that returns {@code true} if the user data was reset.
      */
-    public Callable<Void, IOException> getEmulatorConfigTask(HardwareProperty[] hardwareProperties,
-                                                             BuildListener listener) {
-        return new EmulatorConfigTask(hardwareProperties, listener);
+    public Callable<Boolean, IOException> getUserDataResetTask(AndroidSdk androidSdk, BuildListener listener) {
+        return new UserDataResetTask(androidSdk.getSdkRoot(), listener);
     }
 
     /**
-     * Gets a task that writes an empty emulator auth file to the machine where the AVD will run.
+     * Gets a task that creates a throwaway clone of this AVD, which can be run at the same time as other
+     * clones of the same AVD.
      *
-     * @return A Callable that will write an empty auth file.
+     * @param cloneName The AVD name to give the clone.
+     * @param listener The listener to use for logging.
+     * @return A Callable that returns {@code true} if the images could be cloned without copying them.
      */
-    public Callable<Void, IOException> getEmulatorAuthFileTask() {
-        return new EmulatorAuthFileTask();
+    public Callable<Boolean, IOException> getAvdCloneTask(String cloneName, BuildListener listener) {
+        return new AvdCloneTask(cloneName, listener);
+    }
+
+    /**
+     * Gets a task that copies the writable images of this AVD to a RAM disk, if there is room.
+     *
+     * @param ramDiskDirectory Directory on a RAM-backed filesystem in which to stage the images.
+     * @param budgetMb Maximum number of megabytes that all staged AVDs on the machine may use.
+     * @param includeSnapshots Whether the snapshot image should also be staged.
+     * @param listener The listener to use for logging.
+     * @return A Callable that will return the staged images, or {@code null} if not staged.
+     */
+    public Callable<EmulatorRamDisk.Stage, IOException> getRamDiskStagingTask(String ramDiskDirectory,
+            int budgetMb, boolean includeSnapshots, BuildListener listener) {
+        return new RamDiskStagingTask(ramDiskDirectory, budgetMb, includeSnapshots, listener);
+    }
+
+    /**
+     * Gets a task that discards the images previously staged on a RAM disk for this instance.
+     *
+     * @return A Callable that will delete the staged images.
+     */
+    public Callable<Void, IOException> getRamDiskReleaseTask() {
+        return new RamDiskReleaseTask();
+    }
+
+    /**
+     * Gets a task that reads the system and AVD images that the emulator will use into the page cache.
+     *
+     * @param androidSdk The Android SDK to use.
+     * @param includeSnapshots Whether the snapshot image should also be read.
+     * @return A Callable that will return statistics about the files read.
+     */
+    public Callable<ImagePrefetcher.Result, IOException> getImagePrefetchTask(AndroidSdk androidSdk,
+            boolean includeSnapshots) {
+        return new ImagePrefetchTask(androidSdk.getSdkRoot(), includeSnapshots);
+    }
+
+    /**
+     * Gets a task that determines whether this AVD's snapshot is usable, i.e. has not been marked bad.
+     *
+     * @return A Callable that returns {@code true} if the snapshot has not been marked bad.
+     */
+    public Callable<Boolean, IOException> getSnapshotHealthTask() {
+        return new SnapshotMarkerTask(null);
+    }
+
+    /**
+     * Gets a task that marks this AVD's snapshot as bad (i.e. it could not be booted), or as good.
+     *
+     * @param bad Whether the snapshot should be marked as bad.
+     * @return A Callable that returns {@code true} if the snapshot is now marked as good.
+     */
+    public Callable<Boolean, IOException> getSnapshotMarkTask(boolean bad) {
+        return new SnapshotMarkerTask(bad);
+    }
+
+    /**
+     * Gets a task that replaces this AVD's snapshot image with an empty one, so that any existing
+     * "jenkins" snapshot is gone before a new one is saved.
+     *
+     * @param androidSdk The Android SDK, which provides the empty snapshot image.
+     * @return A Callable that returns {@code true} if the snapshot image was reset.
+     */
+    public Callable<Boolean, IOException> getSnapshotResetTask(AndroidSdk androidSdk) {
+        return new SnapshotResetTask(androidSdk.getSdkRoot());
     }
 
     /**
@@ -285,46 +448,78 @@ class EmulatorConfig implements Serializable {
         return new File(getAvdDirectory(homeDir), "config.ini");
     }
 
-    private Map<String,String> parseAvdConfigFile(File homeDir) throws IOException {
-        File configFile = getAvdConfigFile(homeDir);
-        return Utils.parseConfigFile(configFile);
+    /**
+     * Gets the system image directories listed in an AVD's config, in the order the emulator searches them.
+     *
+     * @param config The AVD's config values.
+     * @param sdkRoot Root of the Android SDK, against which relative paths are resolved; if {@code null},
+     *                only absolute paths are returned.
+     */
+    private static List<File> getSystemImageDirectories(Map<String, String> config, String sdkRoot) {
+        final List<File> directories = new ArrayList<File>();
+        for (int i = 1; i <= 2; i++) {
+            String sysDir = config.get("image.sysdir." + i);
+            if (sysDir == null) {
+                continue;
+            }
+            File dir = new File(sysDir);
+            if (!dir.isAbsolute()) {
+                if (sdkRoot == null) {
+                    continue;
+                }
+                dir = new File(sdkRoot, sysDir);
+            }
+            directories.add(dir);
+        }
+        return directories;
     }
 
-    private void writeAvdConfigFile(File homeDir, Map<String,String> values) throws FileNotFoundException {
-        StringBuilder sb = new StringBuilder();
-
-        for (String key : values.keySet()) {
-            sb.append(key);
-            sb.append("=");
-            sb.append(values.get(key));
-            sb.append("\r\n");
+    /**
+     * Finds the pristine user data image which the emulator copies when wiping data.  This is the
+     * AVD's own copy if it has one, otherwise the original in its system image directory.
+     *
+     * @return The image, or {@code null} if none could be found.
+     */
+    private static File getInitialUserData(File avdDirectory, Map<String, String> config, String sdkRoot) {
+        final File avdUserData = new File(avdDirectory, "userdata.img");
+        if (avdUserData.isFile()) {
+            return avdUserData;
         }
-
-        File configFile = new File(getAvdDirectory(homeDir), "config.ini");
-        PrintWriter out = new PrintWriter(configFile);
-        out.print(sb.toString());
-        out.flush();
-        out.close();
+        for (File dir : getSystemImageDirectories(config, sdkRoot)) {
+            File userData = new File(dir, "userdata.img");
+            if (userData.isFile()) {
+                return userData;
+            }
+        }
+        return null;
     }
 
     /**
-     * Sets or overwrites a key-value pair in the AVD config file.
+     * Applies the given key-value pairs to the AVD config file, in a single write.  The file is
+     * left untouched if it already has all of the given values.
      *
      * @param homeDir AVD home directory.
-     * @param key Key to set.
-     * @param value Value to set.
+     * @param changes Keys and values to set.
      * @throws EmulatorCreationException If reading or writing the file failed.
      */
-    private void setAvdConfigValue(File homeDir, String key, String value)
+    private void updateAvdConfigFile(File homeDir, Map<String, String> changes)
             throws EmulatorCreationException {
-        Map<String, String> configValues;
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        final IniFile config;
         try {
-            configValues = parseAvdConfigFile(homeDir);
-            configValues.put(key, value);
-            writeAvdConfigFile(homeDir, configValues);
+            config = IniFile.load(getAvdConfigFile(homeDir));
         } catch (IOException e) {
             throw new EmulatorCreationException(Messages.AVD_CONFIG_NOT_READABLE(), e);
         }
+        config.setAll(changes);
+        try {
+            config.save();
+        } catch (IOException e) {
+            throw new EmulatorCreationException(Messages.AVD_CONFIG_NOT_WRITEABLE(), e);
+        }
     }
 
     /**
@@ -375,8 +570,13 @@ class EmulatorConfig implements Serializable {
             sb.append(" -no-snapshot-save");
         }
 
+        // Use copies of the writable images on a RAM disk, if they were staged
+        if (ramDiskStage != null) {
+            sb.append(ramDiskStage.getCommandArguments());
+        }
+
         // Options
-        if (shouldWipeData()) {
+        if (shouldWipeData() && !userDataReset) {
             sb.append(" -wipe-data");
         }
         if (!shouldShowWindow()) {
@@ -400,7 +600,18 @@ class EmulatorConfig implements Serializable {
             throws IOException, InterruptedException {
         final PrintStream logger = launcher.getListener().getLogger();
 
-        // List available snapshots for this emulator
+        // Read the snapshot table directly from the AVD if we can, rather than starting the emulator
+        final List<SnapshotImage.Snapshot> snapshots = launcher.getChannel().call(new SnapshotListTask());
+        if (snapshots != null) {
+            for (SnapshotImage.Snapshot snapshot : snapshots) {
+                if (snapshot.getName().equals(Constants.SNAPSHOT_NAME) && snapshot.getVmStateSize() > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Otherwise, list available snapshots for this emulator
         ByteArrayOutputStream listOutput = new ByteArrayOutputStream();
         String args = String.format("-snapshot-list -no-window -avd %s", getAvdName());
         Tool executable = androidSdk.requiresAndroidBug34233Workaround() ? Tool.EMULATOR_ARM : Tool.EMULATOR;
@@ -421,12 +632,15 @@ class EmulatorConfig implements Serializable {
 
         private static final long serialVersionUID = 1L;
         private final AndroidSdk androidSdk;
+        private final HardwareProperty[] hardwareProperties;
 
         private final BuildListener listener;
         private transient PrintStream logger;
 
-        public EmulatorCreationTask(AndroidSdk androidSdk, BuildListener listener) {
+        public EmulatorCreationTask(AndroidSdk androidSdk, HardwareProperty[] hardwareProperties,
+                BuildListener listener) {
             this.androidSdk = androidSdk;
+            this.hardwareProperties = hardwareProperties;
             this.listener = listener;
         }
 
@@ -435,7 +649,25 @@ class EmulatorConfig implements Serializable {
                 logger = listener.getLogger();
             }
 
+            // Collect every change to the AVD's config, so that the file is written at most once
+            final Map<String, String> configChanges = new LinkedHashMap<String, String>();
+            if (hardwareProperties.length != 0) {
+                AndroidEmulator.log(logger, Messages.SETTING_HARDWARE_PROPERTIES());
+                for (HardwareProperty prop : hardwareProperties) {
+                    AndroidEmulator.log(logger, String.format("%s: %s", prop.key, prop.value), true);
+                    configChanges.put(prop.key, prop.value);
+                }
+            }
+
             final File homeDir = Utils.getHomeDirectory(androidSdk.getSdkHome());
+            final boolean emulatorExisted = createOrUpdateAvd(homeDir, configChanges);
+            updateAvdConfigFile(homeDir, configChanges);
+            AvdCache.touch(getAvdDirectory(homeDir));
+            return emulatorExisted;
+        }
+
+        private boolean createOrUpdateAvd(File homeDir, Map<String, String> configChanges)
+                throws EmulatorCreationException, EmulatorDiscoveryException {
             final File avdDirectory = getAvdDirectory(homeDir);
             final boolean emulatorExists = getAvdConfigFile(homeDir).exists();
 
@@ -494,18 +726,16 @@ class EmulatorConfig implements Serializable {
                 Util.copyFile(new File(snapshotDir, "snapshots.img"), snapshotsFile);
 
                 // Update the AVD config file mark snapshots as enabled
-                setAvdConfigValue(homeDir, "snapshot.present", "true");
+                configChanges.put("snapshot.present", "true");
             }
 
             // If we need create an SD card for an existing emulator, do so
             if (createSdCard) {
                 AndroidEmulator.log(logger, Messages.ADDING_SD_CARD(sdCardSize, getAvdName()));
-                if (!createSdCard(homeDir)) {
-                    throw new EmulatorCreationException(Messages.SD_CARD_CREATION_FAILED());
-                }
+                createSdCard(homeDir);
 
                 // Update the AVD config file
-                setAvdConfigValue(homeDir, "sdcard.size", sdCardSize);
+                configChanges.put("sdcard.size", sdCardSize);
             }
 
             // Return if everything is now ready for use
@@ -513,6 +743,26 @@ class EmulatorConfig implements Serializable {
                 return true;
             }
 
+            // Write the AVD ourselves if we can find everything it needs, as that's much quicker
+            final long start = System.currentTimeMillis();
+            final AvdWriter writer = AvdWriter.resolve(sdkRoot, osVersion, targetAbi);
+            if (writer != null) {
+                try {
+                    writer.write(getAvdHome(homeDir), getAvdName(), screenResolution, screenDensity, sdCardSize,
+                            androidSdk.supportsSnapshots(), isWorkspaceLocal(), configChanges);
+                } catch (IOException e) {
+                    throw new EmulatorCreationException(Messages.AVD_WRITE_FAILED(), e);
+                }
+                if (sdCardSize != null) {
+                    AndroidEmulator.log(logger, Messages.ADDING_SD_CARD(sdCardSize, getAvdName()));
+                    createSdCard(homeDir);
+                }
+                AndroidEmulator.log(logger, Messages.AVD_WRITTEN(writer.getImageDescription(),
+                        System.currentTimeMillis() - start));
+                return false;
+            }
+            AndroidEmulator.log(logger, Messages.AVD_WRITER_UNSUPPORTED(osVersion.getTargetName()));
+
             // Build up basic arguments to `android` command
             final StringBuilder args = new StringBuilder(100);
             args.append("create avd ");
@@ -525,11 +775,6 @@ class EmulatorConfig implements Serializable {
                 args.append("-a ");
             }
 
-            if (sdCardSize != null) {
-                args.append("-c ");
-                args.append(sdCardSize);
-                args.append(" ");
-            }
             args.append("-s ");
             args.append(screenResolution.getSkinName());
             args.append(" -n ");
@@ -636,7 +881,7 @@ class EmulatorConfig implements Serializable {
             }
 
             // Set the screen density
-            setAvdConfigValue(homeDir, "hw.lcd.density", String.valueOf(getScreenDensity().getDpi()));
+            configChanges.put("hw.lcd.density", String.valueOf(getScreenDensity().getDpi()));
 
             // Check everything went ok
             if (!avdCreated) {
@@ -646,98 +891,390 @@ class EmulatorConfig implements Serializable {
                 throw new EmulatorCreationException(Messages.AVD_CREATION_FAILED());
             }
 
+            // The tool copies the initial user data into the AVD, but workspaces should only hold
+            // what the emulator writes to; it'll find the original in the system image directory
+            if (isWorkspaceLocal()) {
+                removeUserDataCopy(avdDirectory, sdkRoot);
+            }
+
+            // The SD card is left to us, rather than having the tool run `mksdcard`
+            if (sdCardSize != null) {
+                AndroidEmulator.log(logger, Messages.ADDING_SD_CARD(sdCardSize, getAvdName()));
+                createSdCard(homeDir);
+                configChanges.put("sdcard.size", sdCardSize);
+            }
+
             // Done!
             return false;
         }
 
-        private boolean createSdCard(File homeDir) {
-            // Build command: mksdcard 32M /home/foo/.android/avd/whatever.avd/sdcard.img
-            ArgumentListBuilder builder = Utils.getToolCommand(androidSdk, !Functions.isWindows(), Tool.MKSDCARD, null);
-            builder.add(sdCardSize);
-            builder.add(new File(getAvdDirectory(homeDir), "sdcard.img"));
+        /** Deletes the AVD's copy of the initial user data image, if it's identical to the original. */
+        private void removeUserDataCopy(File avdDirectory, File sdkRoot) {
+            final File copy = new File(avdDirectory, "userdata.img");
+            try {
+                final Map<String, String> config = Utils.parseConfigFile(new File(avdDirectory, "config.ini"));
+                for (File sysDir : getSystemImageDirectories(config, sdkRoot.getAbsolutePath())) {
+                    File original = new File(sysDir, "userdata.img");
+                    // Compare the content, as the AVD may have been given a different image of the same size
+                    if (original.isFile() && FileUtils.contentEquals(original, copy)) {
+                        copy.delete();
+                        return;
+                    }
+                }
+            } catch (IOException ignore) {
+                // Leave the copy in place; it's only wasted space
+            }
+        }
 
-            // Run!
+        private void createSdCard(File homeDir) throws EmulatorCreationException {
+            final File sdCardFile = new File(getAvdDirectory(homeDir), "sdcard.img");
             try {
-                ProcessBuilder procBuilder = new ProcessBuilder(builder.toList());
-                if (androidSdkHome != null) {
-                    procBuilder.environment().put("ANDROID_SDK_HOME", androidSdkHome);
+                SdCardImage.create(sdCardFile, SdCardImage.parseSize(sdCardSize));
+            } catch (IOException e) {
+                sdCardFile.delete();
+                throw new EmulatorCreationException(Messages.SD_CARD_CREATION_FAILED(e.getMessage()), e);
+            }
+        }
+    }
+
+    /** Writes an empty emulator auth file. */
+    private final class EmulatorAuthFileTask extends MasterToSlaveCallable<Void, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        public Void call() throws IOException {
+            // Create an empty auth file to prevent the emulator telnet interface from requiring authentication
+            final File userHome = Utils.getHomeDirectory();
+            if (userHome != null) {
+                try {
+                    FilePath authFile = new FilePath(userHome).child(".emulator_console_auth_token");
+                    authFile.write("", "UTF-8");
+                } catch (IOException e) {
+                    throw new IOException(String.format("Failed to write auth file to %s.", userHome, e));
+                } catch (InterruptedException e) {
+                    throw new IOException(String.format("Interrupted while writing auth file to %s.", userHome, e));
                 }
-                procBuilder.start().waitFor();
-            } catch (InterruptedException ex) {
-                return false;
-            } catch (IOException ex) {
+            }
+
+            return null;
+        }
+
+    }
+
+    /**
+     * A task that resets the user data of this AVD without copying the whole image.
+     * <p>
+     * The AVD's "userdata.img" is never written to by the emulator, so we keep it as the pristine
+     * copy, and replace "userdata-qemu.img" with a copy-on-write clone of it.  Workspace AVDs have no
+     * copy of their own, so the system image's original is used instead.  If the filesystem
+     * doesn't support this, we return {@code false} and leave it up to the emulator to wipe the data.
+     * </p>
+     */
+    private final class UserDataResetTask extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String sdkRoot;
+        private final BuildListener listener;
+        private transient PrintStream logger;
+
+        public UserDataResetTask(String sdkRoot, BuildListener listener) {
+            this.sdkRoot = sdkRoot;
+            this.listener = listener;
+        }
+
+        public Boolean call() throws IOException {
+            if (logger == null) {
+                logger = listener.getLogger();
+            }
+
+            final File avdDirectory = getAvdDirectory(Utils.getHomeDirectory(androidSdkHome));
+            final Map<String, String> config = Utils.parseConfigFile(new File(avdDirectory, "config.ini"));
+            final File pristineData = getInitialUserData(avdDirectory, config, sdkRoot);
+            final File userData = new File(avdDirectory, "userdata-qemu.img");
+            if (pristineData == null || !FileCloner.reflink(pristineData, userData)) {
                 return false;
             }
 
+            // The emulator also starts with an empty cache partition when wiping data
+            new File(avdDirectory, "cache.img").delete();
+            AndroidEmulator.log(logger, Messages.USER_DATA_RESET_FROM_CLONE());
             return true;
         }
     }
 
     /**
-     * A task that updates the hardware properties of this AVD config.
-     *
-     * Throws an IOException if the AVD's config could not be read or written.
+     * A task that clones this AVD under a new name.  Images which the emulator only ever reads are
+     * hard-linked, while others are cloned copy-on-write where the filesystem supports it, or copied.
      */
-    private final class EmulatorConfigTask extends MasterToSlaveCallable<Void, IOException> {
+    private final class AvdCloneTask extends MasterToSlaveCallable<Boolean, IOException> {
 
         private static final long serialVersionUID = 1L;
 
-        private final HardwareProperty[] hardwareProperties;
+        private final String cloneName;
         private final BuildListener listener;
         private transient PrintStream logger;
 
-        public EmulatorConfigTask(HardwareProperty[] hardwareProperties, BuildListener listener) {
-            this.hardwareProperties = hardwareProperties;
+        public AvdCloneTask(String cloneName, BuildListener listener) {
+            this.cloneName = cloneName;
             this.listener = listener;
         }
 
-        public Void call() throws IOException {
+        public Boolean call() throws IOException {
             if (logger == null) {
                 logger = listener.getLogger();
             }
 
-            final File homeDir = Utils.getHomeDirectory(androidSdkHome);
+            final File avdHome = getAvdHome(Utils.getHomeDirectory(androidSdkHome));
+            final File goldenDirectory = new File(avdHome, getGoldenAvdName() + ".avd");
+            final File cloneDirectory = new File(avdHome, cloneName + ".avd");
 
-            // Parse the AVD's config
-            Map<String, String> configValues;
-            configValues = parseAvdConfigFile(homeDir);
+            // Start afresh, in case a previous clone of the same name wasn't cleaned up
+            try {
+                Util.deleteRecursive(cloneDirectory);
+            } catch (IOException ignore) {
+            }
+            final boolean cheap;
+            try {
+                cheap = cloneDirectory(goldenDirectory, cloneDirectory);
+            } catch (IOException e) {
+                // Don't leave a partial copy taking up space
+                try {
+                    Util.deleteRecursive(cloneDirectory);
+                } catch (IOException ignore) {
+                }
+                throw e;
+            }
 
-            // Insert any hardware properties we want to override
-            AndroidEmulator.log(logger, Messages.SETTING_HARDWARE_PROPERTIES());
-            for (HardwareProperty prop : hardwareProperties) {
-                AndroidEmulator.log(logger, String.format("%s: %s", prop.key, prop.value), true);
-                configValues.put(prop.key, prop.value);
+            // Write the metadata file which tells the emulator where the clone lives
+            Map<String, String> metadata = Utils.parseConfigFile(new File(avdHome, getGoldenAvdName() + ".ini"));
+            metadata.put("path", cloneDirectory.getAbsolutePath());
+            if (metadata.containsKey("path.rel")) {
+                metadata.put("path.rel", "avd" + File.separator + cloneDirectory.getName());
+            }
+            PrintWriter out = new PrintWriter(new File(avdHome, cloneName + ".ini"));
+            try {
+                for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                    out.print(entry.getKey() + "=" + entry.getValue() + "\r\n");
+                }
+            } finally {
+                out.close();
             }
 
-            // Update config file
-            writeAvdConfigFile(homeDir, configValues);
+            AndroidEmulator.log(logger, Messages.AVD_CLONED(getGoldenAvdName(), cloneName,
+                    cheap ? "" : Messages.AVD_CLONE_COPIED()));
+            return cheap;
+        }
 
-            return null;
+        /** @return {@code true} if no file had to be copied in full. */
+        private boolean cloneDirectory(File source, File target) throws IOException {
+            if (!target.mkdirs()) {
+                throw new IOException(Messages.AVD_CLONE_FAILED(target));
+            }
+            File[] files = source.listFiles();
+            if (files == null) {
+                throw new IOException(Messages.AVD_CLONE_FAILED(source));
+            }
+
+            boolean cheap = true;
+            for (File file : files) {
+                final String name = file.getName();
+                // Lock files and runtime config belong to whichever emulator is running the original
+                if (name.endsWith(".lock") || name.equals("hardware-qemu.ini")) {
+                    continue;
+                }
+                final File copy = new File(target, name);
+                if (file.isDirectory()) {
+                    cheap &= cloneDirectory(file, copy);
+                } else if (READ_ONLY_AVD_IMAGES.contains(name) && FileCloner.hardlink(file, copy)) {
+                    continue;
+                } else if (!FileCloner.reflink(file, copy)) {
+                    // The images are mostly empty, so only the blocks actually used are worth copying
+                    cheap &= FileCloner.copySparse(file, copy) < 1024 * 1024;
+                }
+            }
+            return cheap;
         }
     }
 
-    /** Writes an empty emulator auth file. */
-    private final class EmulatorAuthFileTask extends MasterToSlaveCallable<Void, IOException> {
+    /** A task that stages the writable images of this AVD on a RAM disk. */
+    private final class RamDiskStagingTask extends MasterToSlaveCallable<EmulatorRamDisk.Stage, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String ramDiskDirectory;
+        private final int budgetMb;
+        private final boolean includeSnapshots;
+        private final BuildListener listener;
+        private transient PrintStream logger;
+
+        public RamDiskStagingTask(String ramDiskDirectory, int budgetMb, boolean includeSnapshots,
+                BuildListener listener) {
+            this.ramDiskDirectory = ramDiskDirectory;
+            this.budgetMb = budgetMb;
+            this.includeSnapshots = includeSnapshots;
+            this.listener = listener;
+        }
+
+        public EmulatorRamDisk.Stage call() throws IOException {
+            if (logger == null) {
+                logger = listener.getLogger();
+            }
+
+            // With no explicit budget, we're only limited by the free space on the RAM disk
+            final long budget = budgetMb > 0 ? budgetMb * 1024L * 1024L : Long.MAX_VALUE;
+            final File homeDir = Utils.getHomeDirectory(androidSdkHome);
+            return EmulatorRamDisk.stage(getAvdDirectory(homeDir), new File(ramDiskDirectory), budget,
+                    shouldWipeData(), includeSnapshots, logger);
+        }
+    }
+
+    /** A task that discards the RAM disk copies of this AVD's images. */
+    private final class RamDiskReleaseTask extends MasterToSlaveCallable<Void, IOException> {
 
         private static final long serialVersionUID = 1L;
 
         public Void call() throws IOException {
-            // Create an empty auth file to prevent the emulator telnet interface from requiring authentication
-            final File userHome = Utils.getHomeDirectory();
-            if (userHome != null) {
-                try {
-                    FilePath authFile = new FilePath(userHome).child(".emulator_console_auth_token");
-                    authFile.write("", "UTF-8");
-                } catch (IOException e) {
-                    throw new IOException(String.format("Failed to write auth file to %s.", userHome, e));
-                } catch (InterruptedException e) {
-                    throw new IOException(String.format("Interrupted while writing auth file to %s.", userHome, e));
+            if (ramDiskStage != null) {
+                EmulatorRamDisk.release(ramDiskStage);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A task that reads the images required to boot this AVD, so that the emulator doesn't have to
+     * read them in via random access while booting.
+     */
+    private final class ImagePrefetchTask extends MasterToSlaveCallable<ImagePrefetcher.Result, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String sdkRoot;
+        private final boolean includeSnapshots;
+
+        public ImagePrefetchTask(String sdkRoot, boolean includeSnapshots) {
+            this.sdkRoot = sdkRoot;
+            this.includeSnapshots = includeSnapshots;
+        }
+
+        public ImagePrefetcher.Result call() throws IOException {
+            final File avdDirectory = getAvdDirectory(Utils.getHomeDirectory(androidSdkHome));
+            final Map<String, String> config = Utils.parseConfigFile(new File(avdDirectory, "config.ini"));
+            List<File> files = new ArrayList<File>();
+
+            // The kernel, ramdisk and system images, from each of the system image directories
+            for (File dir : getSystemImageDirectories(config, sdkRoot)) {
+                File[] images = dir.listFiles();
+                if (images == null) {
+                    continue;
+                }
+                for (File image : images) {
+                    if (image.getName().endsWith(".img") || image.getName().startsWith("kernel-")) {
+                        files.add(image);
+                    }
                 }
             }
 
-            return null;
+            // The AVD's own images; the SD card is left out, as little of it is touched while booting
+            final File initialUserData = getInitialUserData(avdDirectory, config, sdkRoot);
+            if (!shouldWipeData()) {
+                files.add(new File(avdDirectory, "userdata-qemu.img"));
+            } else if (initialUserData != null) {
+                files.add(initialUserData);
+            }
+            files.add(new File(avdDirectory, "cache.img"));
+            if (includeSnapshots) {
+                files.add(new File(avdDirectory, "snapshots.img"));
+            }
+
+            return ImagePrefetcher.prefetch(files);
         }
+    }
+
+    /**
+     * A task that lists the snapshots in this AVD's snapshot image.
+     * <p>
+     * Returns {@code null} if the snapshots are stored in a way we don't understand, in which case
+     * the emulator must be asked instead.
+     * </p>
+     */
+    private final class SnapshotListTask extends MasterToSlaveCallable<List<SnapshotImage.Snapshot>, IOException> {
 
+        private static final long serialVersionUID = 1L;
+
+        public List<SnapshotImage.Snapshot> call() throws IOException {
+            final File avdDirectory = getAvdDirectory(Utils.getHomeDirectory(androidSdkHome));
+            final File image = new File(avdDirectory, "snapshots.img");
+            if (image.exists()) {
+                return SnapshotImage.read(image);
+            }
+
+            // Newer emulators keep each snapshot in its own directory instead
+            if (new File(avdDirectory, "snapshots").isDirectory()) {
+                return null;
+            }
+            return new ArrayList<SnapshotImage.Snapshot>();
+        }
+    }
+
+    /**
+     * A task that queries or updates the marker file which records that this AVD's snapshot failed
+     * to boot, and is due to be regenerated.
+     */
+    private final class SnapshotMarkerTask extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Whether to mark the snapshot as bad, or {@code null} to leave the marker as-is. */
+        private final Boolean markBad;
+
+        public SnapshotMarkerTask(Boolean markBad) {
+            this.markBad = markBad;
+        }
+
+        public Boolean call() throws IOException {
+            final File marker = new File(getAvdDirectory(Utils.getHomeDirectory(androidSdkHome)),
+                    Constants.SNAPSHOT_NAME + "-snapshot.bad");
+            if (markBad != null) {
+                if (markBad) {
+                    marker.createNewFile();
+                } else {
+                    marker.delete();
+                }
+            }
+            return !marker.exists();
+        }
+    }
+
+    /** A task that replaces the snapshot image of the AVD with the empty one from the SDK. */
+    private final class SnapshotResetTask extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String sdkRoot;
+
+        public SnapshotResetTask(String sdkRoot) {
+            this.sdkRoot = sdkRoot;
+        }
+
+        public Boolean call() throws IOException {
+            if (sdkRoot == null) {
+                return false;
+            }
+            final File emptyImage = new File(sdkRoot, "tools/lib/emulator/snapshots.img");
+            if (!emptyImage.isFile()) {
+                return false;
+            }
+
+            // Delete rather than overwrite, in case the image is shared with a clone via a hard link
+            final File image = new File(getAvdDirectory(Utils.getHomeDirectory(androidSdkHome)), "snapshots.img");
+            if (image.exists() && !image.delete()) {
+                return false;
+            }
+            Util.copyFile(emptyImage, image);
+            return true;
+        }
     }
 
     /** A task that deletes the AVD corresponding to our local state. */
@@ -0,0 +1,327 @@
+package hudson.plugins.android_emulator;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of which emulator configurations are in use on each node, so that the
+ * {@link TaskDispatcher} can check for conflicting builds without looking at every executor, and
+ * caches the node environments that emulator configurations are expanded with.  It also counts the
+ * emulators running on each node, for {@link EmulatorCapacity}, and tells {@link AvdCache} which AVDs
+ * it must not evict.
+ * <p>
+ * Builds are added to the index when they start and removed once they're finalised, i.e. for the
+ * same duration that they would occupy an executor.  Emulators are recorded against the node they
+ * run on: for builds using a dedicated emulator host, that's only known once the build has been
+ * assigned a host, via {@link #assignEmulatorHost}.
+ * </p>
+ */
+public final class EmulatorConfigIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(EmulatorConfigIndex.class.getName());
+
+    /**
+     * How long a cached node environment may be used for.  Changes to node configuration invalidate
+     * the cache immediately, but changes to an agent's own environment can't be detected.
+     */
+    private static final long ENVIRONMENT_CACHE_MS = 10 * 60 * 1000;
+
+    /** Cached environment for each node, by node name. */
+    private static final ConcurrentMap<String, CachedEnvironment> environments =
+            new ConcurrentHashMap<String, CachedEnvironment>();
+
+    /** Number of running emulators using each emulator configuration hash, by the name of the node they run on. */
+    private static final Map<String, Map<String, Integer>> runningHashes = new HashMap<String, Map<String, Integer>>();
+
+    /** The emulator recorded for each running build, keyed by the build. */
+    private static final Map<Object, RunningEmulator> runningBuilds = new HashMap<Object, RunningEmulator>();
+
+    /** Number of running emulators, by the name of the node they run on. */
+    private static final Map<String, Integer> emulatorCounts = new HashMap<String, Integer>();
+
+    private EmulatorConfigIndex() {}
+
+    /**
+     * Gets the environment of the given node, from the cache if possible.  The same instance is
+     * returned until the cached environment expires or is invalidated, so values derived from it
+     * can be cached for as long as that's the case.
+     *
+     * @return The node's environment, or {@code null} if the node is offline or can't be reached.
+     */
+    static EnvVars getNodeEnvironment(Node node) {
+        final long now = System.currentTimeMillis();
+        final CachedEnvironment cached = environments.get(node.getNodeName());
+        if (cached != null && now - cached.timestamp < ENVIRONMENT_CACHE_MS) {
+            return cached.environment;
+        }
+
+        final Computer computer = node.toComputer();
+        if (computer == null) {
+            return null;
+        }
+        try {
+            EnvVars environment = computer.getEnvironment();
+            environments.put(node.getNodeName(), new CachedEnvironment(environment, now));
+            return environment;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not fetch environment of " + node.getNodeName(), e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.FINE, "Interrupted while fetching environment of " + node.getNodeName(), e);
+        }
+        return null;
+    }
+
+    /** Discards the cached environment of the given node, or of all nodes if {@code null}. */
+    static void invalidate(String nodeName) {
+        if (nodeName == null) {
+            environments.clear();
+        } else {
+            environments.remove(nodeName);
+        }
+    }
+
+    /**
+     * Determines whether an emulator with the given configuration is running on the given node,
+     * whether for a build on that node, or for a build elsewhere using it as its emulator host.
+     *
+     * @param node The node to check.
+     * @param hash The emulator configuration hash.
+     */
+    static boolean isRunning(Node node, String hash) {
+        return isRunning(node.getNodeName(), hash);
+    }
+
+    static synchronized boolean isRunning(String nodeName, String hash) {
+        Map<String, Integer> hashes = runningHashes.get(nodeName);
+        return hashes != null && hashes.containsKey(hash);
+    }
+
+    /**
+     * Gets the emulator configuration hashes, i.e. the AVD names, of the emulators running on the given node.
+     *
+     * @param nodeName The node name; empty for the master.
+     * @return A copy of the set of hashes in use.
+     */
+    static synchronized Set<String> getRunningHashes(String nodeName) {
+        Map<String, Integer> hashes = runningHashes.get(nodeName);
+        return hashes == null ? new HashSet<String>() : new HashSet<String>(hashes.keySet());
+    }
+
+    /**
+     * Gets how long the longest-running build using the given emulator configuration has been
+     * running for, on any node.  This is the build likely to free up the emulator first.
+     *
+     * @param hash The emulator configuration hash.
+     * @return The time in milliseconds, or zero if no build is using the configuration.
+     */
+    static synchronized long getLongestRunningTime(String hash) {
+        long longest = 0;
+        final long now = System.currentTimeMillis();
+        for (RunningEmulator emulator : runningBuilds.values()) {
+            if (hash.equals(emulator.hash)) {
+                longest = Math.max(longest, now - emulator.startTime);
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Determines how many emulators are running, or starting up, on the given node, whether for
+     * builds on that node, or for builds elsewhere using it as their emulator host.  Emulators which
+     * builds on the node are running on a separate emulator host aren't counted.
+     */
+    static int getEmulatorCount(Node node) {
+        return getEmulatorCount(node.getNodeName());
+    }
+
+    static synchronized int getEmulatorCount(String nodeName) {
+        Integer count = emulatorCounts.get(nodeName);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Gets the emulator configuration hash recorded for the given build.
+     *
+     * @return The hash, or {@code null} if the build isn't running with an emulator.
+     */
+    static synchronized String getHash(Object build) {
+        RunningEmulator emulator = runningBuilds.get(build);
+        return emulator == null ? null : emulator.hash;
+    }
+
+    /**
+     * Records that the emulator for the given build, which was added without knowing where its
+     * emulator would run, will run on the given emulator host.
+     *
+     * @param build The running build.
+     * @param hostName The node name of the emulator host.
+     */
+    static synchronized void assignEmulatorHost(Object build, String hostName) {
+        RunningEmulator emulator = runningBuilds.get(build);
+        if (emulator == null || emulator.emulatorNodeName != null) {
+            return;
+        }
+        emulator.emulatorNodeName = hostName;
+        addEmulator(hostName, emulator.hash);
+    }
+
+    /**
+     * Adds a running build to the index.
+     *
+     * @param build The build, used as the key.
+     * @param hash The build's emulator configuration hash.
+     * @param emulatorNodeName The node the emulator runs on, or {@code null} if it isn't known yet.
+     * @param startTime When the build started.
+     */
+    static synchronized void add(Object build, String hash, String emulatorNodeName, long startTime) {
+        if (runningBuilds.containsKey(build)) {
+            return;
+        }
+        runningBuilds.put(build, new RunningEmulator(hash, emulatorNodeName, startTime));
+        if (emulatorNodeName != null) {
+            addEmulator(emulatorNodeName, hash);
+        }
+    }
+
+    static synchronized void remove(Object build) {
+        final RunningEmulator emulator = runningBuilds.remove(build);
+        if (emulator == null || emulator.emulatorNodeName == null) {
+            return;
+        }
+        final String nodeName = emulator.emulatorNodeName;
+        int count = emulatorCounts.get(nodeName);
+        if (count == 1) {
+            emulatorCounts.remove(nodeName);
+        } else {
+            emulatorCounts.put(nodeName, count - 1);
+        }
+        Map<String, Integer> hashes = runningHashes.get(nodeName);
+        count = hashes.get(emulator.hash);
+        if (count == 1) {
+            hashes.remove(emulator.hash);
+        } else {
+            hashes.put(emulator.hash, count - 1);
+        }
+        if (hashes.isEmpty()) {
+            runningHashes.remove(nodeName);
+        }
+    }
+
+    private static void addEmulator(String nodeName, String hash) {
+        Integer count = emulatorCounts.get(nodeName);
+        emulatorCounts.put(nodeName, count == null ? 1 : count + 1);
+        Map<String, Integer> hashes = runningHashes.get(nodeName);
+        if (hashes == null) {
+            hashes = new HashMap<String, Integer>();
+            runningHashes.put(nodeName, hashes);
+        }
+        count = hashes.get(hash);
+        hashes.put(hash, count == null ? 1 : count + 1);
+    }
+
+    /** Adds builds to the index as they start, and removes them once they're done. */
+    @Extension
+    public static final class BuildListener extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            if (!(run instanceof AbstractBuild)) {
+                return;
+            }
+            final AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) run;
+            final Node node = build.getBuiltOn();
+            if (node == null) {
+                return;
+            }
+            final String hash = TaskDispatcher.getEmulatorConfigHashForTask(node, build.getProject());
+            if (hash != null) {
+                // The emulator host of a remote emulator isn't chosen until the build sets up its emulator
+                AndroidEmulator androidWrapper = TaskDispatcher.getEmulatorWrapper(build.getProject());
+                boolean isLocal = Util.fixEmptyAndTrim(androidWrapper.emulatorHostLabel) == null;
+                add(run, hash, isLocal ? node.getNodeName() : null, run.getStartTimeInMillis());
+            }
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            remove(run);
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            remove(run);
+        }
+
+    }
+
+    /** Invalidates cached node environments when nodes change. */
+    @Extension
+    public static final class NodeListener extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate(c.getName());
+            EmulatorCapacity.invalidate(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            invalidate(c.getName());
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            // Node properties or the global environment may have changed
+            invalidate(null);
+            EmulatorCapacity.invalidate(null);
+        }
+
+    }
+
+    /** The emulator used by a running build. */
+    private static final class RunningEmulator {
+
+        final String hash;
+        final long startTime;
+        String emulatorNodeName;
+
+        RunningEmulator(String hash, String emulatorNodeName, long startTime) {
+            this.hash = hash;
+            this.emulatorNodeName = emulatorNodeName;
+            this.startTime = startTime;
+        }
+
+    }
+
+    private static final class CachedEnvironment {
+
+        final EnvVars environment;
+        final long timestamp;
+
+        CachedEnvironment(EnvVars environment, long timestamp) {
+            this.environment = environment;
+            this.timestamp = timestamp;
+        }
+
+    }
+
+}
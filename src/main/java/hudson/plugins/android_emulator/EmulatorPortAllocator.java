@@ -0,0 +1,298 @@
+package hudson.plugins.android_emulator;
+
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out the TCP ports that each emulator needs on a node.
+ * <p>
+ * The port range is divided into slots, each of which gives one emulator all four of its ports:
+ * an even console port followed by its odd adb port, plus an adb server port and a callback port
+ * from a second range directly following the first.  Allocating a whole slot at once means we never
+ * have to reserve extra ports just to find an even/odd pair, and then give them back.
+ * </p>
+ * Reservations are held in memory, under a lock which is only held while updating that state; the
+ * check that no other process on the node is already using the ports happens outside of it, so that
+ * builds on other nodes (or on the same node) aren't held up while a slow agent responds.
+ */
+public final class EmulatorPortAllocator {
+
+    /**
+     * First port of the default range.
+     * <p>
+     * ADB allows up to 64 local devices, each of which uses two consecutive ports: one for the user
+     * telnet interface, and one to communicate with ADB.  These pairs start at port 5554.
+     * http://android.googlesource.com/platform/system/core/+/d387acc/adb/adb.h#206
+     * http://android.googlesource.com/platform/system/core/+/d387acc/adb/transport_local.cpp#44
+     * </p><p>
+     * So long as the ADB server automatically registers itself with any emulators in the standard
+     * port range of 5555–5861, then we should avoid using that port range.  Otherwise, when we run
+     * multiple ADB servers and emulators at the same time, each of the ADB servers will race to
+     * register with each emulator, meaning that each build will most likely end up with an emulator
+     * that always ends up appearing to be "offline".  See http://b.android.com/205197
+     * </p>
+     */
+    public static final int DEFAULT_PORT_RANGE_START = 5554 + (2 * 64);
+
+    /** Default number of emulators which may run at the same time on one node. */
+    public static final int DEFAULT_MAX_EMULATORS = 64;
+
+    /** Number of ports each emulator uses. */
+    static final int PORTS_PER_EMULATOR = 4;
+
+    private static final int MAX_PORT = 65535;
+
+    /** Allocators for each node, by node name. */
+    private static final ConcurrentMap<String, EmulatorPortAllocator> allocators =
+            new ConcurrentHashMap<String, EmulatorPortAllocator>();
+
+    private final String nodeName;
+    private final int rangeStart;
+    private final int slotCount;
+
+    /** Slots currently reserved by a build. */
+    private final BitSet reserved;
+
+    /** Slot from which to start looking next, so that recently-freed ports aren't immediately reused. */
+    private int nextSlot;
+
+    /** Highest number of slots which have been reserved at the same time. */
+    private int peakInUse;
+
+    /** Number of times a slot was skipped, as another process on the node was using its ports. */
+    private long collisionCount;
+
+    private EmulatorPortAllocator(String nodeName, int rangeStart, int slotCount) {
+        this.nodeName = nodeName;
+        this.rangeStart = rangeStart;
+        this.slotCount = slotCount;
+        this.reserved = new BitSet(slotCount);
+    }
+
+    /**
+     * Gets the allocator for the given computer.
+     * <p>
+     * If the configured range has changed since the allocator was created, a new allocator replaces
+     * it; emulators still running with ports from the previous range will release them back to the
+     * old allocator, while the port check prevents new emulators from colliding with them.
+     * </p>
+     *
+     * @param computer The computer on which emulators will run.
+     * @param rangeStart The first port of the range; must be even.
+     * @param maxEmulators Number of emulators which may run at the same time on the computer.
+     */
+    public static EmulatorPortAllocator get(Computer computer, int rangeStart, int maxEmulators) {
+        final String nodeName = computer.getName();
+        EmulatorPortAllocator allocator = allocators.get(nodeName);
+        while (allocator == null || allocator.rangeStart != rangeStart || allocator.slotCount != maxEmulators) {
+            EmulatorPortAllocator newAllocator = new EmulatorPortAllocator(nodeName, rangeStart, maxEmulators);
+            boolean replaced = allocator == null ? allocators.putIfAbsent(nodeName, newAllocator) == null
+                    : allocators.replace(nodeName, allocator, newAllocator);
+            allocator = replaced ? newAllocator : allocators.get(nodeName);
+        }
+        return allocator;
+    }
+
+    /**
+     * Checks whether the given range settings are usable.
+     *
+     * @return {@code null} if valid, otherwise a message explaining the problem.
+     */
+    static String validateRange(int rangeStart, int maxEmulators) {
+        if (rangeStart < 1024 || rangeStart % 2 != 0) {
+            return Messages.PORT_RANGE_START_INVALID();
+        }
+        if (maxEmulators < 1 || rangeStart + (long) maxEmulators * PORTS_PER_EMULATOR - 1 > MAX_PORT) {
+            return Messages.PORT_RANGE_TOO_LARGE(MAX_PORT);
+        }
+        return null;
+    }
+
+    /**
+     * Reserves the ports for one emulator.
+     *
+     * @param channel Channel to the computer on which the emulator will run.
+     * @return The reserved ports.
+     * @throws IOException If no free ports remain.
+     */
+    public Ports allocate(VirtualChannel channel) throws IOException, InterruptedException {
+        // Try each slot at most once; any that are in use by another process are skipped over
+        int collisions = 0;
+        for (int attempt = 0; attempt < slotCount; attempt++) {
+            final int slot = reserveNextSlot();
+            if (slot < 0) {
+                break;
+            }
+
+            final Ports ports = new Ports(this, slot, collisions);
+            if (channel.call(new PortCheckTask(ports.toArray()))) {
+                return ports;
+            }
+
+            // Something else on the node is using this slot's ports; leave it for later
+            collisions++;
+            synchronized (this) {
+                collisionCount++;
+                reserved.clear(slot);
+            }
+        }
+
+        throw new IOException(Messages.NO_EMULATOR_PORTS_AVAILABLE(nodeName, getPortRange(), getInUse(), collisions));
+    }
+
+    /** Marks the next free slot as reserved, returning its index, or -1 if all are reserved. */
+    private synchronized int reserveNextSlot() {
+        int slot = reserved.nextClearBit(nextSlot);
+        if (slot >= slotCount) {
+            slot = reserved.nextClearBit(0);
+            if (slot >= slotCount) {
+                return -1;
+            }
+        }
+        reserved.set(slot);
+        nextSlot = (slot + 1) % slotCount;
+        peakInUse = Math.max(peakInUse, reserved.cardinality());
+        return slot;
+    }
+
+    private synchronized void release(int slot) {
+        reserved.clear(slot);
+    }
+
+    /** @return Number of emulators which may run at the same time. */
+    public int getCapacity() {
+        return slotCount;
+    }
+
+    /** @return Number of emulators which currently have ports reserved. */
+    public synchronized int getInUse() {
+        return reserved.cardinality();
+    }
+
+    /** @return Highest number of emulators which have had ports reserved at the same time. */
+    public synchronized int getPeakInUse() {
+        return peakInUse;
+    }
+
+    /** @return Number of times ports were found to be in use by some other process on the node. */
+    public synchronized long getCollisionCount() {
+        return collisionCount;
+    }
+
+    /** @return Human-readable description of the full range of ports used. */
+    public String getPortRange() {
+        return String.format("%d-%d", rangeStart, rangeStart + slotCount * PORTS_PER_EMULATOR - 1);
+    }
+
+    /** The ports reserved for one emulator. */
+    public static final class Ports {
+
+        private final EmulatorPortAllocator allocator;
+        private final int slot;
+        private final int collisions;
+        private boolean released;
+
+        private Ports(EmulatorPortAllocator allocator, int slot, int collisions) {
+            this.allocator = allocator;
+            this.slot = slot;
+            this.collisions = collisions;
+        }
+
+        /** @return The even-numbered port for the emulator's console. */
+        public int getUserPort() {
+            return allocator.rangeStart + (2 * slot);
+        }
+
+        /** @return The port on which the emulator talks to adb; always the console port plus one. */
+        public int getAdbPort() {
+            return getUserPort() + 1;
+        }
+
+        /** @return The port for the adb server used with this emulator. */
+        public int getAdbServerPort() {
+            return allocator.rangeStart + (2 * allocator.slotCount) + (2 * slot);
+        }
+
+        /** @return The port on which we wait for the emulator to report that it has started. */
+        public int getEmulatorCallbackPort() {
+            return getAdbServerPort() + 1;
+        }
+
+        /** @return Number of emulators with ports reserved on the node, including this one. */
+        public int getInUse() {
+            return allocator.getInUse();
+        }
+
+        /** @return Number of emulators which may run at the same time on the node. */
+        public int getCapacity() {
+            return allocator.getCapacity();
+        }
+
+        /** @return Highest number of emulators which have had ports reserved at the same time on the node. */
+        public int getPeakInUse() {
+            return allocator.getPeakInUse();
+        }
+
+        /** @return Number of slots skipped while reserving these ports, as other processes were using them. */
+        public int getCollisions() {
+            return collisions;
+        }
+
+        /** @return Number of slots skipped on the node so far, as other processes were using them. */
+        public long getTotalCollisions() {
+            return allocator.getCollisionCount();
+        }
+
+        /** Returns the ports to the allocator; subsequent calls have no effect. */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                allocator.release(slot);
+            }
+        }
+
+        int[] toArray() {
+            return new int[] { getUserPort(), getAdbPort(), getAdbServerPort(), getEmulatorCallbackPort() };
+        }
+
+    }
+
+    /** Checks, on the node, that none of the given ports are currently in use. */
+    private static final class PortCheckTask extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] ports;
+
+        PortCheckTask(int[] ports) {
+            this.ports = ports;
+        }
+
+        public Boolean call() {
+            for (int port : ports) {
+                ServerSocket socket = null;
+                try {
+                    socket = new ServerSocket(port);
+                } catch (IOException e) {
+                    return false;
+                } finally {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package hudson.plugins.android_emulator;
+
+import hudson.Util;
+import hudson.plugins.android_emulator.util.FileCloner;
+import hudson.plugins.android_emulator.util.Utils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static hudson.plugins.android_emulator.AndroidEmulator.log;
+
+/**
+ * Stages the writable images of an AVD into a (usually tmpfs-backed) directory for the duration
+ * of a build, so that the emulator's disk I/O hits memory rather than the AVD's home directory.
+ * <p>
+ * The persistent copies in the AVD directory are never modified: the emulator is pointed at the
+ * staged copies via its <tt>-data</tt>, <tt>-cache</tt>, <tt>-sdcard</tt> and <tt>-snapstorage</tt>
+ * options, and the staged directory is simply deleted once the emulator has shut down.
+ * </p>
+ * All of the methods here run on the machine where the emulator runs, so the budget accounting
+ * is naturally per-node.  Each staging directory holds a lock file, locked by the agent using it,
+ * so that agents sharing a RAM disk can tell their staged images apart from those left behind.
+ */
+final class EmulatorRamDisk {
+
+    /** Prefix of the directories we create, so that leftovers from a previous agent run can be found. */
+    private static final String STAGE_PREFIX = "jenkins-avd-";
+
+    /** File in each staging directory which is locked for as long as the directory is in use. */
+    private static final String LOCK_FILE_NAME = ".lock";
+
+    /** Time after which a staging directory without a lock file is deemed abandoned, rather than still being set up. */
+    private static final long UNLOCKED_STAGE_GRACE_MS = 60 * 1000;
+
+    /** Default partition sizes used by the emulator, if the AVD config doesn't specify them. */
+    private static final long DEFAULT_DATA_PARTITION_SIZE = 200 * 1024 * 1024;
+    private static final long DEFAULT_CACHE_PARTITION_SIZE = 66 * 1024 * 1024;
+
+    private static final Pattern SIZE = Pattern.compile("(?i)([0-9]+)\\s*([KMG]?)B?");
+
+    /** Bytes reserved by each currently-staged directory on this machine. */
+    private static final Map<String, Long> reservations = new HashMap<String, Long>();
+
+    /** Locks held on the lock files of the directories staged by this JVM, by directory. */
+    private static final Map<String, FileLock> locks = new HashMap<String, FileLock>();
+
+    private EmulatorRamDisk() {}
+
+    /**
+     * Copies the writable images of the given AVD into a new directory below the RAM disk root.
+     *
+     * @param avdDirectory The persistent AVD directory.
+     * @param ramDiskRoot Directory on a RAM-backed filesystem in which to stage the images.
+     * @param budget Maximum number of bytes that all staged AVDs on this machine may use.
+     * @param wipeData Whether the emulator will be wiping its user data, i.e. there's no need to copy it.
+     * @param includeSnapshots Whether the snapshot image should be staged too; this must only be done if
+     *                         the emulator will not be saving any snapshots.
+     * @param logger Logs things.
+     * @return The staged images, or {@code null} if the RAM disk could not be used.
+     */
+    static synchronized Stage stage(File avdDirectory, File ramDiskRoot, long budget, boolean wipeData,
+            boolean includeSnapshots, PrintStream logger) throws IOException {
+        if (!ramDiskRoot.isDirectory() || !ramDiskRoot.canWrite()) {
+            log(logger, Messages.RAM_DISK_UNAVAILABLE(ramDiskRoot));
+            return null;
+        }
+        removeStaleDirectories(ramDiskRoot);
+
+        // Work out which images need to be copied, and how large they may grow while the emulator runs
+        final Map<String, String> config = Utils.parseConfigFile(new File(avdDirectory, "config.ini"));
+        final File userData = new File(avdDirectory, "userdata-qemu.img");
+        final File cache = new File(avdDirectory, "cache.img");
+        final File sdCard = new File(avdDirectory, "sdcard.img");
+        final File snapshots = new File(avdDirectory, "snapshots.img");
+        long required = Math.max(userData.length(),
+                parseSize(config.get("disk.dataPartition.size"), DEFAULT_DATA_PARTITION_SIZE));
+        required += Math.max(cache.length(),
+                parseSize(config.get("disk.cachePartition.size"), DEFAULT_CACHE_PARTITION_SIZE));
+        // The SD card is copied sparsely, so is only accounted for once we know how much it contains
+        if (includeSnapshots) {
+            required += snapshots.length();
+        }
+
+        // Fall back to the on-disk images if this would exceed the budget, or the RAM disk is full
+        final long free = Math.min(budget - getReservedBytes(), ramDiskRoot.getUsableSpace());
+        if (required > free) {
+            log(logger, Messages.RAM_DISK_BUDGET_EXCEEDED(toMegabytes(required), toMegabytes(Math.max(free, 0))));
+            return null;
+        }
+
+        File dir = File.createTempFile(STAGE_PREFIX + avdDirectory.getName().replace(".avd", "") + "-", "",
+                ramDiskRoot);
+        if (!dir.delete() || !dir.mkdir()) {
+            log(logger, Messages.RAM_DISK_UNAVAILABLE(ramDiskRoot));
+            return null;
+        }
+        reservations.put(dir.getAbsolutePath(), required);
+
+        Stage stage = new Stage(dir);
+        try {
+            lock(dir);
+
+            // If data is to be wiped, the emulator will copy the initial user data into place itself
+            if (!wipeData && userData.exists()) {
+                Util.copyFile(userData, new File(stage.directory, userData.getName()));
+            }
+            if (cache.exists()) {
+                Util.copyFile(cache, new File(stage.directory, cache.getName()));
+            }
+            if (sdCard.exists()) {
+                required += FileCloner.copySparse(sdCard, new File(stage.directory, sdCard.getName()));
+                reservations.put(dir.getAbsolutePath(), required);
+                stage.hasSdCard = true;
+            }
+            if (includeSnapshots && snapshots.exists()) {
+                Util.copyFile(snapshots, new File(stage.directory, snapshots.getName()));
+                stage.hasSnapshots = true;
+            }
+        } catch (IOException e) {
+            release(stage);
+            throw e;
+        }
+        if (required > free) {
+            release(stage);
+            log(logger, Messages.RAM_DISK_BUDGET_EXCEEDED(toMegabytes(required), toMegabytes(Math.max(free, 0))));
+            return null;
+        }
+
+        log(logger, Messages.RAM_DISK_STAGED(stage.directory, toMegabytes(required)));
+        return stage;
+    }
+
+    /**
+     * Deletes the given staged images, and frees up their share of the budget.
+     *
+     * @param stage The images to discard.
+     */
+    static synchronized void release(Stage stage) throws IOException {
+        reservations.remove(stage.directory);
+        FileLock lock = locks.remove(stage.directory);
+        if (lock != null) {
+            lock.release();
+            lock.channel().close();
+        }
+        FileUtils.deleteDirectory(new File(stage.directory));
+    }
+
+    /** Locks the lock file in the given staging directory, until the directory is released. */
+    private static void lock(File dir) throws IOException {
+        FileChannel channel = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw").getChannel();
+        FileLock lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Could not lock " + dir);
+        }
+        locks.put(dir.getAbsolutePath(), lock);
+    }
+
+    /** @return The total number of bytes reserved by AVDs currently staged on this machine. */
+    private static long getReservedBytes() {
+        long total = 0;
+        for (long bytes : reservations.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Removes any staging directories whose owner has gone away, e.g. because its agent was
+     * restarted.  Directories staged by other agents sharing the same RAM disk are left alone.
+     */
+    private static void removeStaleDirectories(File ramDiskRoot) {
+        File[] dirs = ramDiskRoot.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getName().startsWith(STAGE_PREFIX)
+                        && !reservations.containsKey(dir.getAbsolutePath()) && isAbandoned(dir)) {
+                    FileUtils.deleteQuietly(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines whether the given staging directory is no longer in use.  The operating system
+     * releases the lock on its lock file when the process holding it exits, however that happens.
+     */
+    private static boolean isAbandoned(File dir) {
+        final File lockFile = new File(dir, LOCK_FILE_NAME);
+        if (!lockFile.exists()) {
+            // Either from before lock files were used, or another agent is just creating it
+            return System.currentTimeMillis() - dir.lastModified() > UNLOCKED_STAGE_GRACE_MS;
+        }
+        try {
+            FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    return false;
+                }
+                lock.release();
+                return true;
+            } catch (OverlappingFileLockException e) {
+                // Locked from within this JVM
+                return false;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a partition size from an AVD config file, e.g. "200M".
+     *
+     * @param value The value to parse; may be {@code null}.
+     * @param defaultValue Value to return if the given value could not be parsed.
+     * @return The size in bytes.
+     */
+    static long parseSize(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        Matcher matcher = SIZE.matcher(value.trim());
+        if (!matcher.matches()) {
+            return defaultValue;
+        }
+        long size = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2).toUpperCase();
+        if (unit.equals("K")) {
+            size *= 1024;
+        } else if (unit.equals("M")) {
+            size *= 1024 * 1024;
+        } else if (unit.equals("G")) {
+            size *= 1024 * 1024 * 1024;
+        }
+        return size;
+    }
+
+    private static long toMegabytes(long bytes) {
+        return (bytes + (1024 * 1024) - 1) / (1024 * 1024);
+    }
+
+    /** The set of AVD images which were staged on the RAM disk for a single emulator run. */
+    static final class Stage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String directory;
+        private boolean hasSdCard;
+        private boolean hasSnapshots;
+
+        private Stage(File directory) {
+            this.directory = directory.getAbsolutePath();
+        }
+
+        String getDirectory() {
+            return directory;
+        }
+
+        /** @return {@code true} if the emulator saves snapshots to the staged copy of the snapshot image. */
+        boolean hasSnapshots() {
+            return hasSnapshots;
+        }
+
+        /** @return The emulator command line arguments required to use the staged images. */
+        String getCommandArguments() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(" -data ").append(new File(directory, "userdata-qemu.img"));
+            sb.append(" -cache ").append(new File(directory, "cache.img"));
+            if (hasSdCard) {
+                sb.append(" -sdcard ").append(new File(directory, "sdcard.img"));
+            }
+            if (hasSnapshots) {
+                sb.append(" -snapstorage ").append(new File(directory, "snapshots.img"));
+            }
+            return sb.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,153 @@
+package hudson.plugins.android_emulator;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queued builds waiting for the same emulator configuration to become free, in the order they were
+ * queued, so that the emulator is handed to them fairly, rather than to whichever the queue happens to
+ * look at first.
+ * <p>
+ * A build may only take an emulator if no build that has been waiting longer for the same emulator
+ * could start on the same node.  Builds leave the line once they leave the queue.
+ * </p>
+ */
+final class EmulatorWaitingLine {
+
+    /** Builds waiting for each emulator configuration hash, in the order they were queued. */
+    private static final Map<String, List<Waiter>> lines = new HashMap<String, List<Waiter>>();
+
+    private EmulatorWaitingLine() {}
+
+    /**
+     * Adds the given build to the line for the given emulator, if it's not already waiting, and gives
+     * the reason it's blocked, including its position in the line.
+     *
+     * @param hash The emulator configuration hash.
+     * @param item The queued build.
+     * @return The cause of blockage to report for the build.
+     */
+    static synchronized CauseOfBlockage wait(String hash, BuildableItem item) {
+        List<Waiter> line = lines.get(hash);
+        if (line == null) {
+            line = new ArrayList<Waiter>();
+            lines.put(hash, line);
+        }
+
+        // Join the line according to when we were queued, not when we first found the emulator busy
+        int position = 0;
+        boolean found = false;
+        for (Waiter waiter : line) {
+            if (waiter.id == item.id) {
+                found = true;
+                break;
+            }
+            if (waiter.queuedSince > item.getInQueueSince()) {
+                break;
+            }
+            position++;
+        }
+        if (!found) {
+            line.add(position, new Waiter(item));
+        }
+
+        // Assume that each build ahead of us, plus the one using the emulator, takes about as long as ours;
+        // the one using the emulator is already part of the way through
+        final long duration = item.task.getEstimatedDuration();
+        if (duration <= 0) {
+            return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_EMULATOR_IN_LINE(position + 1, line.size()));
+        }
+        final long remaining = Math.max(0, duration - EmulatorConfigIndex.getLongestRunningTime(hash));
+        final String estimate = Util.getTimeSpanString(remaining + position * duration);
+        return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_EMULATOR_IN_LINE_ESTIMATED(position + 1,
+                line.size(), estimate));
+    }
+
+    /**
+     * Determines whether any build that has been waiting longer than the given one for the same
+     * emulator could start on the given node instead, taking into account everything which might
+     * hold it back from the node, not just the node's own restrictions.
+     *
+     * @param hash The emulator configuration hash.
+     * @param item The queued build.
+     * @param node The node being offered the build.
+     * @return {@code true} if the given build should let an earlier one go first.
+     */
+    static synchronized boolean hasEarlierWaiter(String hash, BuildableItem item, Node node) {
+        final List<Waiter> line = lines.get(hash);
+        if (line == null) {
+            return false;
+        }
+
+        // Iterate over a copy, as checking whether an earlier build could start looks at this line again
+        final Queue queue = Hudson.getInstance().getQueue();
+        for (Waiter waiter : new ArrayList<Waiter>(line)) {
+            if (waiter.id == item.id) {
+                return false;
+            }
+
+            // Only builds which are ready to go, and could actually start here, get to go first;
+            // otherwise a build which is held back from this node for some other reason blocks us forever
+            Queue.Item earlierItem = queue.getItem(waiter.id);
+            if (earlierItem == null) {
+                // We missed it leaving the queue
+                line.remove(waiter);
+            } else if (earlierItem instanceof BuildableItem && !queue.isPending(earlierItem.task)
+                    && TaskDispatcher.couldStartOn(node, (BuildableItem) earlierItem)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Removes the given build from any line it's waiting in. */
+    private static synchronized void leave(long id) {
+        for (Iterator<List<Waiter>> lineIterator = lines.values().iterator(); lineIterator.hasNext(); ) {
+            List<Waiter> line = lineIterator.next();
+            for (Iterator<Waiter> it = line.iterator(); it.hasNext(); ) {
+                if (it.next().id == id) {
+                    it.remove();
+                }
+            }
+            if (line.isEmpty()) {
+                lineIterator.remove();
+            }
+        }
+    }
+
+    /** Removes builds from the line once they've started, or have been cancelled. */
+    @Extension
+    public static final class Listener extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem item) {
+            leave(item.id);
+        }
+
+    }
+
+    private static final class Waiter {
+
+        final long id;
+        final long queuedSince;
+
+        Waiter(Queue.Item item) {
+            this.id = item.id;
+            this.queuedSince = item.getInQueueSince();
+        }
+
+    }
+
+}
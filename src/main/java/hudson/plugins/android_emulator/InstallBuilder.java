@@ -1,5 +1,6 @@
 package hudson.plugins.android_emulator;
 
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Functions;
@@ -12,6 +13,8 @@ import hudson.model.TaskListener;
 import hudson.plugins.android_emulator.builder.AbstractBuilder;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.sdk.Tool;
+import hudson.plugins.android_emulator.snapshot.AbstractSnapshotBuilder;
+import hudson.plugins.android_emulator.snapshot.ContentSnapshotAction;
 import hudson.plugins.android_emulator.util.Utils;
 import hudson.tasks.Builder;
 import hudson.util.ForkOutputStream;
@@ -23,6 +26,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 public class InstallBuilder extends AbstractBuilder {
@@ -30,6 +34,18 @@ public class InstallBuilder extends AbstractBuilder {
     /** Maximum time to wait, in milliseconds, for an APK to install. */
     private static final int INSTALL_TIMEOUT = 2 * 60 * 1000;
 
+    /** Maximum time to wait, in milliseconds, for an installed package to be compiled. */
+    private static final int COMPILE_TIMEOUT = 10 * 60 * 1000;
+
+    /** Maximum time to wait, in milliseconds, for a device property to be read. */
+    private static final int GETPROP_TIMEOUT = 5 * 1000;
+
+    /** API level from which installed packages can be explicitly compiled via the package manager. */
+    private static final int MIN_COMPILE_SDK_LEVEL = 24;
+
+    /** API level from which ART compiles packages ahead-of-time as part of installation. */
+    private static final int MIN_ART_SDK_LEVEL = 21;
+
     /** Path to the APK to be installed, relative to the workspace. */
     private final String apkFile;
 
@@ -39,12 +55,17 @@ public class InstallBuilder extends AbstractBuilder {
     /** Whether to fail the build if installation isn't successful. */
     private final boolean failOnInstallFailure;
 
+    /** Whether the installed package should be fully compiled before the build continues. */
+    private final boolean compileAheadOfTime;
+
     @DataBoundConstructor
     @SuppressWarnings("hiding")
-    public InstallBuilder(String apkFile, boolean uninstallFirst, boolean failOnInstallFailure) {
+    public InstallBuilder(String apkFile, boolean uninstallFirst, boolean failOnInstallFailure,
+            boolean compileAheadOfTime) {
         this.apkFile = Util.fixEmptyAndTrim(apkFile);
         this.uninstallFirst = uninstallFirst;
         this.failOnInstallFailure = failOnInstallFailure;
+        this.compileAheadOfTime = compileAheadOfTime;
     }
 
     public String getApkFile() {
@@ -59,6 +80,10 @@ public class InstallBuilder extends AbstractBuilder {
         return failOnInstallFailure;
     }
 
+    public boolean shouldCompileAheadOfTime() {
+        return compileAheadOfTime;
+    }
+
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
@@ -88,6 +113,17 @@ public class InstallBuilder extends AbstractBuilder {
             return false;
         }
 
+        // Skip installation if the APK is already part of a snapshot which was loaded into the emulator
+        ContentSnapshotAction snapshot = build.getAction(ContentSnapshotAction.class);
+        if (snapshot != null && snapshot.isLoaded()) {
+            Map<String, String> hashes = AbstractSnapshotBuilder.hashFiles(apkPath.getParent(), apkPath.getName());
+            if (snapshot.isInstalled(hashes.get(apkPath.getName()))) {
+                AndroidEmulator.log(logger, Messages.APK_INSTALLED_FROM_SNAPSHOT(apkPath.getName(),
+                        snapshot.getSnapshotName()));
+                return true;
+            }
+        }
+
         // Determine which device to use
         final String deviceIdentifier = getDeviceIdentifier(build, listener);
 
@@ -118,9 +154,70 @@ public class InstallBuilder extends AbstractBuilder {
         if (!success && failOnInstallFailure) {
             return false;
         }
+
+        // Compile the package now, rather than having the first test runs interpreted or JIT-compiled
+        if (success && shouldCompileAheadOfTime()) {
+            compilePackage(build, launcher, logger, androidSdk, deviceIdentifier, apkPath);
+        }
         return true;
     }
 
+    /**
+     * Fully compiles the package corresponding to the given APK file on the device, waiting until
+     * compilation has completed.
+     *
+     * @param build The build for which we should compile the package.
+     * @param launcher The launcher for the remote node.
+     * @param logger Where log output should be redirected to.
+     * @param androidSdk The Android SDK to use.
+     * @param deviceIdentifier The device on which the package is installed.
+     * @param apkPath The path to the APK file which was installed.
+     */
+    private static void compilePackage(AbstractBuild<?, ?> build, Launcher launcher, PrintStream logger,
+            AndroidSdk androidSdk, String deviceIdentifier, FilePath apkPath)
+                throws IOException, InterruptedException {
+        final EnvVars env = build.getEnvironment(TaskListener.NULL);
+
+        // Find out which runtime the device has
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        String args = String.format("%s shell getprop ro.build.version.sdk", deviceIdentifier);
+        Utils.runAndroidTool(launcher, env, stdout, null, androidSdk, Tool.ADB, args, null, GETPROP_TIMEOUT);
+        int sdkLevel;
+        try {
+            sdkLevel = Integer.parseInt(stdout.toString().trim());
+        } catch (NumberFormatException e) {
+            AndroidEmulator.log(logger, Messages.AOT_COMPILATION_NOT_SUPPORTED());
+            return;
+        }
+        if (sdkLevel < MIN_ART_SDK_LEVEL) {
+            // Dalvik has no ahead-of-time compilation
+            AndroidEmulator.log(logger, Messages.AOT_COMPILATION_NOT_SUPPORTED());
+            return;
+        }
+        if (sdkLevel < MIN_COMPILE_SDK_LEVEL) {
+            // Before Android 7.0, ART compiled everything ahead-of-time during installation
+            AndroidEmulator.log(logger, Messages.AOT_COMPILED_DURING_INSTALL());
+            return;
+        }
+
+        final String packageId = getPackageIdForApk(apkPath);
+        AndroidEmulator.log(logger, Messages.AOT_COMPILING_PACKAGE(packageId));
+        final long start = System.currentTimeMillis();
+        stdout = new ByteArrayOutputStream();
+        ForkOutputStream stdoutForkStream = new ForkOutputStream(logger, stdout);
+        args = String.format("%s shell cmd package compile -m speed -f %s", deviceIdentifier, packageId);
+        Utils.runAndroidTool(launcher, env, stdoutForkStream, logger, androidSdk, Tool.ADB, args, null,
+                COMPILE_TIMEOUT);
+
+        // Record the compilation time, so that it can be weighed against any change in test duration
+        final long duration = System.currentTimeMillis() - start;
+        if (stdout.toString().contains("Success")) {
+            AndroidEmulator.log(logger, Messages.AOT_COMPILED_PACKAGE(packageId, duration / 1000.0));
+        } else {
+            AndroidEmulator.log(logger, Messages.AOT_COMPILATION_FAILED(packageId));
+        }
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<Builder> implements Serializable {
 
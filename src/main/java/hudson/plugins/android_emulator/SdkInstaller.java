@@ -10,6 +10,7 @@ import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.plugins.android_emulator.SdkInstaller.AndroidInstaller.SdkUnavailableException;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
+import hudson.plugins.android_emulator.sdk.SdkInventory;
 import hudson.plugins.android_emulator.sdk.Tool;
 import hudson.plugins.android_emulator.util.Utils;
 import hudson.plugins.android_emulator.util.ValidationResult;
@@ -33,12 +34,17 @@ import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -52,8 +58,12 @@ public class SdkInstaller {
     /** Filename to write some metadata to about our automated installation. */
     private static final String SDK_INFO_FILENAME = ".jenkins-install-info";
 
-    /** Map of nodes to locks, to ensure only one executor attempts SDK installation at once. */
-    private static final Map<Node, Semaphore> mutexByNode = new WeakHashMap<Node, Semaphore>();
+    /** Map of nodes to locks, so that the base SDK and the android tool never run while anything else is installed. */
+    private static final Map<Node, ReadWriteLock> locksByNode = new WeakHashMap<Node, ReadWriteLock>();
+
+    /** Map of nodes to the components currently being installed there, and the installation doing so. */
+    private static final Map<Node, Map<String, Installation>> installsByNode =
+            new WeakHashMap<Node, Map<String, Installation>>();
 
     /**
      * Downloads and installs the Android SDK on the machine we're executing on.
@@ -62,27 +72,22 @@ public class SdkInstaller {
      */
     public static AndroidSdk install(Launcher launcher, BuildListener listener, String androidSdkHome)
             throws SdkInstallationException, IOException, InterruptedException {
-        Semaphore semaphore = acquireLock();
-        try {
-            return doInstall(launcher, listener, androidSdkHome);
-        } finally {
-            semaphore.release();
-        }
-    }
-
-    private static AndroidSdk doInstall(Launcher launcher, BuildListener listener, String androidSdkHome)
-            throws SdkInstallationException, IOException, InterruptedException {
         // We should install the SDK on the current build machine
         Node node = Computer.currentComputer().getNode();
 
-        // Install the SDK if required
+        // Install the SDK if required.  Components take the lock themselves when they're installed,
+        // as holding it here would stop other executors finishing the components we might wait for
         String androidHome;
+        Lock lock = getLock(node).writeLock();
+        lock.lockInterruptibly();
         try {
             androidHome = installBasicSdk(listener, node).getRemote();
         } catch (IOException e) {
             throw new SdkInstallationException(Messages.SDK_DOWNLOAD_FAILED(), e);
         } catch (SdkUnavailableException e) {
             throw new SdkInstallationException(Messages.SDK_DOWNLOAD_FAILED(), e);
+        } finally {
+            lock.unlock();
         }
 
         // Check whether we need to install the SDK components
@@ -94,7 +99,7 @@ public class SdkInstaller {
             // Get the latest platform-tools
             installComponent(logger, launcher, sdk, "platform-tool");
 
-            // Upgrade the tools if necessary and add the latest build-tools component
+            // Upgrade the tools if necessary and add the latest build-tools component, if there's none
             List<String> components = new ArrayList<String>(4);
             components.add("tool");
             String buildTools = getBuildToolsPackageName(logger, launcher, sdk);
@@ -131,15 +136,30 @@ public class SdkInstaller {
         });
     }
 
-    private static String getBuildToolsPackageName(PrintStream logger, Launcher launcher, AndroidSdk sdk)
+    /**
+     * Determines which build-tools component should be installed.
+     *
+     * @return The latest build-tools component available, or {@code null} if that version is
+     *         already installed, or none could be found.
+     */
+    private static String getBuildToolsPackageName(PrintStream logger, Launcher launcher, final AndroidSdk sdk)
     throws IOException, InterruptedException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         Utils.runAndroidTool(launcher, output, logger, sdk, Tool.ANDROID, "list sdk --extended", null);
-        Matcher m = Pattern.compile("\"(build-tools-.*?)\"").matcher(output.toString());
+        Matcher m = Pattern.compile("\"build-tools-(.*?)\"").matcher(output.toString());
         if (!m.find()) {
             return null;
         }
-        return m.group(0);
+
+        // No need to run the android tool again if we already have the latest version
+        final String revision = m.group(1);
+        boolean installed = launcher.getChannel().call(new MasterToSlaveCallable<Boolean, IOException>() {
+            public Boolean call() {
+                return SdkInventory.get(new File(sdk.getSdkRoot())).getBuildTools().contains(revision);
+            }
+            private static final long serialVersionUID = 1L;
+        });
+        return installed ? null : m.group(0);
     }
 
     /**
@@ -159,15 +179,20 @@ public class SdkInstaller {
         AndroidInstaller installer = AndroidInstaller.fromNode(node);
         final URL downloadUrl = installer.getUrl(SDK_VERSION);
 
-        // Download the SDK, if required
-        boolean wasNowInstalled = installDir.act(new MasterToSlaveFileCallable<Boolean>() {
-            public Boolean invoke(File f, VirtualChannel channel)
-                    throws InterruptedException, IOException {
-                String msg = Messages.DOWNLOADING_SDK_FROM(downloadUrl);
-                return installDir.installIfNecessaryFrom(downloadUrl, listener, msg);
-            }
-            private static final long serialVersionUID = 1L;
-        });
+        // Download the SDK, if required; either via the master's cache, or directly to the node
+        boolean wasNowInstalled;
+        if (SdkPackageCache.isEnabled()) {
+            wasNowInstalled = SdkPackageCache.installBasicSdk(installDir, downloadUrl, listener.getLogger());
+        } else {
+            wasNowInstalled = installDir.act(new MasterToSlaveFileCallable<Boolean>() {
+                public Boolean invoke(File f, VirtualChannel channel)
+                        throws InterruptedException, IOException {
+                    String msg = Messages.DOWNLOADING_SDK_FROM(downloadUrl);
+                    return installDir.installIfNecessaryFrom(downloadUrl, listener, msg);
+                }
+                private static final long serialVersionUID = 1L;
+            });
+        }
 
         if (wasNowInstalled) {
             // If the SDK was required, pull files up from the intermediate directory
@@ -187,6 +212,14 @@ public class SdkInstaller {
 
     /**
      * Installs the given SDK component(s) into the given installation.
+     * <p>
+     * Other executors on the same node may install other components at the same time, so long as
+     * they come from the master's {@link SdkPackageCache}; installations which need the
+     * {@code android} tool still happen one at a time on each node.  If some of the components are
+     * already being installed by another executor, we wait for it to finish rather than installing
+     * them again.  No lock is held while waiting, so that the other executor can take whichever lock
+     * it needs to finish.
+     * </p>
      *
      * @param logger Logs things.
      * @param launcher Used to launch tasks on the remote node.
@@ -195,6 +228,85 @@ public class SdkInstaller {
      */
     private static void installComponent(PrintStream logger, Launcher launcher, AndroidSdk sdk,
             String... components) throws IOException, InterruptedException {
+        final Node node = Computer.currentComputer().getNode();
+
+        // Claim the components nobody else is installing, and find out who's installing the rest.
+        // As the claims are made at once, we can only ever wait for executors which claimed earlier
+        final Installation installation = new Installation();
+        final List<String> claimed = new ArrayList<String>();
+        final Map<String, Installation> others = new LinkedHashMap<String, Installation>();
+        final Map<String, Installation> inProgress = getInstallsInProgress(node);
+        synchronized (inProgress) {
+            for (String component : components) {
+                Installation other = inProgress.get(component);
+                if (other == null) {
+                    inProgress.put(component, installation);
+                    claimed.add(component);
+                } else {
+                    others.put(component, other);
+                }
+            }
+        }
+
+        boolean succeeded = false;
+        try {
+            succeeded = claimed.isEmpty() || doInstallComponents(logger, launcher, sdk, getLock(node), claimed);
+            if (!succeeded) {
+                log(logger, Messages.SDK_COMPONENT_INSTALLATION_FAILED(StringUtils.join(claimed, ',')));
+            }
+        } finally {
+            synchronized (inProgress) {
+                inProgress.keySet().removeAll(claimed);
+            }
+            installation.finish(succeeded);
+        }
+
+        for (Map.Entry<String, Installation> other : others.entrySet()) {
+            log(logger, Messages.WAITING_FOR_SDK_COMPONENT(other.getKey()));
+            if (!other.getValue().await()) {
+                log(logger, Messages.SDK_COMPONENT_INSTALLATION_FAILED_ELSEWHERE(other.getKey()));
+            }
+        }
+    }
+
+    /** @return {@code true} if all of the given components were installed. */
+    private static boolean doInstallComponents(PrintStream logger, Launcher launcher, AndroidSdk sdk,
+            ReadWriteLock nodeLock, List<String> components) throws IOException, InterruptedException {
+        // Take whatever we can from the master's cache, rather than downloading it again.  Each
+        // component is extracted into its own directory, so this can happen alongside other executors
+        List<String> remaining = components;
+        final FilePath sdkRoot = new FilePath(launcher.getChannel(), sdk.getSdkRoot());
+        if (SdkPackageCache.isEnabled()) {
+            Lock readLock = nodeLock.readLock();
+            readLock.lockInterruptibly();
+            try {
+                remaining = SdkPackageCache.installComponents(sdkRoot, remaining, logger);
+            } finally {
+                readLock.unlock();
+            }
+            if (remaining.isEmpty()) {
+                return true;
+            }
+        }
+
+        // The android tool shares its temporary download directory and package index between runs,
+        // and may replace itself, so only one instance may run on the node at a time
+        int exitCode;
+        Lock writeLock = nodeLock.writeLock();
+        writeLock.lockInterruptibly();
+        try {
+            exitCode = runSdkUpdate(logger, launcher, sdk, remaining);
+        } finally {
+            writeLock.unlock();
+        }
+
+        // The tool may exit successfully without installing anything, e.g. if a component name is unknown
+        return exitCode == 0 && areComponentsInstalled(launcher, sdk, remaining);
+    }
+
+    /** @return The exit code of the {@code android} tool. */
+    private static int runSdkUpdate(PrintStream logger, Launcher launcher, AndroidSdk sdk, List<String> components)
+            throws IOException, InterruptedException {
         String proxySettings = getProxySettings();
 
         // Build the command to install the given component(s)
@@ -221,6 +333,40 @@ public class SdkInstaller {
                 proc.getStdin().flush();
             }
         }
+
+        // Don't let the next installation start until this one has really finished
+        return proc.join();
+    }
+
+    /**
+     * Checks that the given components now exist in the SDK.  Components whose installation
+     * directory we don't know, like the SDK tools themselves, are assumed to be installed.
+     *
+     * @return {@code true} if all of the components with a known directory are installed.
+     */
+    private static boolean areComponentsInstalled(Launcher launcher, final AndroidSdk sdk,
+            final List<String> components) throws IOException, InterruptedException {
+        final List<String> paths = new ArrayList<String>();
+        for (String component : components) {
+            String path = SdkPackageCache.getComponentPath(component);
+            if (path != null) {
+                paths.add(path);
+            }
+        }
+        if (paths.isEmpty()) {
+            return true;
+        }
+        return launcher.getChannel().call(new MasterToSlaveCallable<Boolean, IOException>() {
+            public Boolean call() {
+                for (String path : paths) {
+                    if (!new File(sdk.getSdkRoot(), path + "/source.properties").isFile()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            private static final long serialVersionUID = 1L;
+        });
     }
 
     /**
@@ -294,16 +440,32 @@ public class SdkInstaller {
             }
         }
 
-        // Grab the lock and attempt installation
-        Semaphore semaphore = acquireLock();
-        try {
-            installComponent(logger, launcher, sdk, components.toArray(new String[0]));
-        } finally {
-            semaphore.release();
-        }
+        // Attempt installation
+        installComponent(logger, launcher, sdk, components.toArray(new String[0]));
     }
 
     private static boolean isPlatformInstalled(PrintStream logger, Launcher launcher,
+            final AndroidSdk sdk, final String platform, final String abi) throws IOException, InterruptedException {
+        // We don't know where the files of an SDK found via the PATH are, so ask the android tool
+        if (!sdk.hasKnownRoot()) {
+            return isPlatformListed(logger, launcher, sdk, platform, abi);
+        }
+
+        // Read the SDK's package files on the node, which caches the result until the SDK changes
+        return launcher.getChannel().call(new MasterToSlaveCallable<Boolean, IOException>() {
+            public Boolean call() {
+                final SdkInventory inventory = SdkInventory.get(new File(sdk.getSdkRoot()));
+                if (abi == null) {
+                    return inventory.hasTarget(platform);
+                }
+                return inventory.hasAbi(platform, abi);
+            }
+            private static final long serialVersionUID = 1L;
+        });
+    }
+
+    /** Determines whether the given platform, and ABI if given, are listed as targets by the android tool. */
+    private static boolean isPlatformListed(PrintStream logger, Launcher launcher,
             AndroidSdk sdk, String platform, String abi) throws IOException, InterruptedException {
         ByteArrayOutputStream targetList = new ByteArrayOutputStream();
         // Preferably we'd use the "--compact" flag here, but it wasn't added until r12,
@@ -435,28 +597,38 @@ public class SdkInstaller {
     }
 
     /**
-     * Acquires an exclusive lock for the machine we're executing on.
+     * Gets the installation lock for the given node.
      * <p>
-     * The lock only has one permit, meaning that other executors on the same node which want to
-     * install SDK components will block here until the lock is released by another executor.
+     * Executors extracting SDK components from the master's cache share the read lock, so that they
+     * can install different components at the same time.  The write lock is held while installing
+     * the base SDK or running the {@code android} tool, neither of which may happen alongside any
+     * other installation on the same node.  Checking whether something is installed doesn't require
+     * the lock.
+     * </p>
      *
-     * @return The semaphore for the current machine, which must be released once finished with.
+     * @return The lock for the given node.
      */
-    private static Semaphore acquireLock() throws InterruptedException {
-        // Retrieve the lock for this node
-        Semaphore semaphore;
-        final Node node = Computer.currentComputer().getNode();
-        synchronized (node) {
-            semaphore = mutexByNode.get(node);
-            if (semaphore == null) {
-                semaphore = new Semaphore(1);
-                mutexByNode.put(node, semaphore);
+    private static ReadWriteLock getLock(Node node) {
+        synchronized (locksByNode) {
+            ReadWriteLock lock = locksByNode.get(node);
+            if (lock == null) {
+                lock = new ReentrantReadWriteLock();
+                locksByNode.put(node, lock);
             }
+            return lock;
         }
+    }
 
-        // Block until the lock is available
-        semaphore.acquire();
-        return semaphore;
+    /** @return The components being installed on the given node; must be synchronized on when used. */
+    private static Map<String, Installation> getInstallsInProgress(Node node) {
+        synchronized (installsByNode) {
+            Map<String, Installation> installs = installsByNode.get(node);
+            if (installs == null) {
+                installs = new HashMap<String, Installation>();
+                installsByNode.put(node, installs);
+            }
+            return installs;
+        }
     }
 
     private static String getProxySettings() {
@@ -519,6 +691,24 @@ public class SdkInstaller {
         private static final long serialVersionUID = 1L;
     }
 
+    /** An installation of one or more components, which other executors can wait for. */
+    private static final class Installation {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean succeeded;
+
+        void finish(boolean succeeded) {
+            this.succeeded = succeeded;
+            done.countDown();
+        }
+
+        /** @return {@code true} if the installation succeeded. */
+        boolean await() throws InterruptedException {
+            done.await();
+            return succeeded;
+        }
+    }
+
     /** Helper to run SDK statistics opt-out task on a remote node. */
     private static final class StatsOptOutTask extends MasterToSlaveCallable<Void, Exception> {
 
@@ -0,0 +1,349 @@
+package hudson.plugins.android_emulator;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.plugins.android_emulator.AndroidEmulator.DescriptorImpl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static hudson.plugins.android_emulator.AndroidEmulator.log;
+
+/**
+ * Keeps copies of SDK archives and components on the Jenkins master, so that each only has to be
+ * downloaded over the internet once, rather than once per build machine.
+ * <p>
+ * The base SDK archive is fetched by the master, from the configured package source if it's there,
+ * otherwise from Google.  Components are taken from the package source too, if they're there, and
+ * otherwise are installed on each build machine via the {@code android} tool as usual.  Archives are
+ * never taken from build machines, as nothing could vouch for what a machine sent back.  Build
+ * machines are sent the archives over the remoting channel, and the checksum of each copy is
+ * verified before it's extracted.
+ * </p><p>
+ * Archives can be put in the package source, or the cache directory, by hand: the base SDK under
+ * its usual download name, e.g. {@code android-sdk_r24.4.1-linux.tgz}, and components as a zip of
+ * the SDK directory they install into, named after the component, e.g.
+ * {@code sys-img-x86-android-23.zip}.  Only components whose contents never change for a given
+ * name are cached, i.e. not "tool", "platform-tool" or the "extra" repositories.
+ * </p>
+ */
+final class SdkPackageCache {
+
+    /** File in an SDK installed from the cache, recording the checksum of the base archive. */
+    private static final String ARCHIVE_MARKER = ".jenkins-sdk-archive";
+
+    /** ABIs used in system image component names, longest first, as some are prefixes of others. */
+    private static final String ABIS = "armeabi-v7a|armeabi|arm64-v8a|x86_64|x86|mips64|mips";
+
+    private static final Pattern PLATFORM = Pattern.compile("android-(\\d+)");
+    private static final Pattern SYSTEM_IMAGE = Pattern.compile("sys-img-(" + ABIS + ")-(.+)-(\\d+)");
+    private static final Pattern ADDON = Pattern.compile("addon-.+-\\d+");
+    private static final Pattern BUILD_TOOLS = Pattern.compile("build-tools-(.+)");
+
+    private SdkPackageCache() {}
+
+    /** @return Whether SDK packages should be installed via the master's cache. */
+    static boolean isEnabled() {
+        DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        return descriptor != null && descriptor.shouldCacheSdk;
+    }
+
+    /** @return The directory on the master in which downloaded packages are kept. */
+    static File getCacheDirectory() {
+        return new File(Hudson.getInstance().getRootDir(), "android-sdk-cache");
+    }
+
+    /**
+     * Installs the base SDK on a build machine from the cached archive, unless it's already installed.
+     * <p>
+     * As with {@link FilePath#installIfNecessaryFrom}, the archive's contents end up in a single
+     * subdirectory of the installation directory, which the caller should move into place.
+     * </p>
+     *
+     * @param installDir Where the SDK should be installed.
+     * @param downloadUrl Where to download the archive from, if it's not in the cache or package source.
+     * @param logger Logs things.
+     * @return {@code true} if the SDK was installed now.
+     * @throws IOException If the archive could not be fetched, or failed to arrive intact.
+     */
+    static boolean installBasicSdk(FilePath installDir, URL downloadUrl, PrintStream logger)
+            throws IOException, InterruptedException {
+        // Installed either from the cache, or downloaded directly before the cache was enabled
+        if (installDir.child(ARCHIVE_MARKER).exists() || installDir.child(".timestamp").exists()) {
+            return false;
+        }
+
+        final String path = downloadUrl.getPath();
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        final File archive = getArchive(name, downloadUrl, logger);
+        final String checksum = getChecksum(archive);
+
+        log(logger, Messages.SDK_PACKAGE_FROM_CACHE(name));
+        if (installDir.exists()) {
+            installDir.deleteContents();
+        } else {
+            installDir.mkdirs();
+        }
+        final FilePath copy = transfer(archive, checksum, installDir);
+        try {
+            if (name.endsWith(".zip")) {
+                copy.unzip(installDir);
+            } else {
+                copy.untar(installDir, FilePath.TarCompression.GZIP);
+            }
+        } finally {
+            copy.delete();
+        }
+        installDir.child(ARCHIVE_MARKER).write(checksum, "UTF-8");
+        return true;
+    }
+
+    /**
+     * Installs whichever of the given components are available from the cache or package source
+     * into the SDK on a build machine.  As each component has its own directory, they're all
+     * transferred and extracted at the same time.
+     *
+     * @param sdkRoot Root of the SDK on the build machine.
+     * @param components Names of the components to install.
+     * @param logger Logs things.
+     * @return The components which were not installed, and so still need to be installed via the
+     *         {@code android} tool.
+     */
+    static List<String> installComponents(final FilePath sdkRoot, List<String> components,
+            final PrintStream logger) throws InterruptedException {
+        final Map<String, Future<Boolean>> installs = new LinkedHashMap<String, Future<Boolean>>();
+        for (final String component : components) {
+            installs.put(component, Computer.threadPoolForRemoting.submit(new Callable<Boolean>() {
+                public Boolean call() throws InterruptedException {
+                    return installComponent(sdkRoot, component, logger);
+                }
+            }));
+        }
+
+        final List<String> remaining = new ArrayList<String>();
+        try {
+            for (Map.Entry<String, Future<Boolean>> install : installs.entrySet()) {
+                try {
+                    if (!install.getValue().get()) {
+                        remaining.add(install.getKey());
+                    }
+                } catch (ExecutionException e) {
+                    log(logger, Messages.SDK_PACKAGE_CACHE_FAILED(install.getKey()), e.getCause());
+                    remaining.add(install.getKey());
+                }
+            }
+        } finally {
+            // If we were interrupted, don't leave anything running
+            for (Future<Boolean> install : installs.values()) {
+                install.cancel(true);
+            }
+        }
+        return remaining;
+    }
+
+    /** @return {@code true} if the given component was installed from the cache. */
+    private static boolean installComponent(FilePath sdkRoot, String component, PrintStream logger)
+            throws InterruptedException {
+        final String path = getComponentPath(component);
+        if (path == null) {
+            return false;
+        }
+
+        final String name = getArchiveName(component);
+        final FilePath target = sdkRoot.child(path);
+        try {
+            File archive = getArchive(name, null, logger);
+            if (archive == null) {
+                return false;
+            }
+
+            log(logger, Messages.SDK_PACKAGE_FROM_CACHE(name));
+            target.deleteRecursive();
+            FilePath copy = transfer(archive, getChecksum(archive), sdkRoot);
+            try {
+                copy.unzip(sdkRoot);
+            } finally {
+                copy.delete();
+            }
+
+            // An archive which doesn't contain the directory it's named after would otherwise leave
+            // the component looking installed, or unpack elsewhere in the SDK without being noticed
+            if (!target.child("source.properties").exists()) {
+                log(logger, Messages.SDK_PACKAGE_ARCHIVE_INVALID(name, path));
+                target.deleteRecursive();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            // Don't leave a partial component behind, which may look like it's installed
+            log(logger, Messages.SDK_PACKAGE_CACHE_FAILED(name), e);
+            try {
+                target.deleteRecursive();
+            } catch (IOException ignore) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gets the SDK directory into which the given component is installed, if it's one we cache.
+     *
+     * @param component Component name, as given to {@code android update sdk}.
+     * @return The directory, relative to the SDK root, or {@code null} if the component isn't cached.
+     */
+    static String getComponentPath(String component) {
+        final String name = component.replace("\"", "");
+        Matcher matcher = PLATFORM.matcher(name);
+        if (matcher.matches()) {
+            return "platforms/" + name;
+        }
+        matcher = SYSTEM_IMAGE.matcher(name);
+        if (matcher.matches()) {
+            String tag = "android".equals(matcher.group(2)) ? "default" : matcher.group(2);
+            return String.format("system-images/android-%s/%s/%s", matcher.group(3), tag, matcher.group(1));
+        }
+        if (ADDON.matcher(name).matches()) {
+            return "add-ons/" + name;
+        }
+        matcher = BUILD_TOOLS.matcher(name);
+        if (matcher.matches()) {
+            return "build-tools/" + matcher.group(1);
+        }
+        return null;
+    }
+
+    private static String getArchiveName(String component) {
+        return component.replace("\"", "") + ".zip";
+    }
+
+    /**
+     * Gets the given archive from the cache, first fetching it from the package source or the
+     * given URL if necessary.
+     *
+     * @param name File name of the archive.
+     * @param fallbackUrl Where to fetch the archive from if it's not in the package source; may be
+     *                    {@code null}.
+     * @return The archive, or {@code null} if it isn't cached and could not be found.
+     */
+    private static File getArchive(String name, URL fallbackUrl, PrintStream logger)
+            throws IOException, InterruptedException {
+        final File cached = new File(getCacheDirectory(), name);
+        if (cached.isFile()) {
+            return cached;
+        }
+
+        // A local package source can be used as-is
+        final String source = getPackageSource();
+        if (source != null && new File(source).isDirectory()) {
+            File file = new File(source, name);
+            if (file.isFile()) {
+                return file;
+            }
+        } else if (source != null && download(getSourceUrl(source, name), cached, logger)) {
+            return cached;
+        }
+
+        if (fallbackUrl != null && download(fallbackUrl, cached, logger)) {
+            return cached;
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the given URL into the cache.
+     *
+     * @return {@code true} if downloaded, or {@code false} if there's nothing at the URL.
+     */
+    private static boolean download(URL url, File cached, PrintStream logger)
+            throws IOException, InterruptedException {
+        if (url == null) {
+            return false;
+        }
+        log(logger, Messages.SDK_PACKAGE_CACHING(cached.getName(), url));
+        final File temp = createTempFile(cached.getName());
+        try {
+            new FilePath(temp).copyFrom(url);
+            moveIntoCache(temp, cached);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Copies a cached archive to the build machine, and checks that it arrived intact.
+     *
+     * @return The copy, in the given directory, which the caller must delete.
+     */
+    private static FilePath transfer(File archive, String checksum, FilePath directory)
+            throws IOException, InterruptedException {
+        final FilePath copy = directory.createTempFile("package", ".tmp");
+        new FilePath(archive).copyTo(copy);
+        if (!checksum.equals(copy.digest())) {
+            copy.delete();
+            throw new IOException(Messages.SDK_PACKAGE_CHECKSUM_MISMATCH(archive.getName()));
+        }
+        return copy;
+    }
+
+    /**
+     * @return The MD5 checksum of the given archive, which is calculated only once.  Checksums are
+     *         kept in the cache directory, even for archives from a local package source.
+     */
+    private static String getChecksum(File archive) throws IOException, InterruptedException {
+        final File checksumFile = new File(getCacheDirectory(), archive.getName() + ".md5");
+        if (checksumFile.isFile() && checksumFile.lastModified() >= archive.lastModified()) {
+            return Util.loadFile(checksumFile, "UTF-8").trim();
+        }
+        final String checksum = new FilePath(archive).digest();
+        new FilePath(checksumFile).write(checksum, "UTF-8");
+        return checksum;
+    }
+
+    /** Creates a file in the cache directory, which isn't seen as an archive until it's moved into place. */
+    private static File createTempFile(String name) throws IOException {
+        final File directory = getCacheDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return File.createTempFile("." + name + ".", ".tmp", directory);
+    }
+
+    /** Renames a completed download into the cache, unless another build already put it there. */
+    private static void moveIntoCache(File temp, File cached) throws IOException {
+        if (!temp.renameTo(cached) && !cached.isFile()) {
+            throw new IOException("Could not create " + cached);
+        }
+    }
+
+    private static String getPackageSource() {
+        DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        return descriptor == null ? null : Util.fixEmptyAndTrim(descriptor.sdkPackageSource);
+    }
+
+    private static URL getSourceUrl(String source, String name) {
+        try {
+            return new URL(new URL(source.endsWith("/") ? source : source + "/"), name);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+}
@@ -1,14 +1,13 @@
 package hudson.plugins.android_emulator;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.matrix.MatrixConfiguration;
 import hudson.model.BuildableItemWithBuildWrappers;
-import hudson.model.Executor;
+import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Node;
-import hudson.model.Queue;
 import hudson.model.Queue.BuildableItem;
-import hudson.model.Queue.Executable;
 import hudson.model.Queue.Task;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
@@ -23,6 +22,22 @@ import hudson.plugins.android_emulator.AndroidEmulator.DescriptorImpl;
  * From the given {@link hudson.model.Queue.Task Task}, we form a hash of the emulator configuration
  * and check whether any other build currently running on the given {@link hudson.model.Node Node}
  * is already using this configuration. If so, we veto execution of the given {@code Task}.
+ * </p><p>
+ * As this is called for every combination of node and queued task, each time the queue is maintained,
+ * running builds are looked up in the {@link EmulatorConfigIndex}, and config hashes are cached.
+ * </p><p>
+ * We also hold back builds while the node is already running as many emulators as its configured
+ * capacity allows, so that they can be picked up by other nodes, or wait until there's room.  Builds
+ * whose emulator runs on a dedicated emulator host are instead held back until one of the hosts has
+ * room for the emulator, and isn't already running the same AVD.
+ * </p><p>
+ * Builds waiting for the same emulator are given it in the order they were queued, using the
+ * {@link EmulatorWaitingLine}.  Finally, builds are briefly held back from nodes which don't yet have
+ * the required emulator, if another node that does have it (see {@link AvdInventory}) could start
+ * the build right now instead, taking into account all of the checks here.
+ * </p><p>
+ * If AVD cloning is enabled, builds are not held back once the AVD (and its snapshot) exist on the
+ * node, as each build then runs its own clone of it.
  * </p>
  * As Android emulator attributes will quite often be parameterised (especially for matrix builds),
  * we attempt to expand as many variables as possible, i.e. from the environment of the {@code Node}
@@ -33,48 +48,85 @@ import hudson.plugins.android_emulator.AndroidEmulator.DescriptorImpl;
 @Extension
 public class TaskDispatcher extends QueueTaskDispatcher {
 
+    /**
+     * How long a queued build may wait for a node which already has its emulator, before it accepts
+     * any node.  This is short compared to creating and cold-booting an emulator.
+     */
+    private static final long LOCALITY_WAIT_MS = 60 * 1000;
+
     @Override
-    public CauseOfBlockage canTake(Node node, Task task) {
+    public CauseOfBlockage canTake(Node node, BuildableItem item) {
+        return canTake(node, item, false);
+    }
+
+    /**
+     * Determines whether the given build should be held back from the given node.
+     *
+     * @param hypothetical Whether we're only checking if the build could run on the node, rather than
+     *                     actually offering it the node; if so, the build doesn't join any waiting line,
+     *                     and isn't held back in favour of other nodes.
+     */
+    private CauseOfBlockage canTake(Node node, BuildableItem item, boolean hypothetical) {
         // If the given task doesn't use the AndroidEmulator BuildWrapper, we don't care.
-        // Or, if there is an emulator hash, but with unresolved environment variables, we shouldn't block the build
-        String desiredHash = getEmulatorConfigHashForTask(node, task);
-        if (desiredHash == null || desiredHash.contains("$")) {
+        final Task task = item.task;
+        AndroidEmulator androidWrapper = getEmulatorWrapper(task);
+        DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        if (androidWrapper == null || descriptor == null) {
             return null;
         }
 
+        // Check whether this machine has room for another emulator or, if it will run on a dedicated
+        // emulator host, whether one of those has room for it, and isn't already running the same AVD
+        final String hostLabel = Util.fixEmptyAndTrim(androidWrapper.emulatorHostLabel);
+        final boolean isLocal = hostLabel == null;
+        if (isLocal) {
+            CauseOfBlockage noCapacity = EmulatorCapacity.check(node, descriptor);
+            if (noCapacity != null) {
+                return noCapacity;
+            }
+        } else if (!hostLabel.contains("$")) {
+            String hash = descriptor.shouldKeepInWorkspace ? null : getEmulatorConfigHashForTask(node, task);
+            if (hash != null && hash.contains("$")) {
+                hash = null;
+            }
+            if (AndroidEmulator.findEmulatorHost(hostLabel, hash, descriptor) == null) {
+                return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_EMULATOR_HOST(hostLabel));
+            }
+        }
+
         // If the AndroidEmulator uses workspace-local emulators, we don't care.
-        DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
-        if (descriptor != null && descriptor.shouldKeepInWorkspace) {
+        if (descriptor.shouldKeepInWorkspace) {
           return null;
         }
 
-        // Check for builds in the queue which have the same emulator config as this task
-        Queue queue = Hudson.getInstance().getQueue();
-        for (BuildableItem item : queue.getBuildableItems()) {
-            Task queuedTask = item.task;
-            if (task == queuedTask) {
-                continue;
-            }
+        // If there is an emulator hash, but with unresolved environment variables, we shouldn't block the build
+        String desiredHash = getEmulatorConfigHashForTask(node, task);
+        if (desiredHash == null || desiredHash.contains("$")) {
+            return null;
+        }
 
-            // If build with matching config is about to start (is "pending"), hold off for a moment
-            if (queue.isPending(queuedTask)) {
-                String queuedTaskHash = getEmulatorConfigHashForTask(node, queuedTask);
-                if (desiredHash.equals(queuedTaskHash)) {
-                    return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_EMULATOR());
-                }
+        // Builds run their own clone of the AVD, once it exists on this machine, so don't need to wait
+        if (descriptor.shouldCloneAvds && isLocal && !androidWrapper.deleteAfterBuild) {
+            final int warmth = AvdInventory.getWarmth(node.getNodeName(), desiredHash, androidWrapper.useSnapshots);
+            if (warmth == (androidWrapper.useSnapshots ? AvdInventory.SNAPSHOT_EXISTS : AvdInventory.AVD_EXISTS)) {
+                return null;
             }
         }
 
-        // Check whether a build with this emulator config is already running on this machine
-        for (Executor e : node.toComputer().getExecutors()) {
-            Executable executable = e.getCurrentExecutable();
-            if (executable == null) {
-                continue;
-            }
+        // Wait in line if the emulator is busy, or if others have been waiting longer for it;
+        // emulators running on an emulator host were checked above, when looking for a host
+        if ((isLocal && isEmulatorBusy(node, task, desiredHash))
+                || EmulatorWaitingLine.hasEarlierWaiter(desiredHash, item, node)) {
+            return hypothetical ? CauseOfBlockage.fromMessage(Messages._WAITING_FOR_EMULATOR())
+                    : EmulatorWaitingLine.wait(desiredHash, item);
+        }
 
-            String hash = getEmulatorConfigHashForTask(node, executable.getParent());
-            if (desiredHash.equals(hash)) {
-                return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_EMULATOR());
+        // Prefer nodes where the emulator already exists, so long as one is free to take the build
+        if (isLocal && !hypothetical && System.currentTimeMillis() - item.buildableStartMilliseconds < LOCALITY_WAIT_MS) {
+            for (Node warmerNode : AvdInventory.getWarmerNodes(node, desiredHash, androidWrapper.useSnapshots)) {
+                if (couldStartOn(warmerNode, item)) {
+                    return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_WARM_NODE(warmerNode.getDisplayName()));
+                }
             }
         }
 
@@ -82,6 +134,54 @@ public class TaskDispatcher extends QueueTaskDispatcher {
         return null;
     }
 
+    /**
+     * Determines whether the given build could start on the given node right now, i.e. the node is
+     * online with an idle executor, and neither the node itself nor any {@link QueueTaskDispatcher}
+     * (including this one) would hold the build back from it.
+     *
+     * @param node The node to check.
+     * @param item The queued build.
+     * @return {@code true} if the build could be given the node.
+     */
+    static boolean couldStartOn(Node node, BuildableItem item) {
+        final Computer computer = node.toComputer();
+        if (computer == null || computer.isOffline() || !computer.isAcceptingTasks()
+                || computer.countIdle() == 0 || node.canTake(item) != null) {
+            return false;
+        }
+        for (QueueTaskDispatcher dispatcher : QueueTaskDispatcher.all()) {
+            final CauseOfBlockage cause = dispatcher instanceof TaskDispatcher
+                    ? ((TaskDispatcher) dispatcher).canTake(node, item, true) : dispatcher.canTake(node, item);
+            if (cause != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Determines whether the emulator with the given config hash is currently in use on the given node. */
+    private static boolean isEmulatorBusy(Node node, Task task, String desiredHash) {
+        // Check whether a build with this emulator config is already running on this machine
+        if (EmulatorConfigIndex.isRunning(node, desiredHash)) {
+            return true;
+        }
+
+        // Check whether this emulator is busy having its snapshot regenerated on this machine
+        if (AndroidEmulator.isRegeneratingSnapshot(node, desiredHash)) {
+            return true;
+        }
+
+        // If build with matching config is about to start (is "pending"), hold off for a moment.
+        // There are only ever a handful of these, unlike the buildable items in the queue as a whole
+        for (BuildableItem item : Hudson.getInstance().getQueue().getPendingItems()) {
+            Task pendingTask = item.task;
+            if (task != pendingTask && desiredHash.equals(getEmulatorConfigHashForTask(node, pendingTask))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Determines the Android emulator configuration for the given task, if any.
      *
@@ -90,7 +190,27 @@ public class TaskDispatcher extends QueueTaskDispatcher {
      * @return A hash representing the Android emulator configuration for the task, or {@code null}
      *         if the given task is not configured to start an Android emulator.
      */
-    private static String getEmulatorConfigHashForTask(Node node, SubTask task) {
+    static String getEmulatorConfigHashForTask(Node node, SubTask task) {
+        // If we aren't one of the wrappers for this build, we don't care
+        AndroidEmulator androidWrapper = getEmulatorWrapper(task);
+        if (androidWrapper == null) {
+            return null;
+        }
+
+        if (task instanceof MatrixConfiguration) {
+            // If this is a matrix sub-build, substitute in the build variables
+            return androidWrapper.getConfigHash(node, ((MatrixConfiguration) task).getCombination());
+        }
+        return androidWrapper.getConfigHash(node);
+    }
+
+    /**
+     * Retrieves the Android emulator configuration for the given task, if any.
+     *
+     * @param task The task whose Android emulator configuration should be determined.
+     * @return The AndroidEmulator BuildWrapper for the task, or {@code null} if it doesn't use one.
+     */
+    static AndroidEmulator getEmulatorWrapper(SubTask task) {
         // If the job doesn't use any BuildWrappers, we don't care
         if (!(task instanceof BuildableItemWithBuildWrappers)) {
             return null;
@@ -98,25 +218,12 @@ public class TaskDispatcher extends QueueTaskDispatcher {
 
         // Fetch the item that actually contains the BuildWrapper config and downcast it
         BuildableItemWithBuildWrappers job;
-        MatrixConfiguration matrixBuild = null;
         if (task instanceof MatrixConfiguration) {
-            matrixBuild = (MatrixConfiguration) task;
-            job = matrixBuild.getParent();
+            job = ((MatrixConfiguration) task).getParent();
         } else {
             job = (BuildableItemWithBuildWrappers) task;
         }
-
-        // If we aren't one of the wrappers for this build, we don't care
-        AndroidEmulator androidWrapper = job.getBuildWrappersList().get(AndroidEmulator.class);
-        if (androidWrapper == null) {
-            return null;
-        }
-
-        if (matrixBuild != null) {
-            // If this is a matrix sub-build, substitute in the build variables
-            return androidWrapper.getConfigHash(node, matrixBuild.getCombination());
-        }
-        return androidWrapper.getConfigHash(node);
+        return job.getBuildWrappersList().get(AndroidEmulator.class);
     }
 
 }
@@ -172,7 +172,7 @@ public abstract class AbstractBuilder extends Builder {
      * @param variable The name of the variable to expand.
      * @return The value of the expanded variable, or {@code null} if it could not be resolved.
      */
-    private static String expandVariable(AbstractBuild<?, ?> build, BuildListener listener,
+    protected static String expandVariable(AbstractBuild<?, ?> build, BuildListener listener,
             String variable) {
         String varFormat = String.format("$%s", variable);
         String value = Utils.expandVariables(build, listener, varFormat);
@@ -290,7 +290,7 @@ public abstract class AbstractBuilder extends Builder {
      * @throws IOException If execution failed.
      * @throws InterruptedException If execution failed.
      */
-    private static String getPackageIdForApk(FilePath apkPath) throws IOException, InterruptedException {
+    protected static String getPackageIdForApk(FilePath apkPath) throws IOException, InterruptedException {
         return apkPath.act(new MasterToSlaveFileCallable<String>() {
             public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
                 return getApkMetadata(f).getPackageName();
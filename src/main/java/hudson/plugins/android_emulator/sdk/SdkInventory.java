@@ -0,0 +1,339 @@
+package hudson.plugins.android_emulator.sdk;
+
+import hudson.Util;
+import hudson.plugins.android_emulator.util.Utils;
+import hudson.util.VersionNumber;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The platforms, add-ons, system images and build tools installed in an Android SDK.
+ * <p>
+ * Rather than running {@code android list target} or {@code android list sdk}, which take several
+ * seconds each, this reads the {@code source.properties} (or, for add-ons, {@code manifest.ini})
+ * file which the SDK Manager puts in the directory of each package it installs.  This also works
+ * without network access.
+ * </p><p>
+ * The inventory of each SDK is cached on the machine where the SDK lives, and is discarded as soon
+ * as a package is added or removed, which is detected via the modification times of the directories
+ * in which each package is installed.  These methods must be run on that machine, i.e. from within
+ * a remote task.
+ * </p>
+ */
+public final class SdkInventory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tag given to system images which have none, i.e. stock Android. */
+    private static final String DEFAULT_TAG = "default";
+
+    /** Inventories by SDK root. */
+    private static final Map<String, SdkInventory> cache = new HashMap<String, SdkInventory>();
+
+    /** Installed targets, by name, e.g. "android-23" or "Google Inc.:Google APIs:23". */
+    private final Map<String, Target> targets;
+
+    /** Installed build tools revisions, newest first. */
+    private final List<String> buildTools;
+
+    /** State of the SDK directories when this inventory was taken. */
+    private final String stamp;
+
+    private SdkInventory(Map<String, Target> targets, List<String> buildTools, String stamp) {
+        this.targets = targets;
+        this.buildTools = buildTools;
+        this.stamp = stamp;
+    }
+
+    /**
+     * Gets the inventory of the given SDK, scanning it only if it has changed since the last time.
+     *
+     * @param sdkRoot Root directory of the SDK.
+     * @return The packages installed in the SDK.
+     */
+    public static SdkInventory get(File sdkRoot) {
+        final String key = sdkRoot.getAbsolutePath();
+        final String stamp = getStamp(sdkRoot);
+        synchronized (cache) {
+            SdkInventory cached = cache.get(key);
+            if (cached != null && cached.stamp.equals(stamp)) {
+                return cached;
+            }
+        }
+
+        // Keep the stamp from before scanning, so that any change made meanwhile is noticed next time
+        final SdkInventory inventory = scan(sdkRoot, stamp);
+        synchronized (cache) {
+            cache.put(key, inventory);
+        }
+        return inventory;
+    }
+
+    /** @return The installed targets, in no particular order. */
+    public Collection<Target> getTargets() {
+        return Collections.unmodifiableCollection(targets.values());
+    }
+
+    /** @return {@code true} if the given target, e.g. "android-23" or "Google Inc.:Google APIs:23", is installed. */
+    public boolean hasTarget(String target) {
+        return targets.containsKey(target);
+    }
+
+    /**
+     * Determines whether the given target is installed with a system image for the given ABI.
+     *
+     * @param target The target name.
+     * @param abi The ABI, optionally prefixed with a tag, e.g. "x86" or "google_apis/x86".  An ABI
+     *            without a tag matches system images with any tag.
+     * @return {@code true} if a matching system image is installed.
+     */
+    public boolean hasAbi(String target, String abi) {
+        final Target installed = targets.get(target);
+        if (installed == null) {
+            return false;
+        }
+        for (String image : installed.getAbis()) {
+            if (image.equals(abi) || image.endsWith("/" + abi)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The installed build tools revisions, e.g. "23.0.2", newest first. */
+    public List<String> getBuildTools() {
+        return Collections.unmodifiableList(buildTools);
+    }
+
+    private static SdkInventory scan(File sdkRoot, String stamp) {
+        final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+
+        // Platforms, with their system images, whether tagged or from the old layouts
+        final Map<Integer, Target> platformsByLevel = new HashMap<Integer, Target>();
+        for (File platform : listDirectories(new File(sdkRoot, "platforms"))) {
+            Map<String, String> properties = readProperties(new File(platform, "source.properties"));
+            int level = parseInt(properties.get("AndroidVersion.ApiLevel"));
+            if (level <= 0) {
+                continue;
+            }
+            String codename = Util.fixEmptyAndTrim(properties.get("AndroidVersion.CodeName"));
+            Target target = new Target(codename == null ? "android-" + level : "android-" + codename, level, false);
+            addImages(target, new File(platform, "images"), DEFAULT_TAG);
+            targets.put(target.name, target);
+            platformsByLevel.put(level, target);
+        }
+        for (File version : listDirectories(new File(sdkRoot, "system-images"))) {
+            for (File child : listDirectories(version)) {
+                if (isSystemImage(child)) {
+                    // Older layout, without tags
+                    addImage(platformsByLevel, version, child, DEFAULT_TAG, child.getName());
+                    continue;
+                }
+                for (File abi : listDirectories(child)) {
+                    if (isSystemImage(abi)) {
+                        addImage(platformsByLevel, version, abi, child.getName(), abi.getName());
+                    }
+                }
+            }
+        }
+
+        // Add-ons, with the images in their own directory, or those tagged with their ID
+        for (File addOn : listDirectories(new File(sdkRoot, "add-ons"))) {
+            Map<String, String> manifest = readProperties(new File(addOn, "manifest.ini"));
+            int level = parseInt(manifest.get("api"));
+            if (level <= 0 || manifest.get("vendor") == null || manifest.get("name") == null) {
+                continue;
+            }
+            String name = String.format("%s:%s:%s", manifest.get("vendor"), manifest.get("name"), level);
+            Target target = new Target(name, level, true);
+            addImages(target, new File(addOn, "images"), null);
+            if (target.abis.isEmpty()) {
+                String tag = readProperties(new File(addOn, "source.properties")).get("Addon.NameId");
+                Target platform = platformsByLevel.get(level);
+                if (tag != null && platform != null) {
+                    for (String image : platform.abis) {
+                        if (image.startsWith(tag + "/")) {
+                            target.abis.add(image);
+                        }
+                    }
+                }
+            }
+            targets.put(name, target);
+        }
+
+        // Build tools, newest first
+        final List<String> buildTools = new ArrayList<String>();
+        for (File dir : listDirectories(new File(sdkRoot, "build-tools"))) {
+            String revision = readProperties(new File(dir, "source.properties")).get("Pkg.Revision");
+            if (revision != null) {
+                buildTools.add(revision.trim());
+            }
+        }
+        Collections.sort(buildTools, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return new VersionNumber(b).compareTo(new VersionNumber(a));
+            }
+        });
+
+        return new SdkInventory(targets, buildTools, stamp);
+    }
+
+    /**
+     * Adds a system image to the platform of the API level it belongs to.
+     *
+     * @param versionDirectory The directory under {@code system-images} containing the image, e.g.
+     *                         "android-23", which gives the API level if the image has no properties.
+     */
+    private static void addImage(Map<Integer, Target> platformsByLevel, File versionDirectory, File image,
+            String tag, String abi) {
+        int level = parseInt(readProperties(new File(image, "source.properties")).get("AndroidVersion.ApiLevel"));
+        if (level <= 0) {
+            level = parseInt(versionDirectory.getName().replace("android-", ""));
+        }
+        Target platform = platformsByLevel.get(level);
+        if (platform != null) {
+            platform.abis.add(tag + "/" + abi);
+        }
+    }
+
+    /**
+     * Adds the system images in the given directory, which either is one, or contains ABI directories.
+     *
+     * @param tag The tag to give the images, or {@code null} to read it from each image's properties.
+     */
+    private static void addImages(Target target, File directory, String tag) {
+        if (isSystemImage(directory)) {
+            Map<String, String> properties = readProperties(new File(directory, "source.properties"));
+            String abi = properties.get("SystemImage.Abi");
+            target.abis.add(getTag(properties, tag) + "/" + (abi == null ? "armeabi" : abi));
+            return;
+        }
+        for (File abi : listDirectories(directory)) {
+            if (isSystemImage(abi)) {
+                target.abis.add(getTag(readProperties(new File(abi, "source.properties")), tag) + "/" + abi.getName());
+            }
+        }
+    }
+
+    private static String getTag(Map<String, String> properties, String tag) {
+        if (tag != null) {
+            return tag;
+        }
+        String imageTag = properties.get("SystemImage.TagId");
+        return imageTag == null ? DEFAULT_TAG : imageTag;
+    }
+
+    private static boolean isSystemImage(File directory) {
+        return new File(directory, "system.img").isFile();
+    }
+
+    /**
+     * Describes the state of the SDK, via the modification times of the directories containing the
+     * platforms, add-ons, system images and build tools, and of each of their package directories.
+     */
+    static String getStamp(File sdkRoot) {
+        final StringBuilder stamp = new StringBuilder();
+        appendStamp(stamp, new File(sdkRoot, "platforms"), 1);
+        appendStamp(stamp, new File(sdkRoot, "add-ons"), 1);
+        appendStamp(stamp, new File(sdkRoot, "build-tools"), 1);
+        // e.g. system-images/android-23/google_apis/x86
+        appendStamp(stamp, new File(sdkRoot, "system-images"), 3);
+        return stamp.toString();
+    }
+
+    private static void appendStamp(StringBuilder stamp, File directory, int depth) {
+        stamp.append(directory.getName()).append('@').append(directory.lastModified()).append(';');
+        if (depth == 0) {
+            return;
+        }
+        final File[] children = listDirectories(directory);
+        Arrays.sort(children);
+        for (File child : children) {
+            appendStamp(stamp, child, depth - 1);
+        }
+    }
+
+    private static File[] listDirectories(File directory) {
+        File[] children = directory.listFiles(DIRECTORIES);
+        return children == null ? new File[0] : children;
+    }
+
+    private static Map<String, String> readProperties(File file) {
+        if (!file.isFile()) {
+            return Collections.emptyMap();
+        }
+        try {
+            return Utils.parseConfigFile(file);
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final FileFilter DIRECTORIES = new FileFilter() {
+        public boolean accept(File file) {
+            return file.isDirectory();
+        }
+    };
+
+    /** An installed platform or add-on. */
+    public static final class Target implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int apiLevel;
+        private final boolean addOn;
+        private final List<String> abis = new ArrayList<String>();
+
+        Target(String name, int apiLevel, boolean addOn) {
+            this.name = name;
+            this.apiLevel = apiLevel;
+            this.addOn = addOn;
+        }
+
+        /** @return The target name, e.g. "android-23" or "Google Inc.:Google APIs:23". */
+        public String getName() {
+            return name;
+        }
+
+        public int getApiLevel() {
+            return apiLevel;
+        }
+
+        public boolean isAddOn() {
+            return addOn;
+        }
+
+        /** @return The installed system images, as "tag/abi", e.g. "default/x86" or "google_apis/x86". */
+        public List<String> getAbis() {
+            return Collections.unmodifiableList(abis);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + abis;
+        }
+
+    }
+
+}
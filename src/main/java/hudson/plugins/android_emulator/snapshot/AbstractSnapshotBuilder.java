@@ -1,46 +1,268 @@
 package hudson.plugins.android_emulator.snapshot;
 
 import static hudson.plugins.android_emulator.AndroidEmulator.log;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.plugins.android_emulator.Messages;
 import hudson.plugins.android_emulator.builder.AbstractBuilder;
+import hudson.plugins.android_emulator.sdk.AndroidSdk;
 import hudson.plugins.android_emulator.util.Utils;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
+import org.apache.tools.ant.DirectoryScanner;
 import org.kohsuke.stapler.export.Exported;
 
 public abstract class AbstractSnapshotBuilder extends AbstractBuilder {
 
     private static final int DEFAULT_TIMEOUT_MS = 2 * 60 * 1000;
 
-    /** Name of the snapshot involved. */
+    /** Default prefix for content-addressed snapshots, if no snapshot name is given. */
+    private static final String CONTENT_SNAPSHOT_PREFIX = "jenkins-apps";
+
+    /** Number of hex characters of the content hash to use in snapshot names. */
+    private static final int CONTENT_HASH_LENGTH = 16;
+
+    /** Environment variable set by the plugin if the emulator's snapshots are deleted after the build. */
+    private static final String SNAPSHOTS_DISCARDED_VARIABLE = "ANDROID_AVD_SNAPSHOTS_DISCARDED";
+
+    /** Environment variable set by the plugin to the node name of the emulator host, if the emulator runs on one. */
+    private static final String EMULATOR_HOST_NODE_VARIABLE = "ANDROID_AVD_HOST_NODE";
+
+    /** Name of the snapshot involved; for content-addressed snapshots, this is the name prefix. */
     @Exported
     public final String name;
 
+    /**
+     * Comma-separated workspace file patterns for the APKs the snapshot is identified by.
+     * If set, the snapshot name is derived from the content of these files.
+     */
+    @Exported
+    public final String apkFiles;
+
+    /** Key identifying any further data set up on the device, for content-addressed snapshots. */
+    @Exported
+    public final String fixtureKey;
+
     protected AbstractSnapshotBuilder(String name) {
+        this(name, null, null);
+    }
+
+    protected AbstractSnapshotBuilder(String name, String apkFiles, String fixtureKey) {
         this.name = name;
+        this.apkFiles = Util.fixEmptyAndTrim(apkFiles);
+        this.fixtureKey = Util.fixEmptyAndTrim(fixtureKey);
+    }
+
+    /** @return {@code true} if the snapshot name is derived from the APKs under test. */
+    public boolean isContentAddressed() {
+        return apkFiles != null;
     }
 
     @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+    public boolean perform(AbstractBuild<?, ?> build, Launcher buildLauncher, BuildListener listener)
             throws InterruptedException, IOException {
         final PrintStream logger = listener.getLogger();
 
-        // Expand snapshot name
-        final String snapshotName = Utils.expandVariables(build, listener, name);
-
         // Get AVD port
         final int port = getDeviceTelnetPort(build, listener);
 
+        // The emulator console is only reachable from the machine the emulator runs on
+        final Launcher launcher = getEmulatorLauncher(build, buildLauncher, listener);
+        if (launcher == null) {
+            return false;
+        }
+
+        if (isContentAddressed()) {
+            // Derive the snapshot name from the APKs (and fixtures) it should contain
+            final String prefix = Util.fixEmptyAndTrim(Utils.expandVariables(build, listener, name));
+            final String patterns = Utils.expandVariables(build, listener, apkFiles);
+            final String key = fixtureKey == null ? "" : Utils.expandVariables(build, listener, fixtureKey);
+            final Map<String, String> apkHashes = hashFiles(build.getWorkspace(), patterns);
+            if (apkHashes.isEmpty()) {
+                log(logger, Messages.NO_SNAPSHOT_APKS_FOUND(patterns));
+                return false;
+            }
+            final String snapshotName = getContentSnapshotName(
+                    prefix == null ? CONTENT_SNAPSHOT_PREFIX : prefix, apkHashes, key);
+            return performContentSnapshotAction(build, launcher, listener, port, snapshotName, apkHashes);
+        }
+
+        // Expand snapshot name
+        final String snapshotName = Utils.expandVariables(build, listener, name);
+
         // Send telnet command: "avd snapshot $action $name"
         log(logger, getLogMessage(snapshotName, port));
         String command = String.format("avd snapshot %s %s", getSnapshotAction(), snapshotName);
         return Utils.sendEmulatorCommand(launcher, logger, port, command, getCommandTimeout());
     }
 
+    /**
+     * Performs the snapshot action for a content-addressed snapshot.
+     *
+     * @param snapshotName The name derived from the snapshot content.
+     * @param apkHashes Map of the APK file paths identifying the snapshot, to their SHA-256 hashes.
+     * @return Whether the build should continue.
+     */
+    protected abstract boolean performContentSnapshotAction(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, int port, String snapshotName, Map<String, String> apkHashes)
+                throws IOException, InterruptedException;
+
+    /**
+     * Gets a launcher for the machine the emulator is running on.
+     *
+     * @param launcher The launcher for the build machine.
+     * @return The given launcher, or one for the emulator host if the emulator runs on one; or
+     *         {@code null} if the emulator host is no longer connected.
+     */
+    private static Launcher getEmulatorLauncher(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener) {
+        final String hostName = expandVariable(build, listener, EMULATOR_HOST_NODE_VARIABLE);
+        if (hostName == null) {
+            return launcher;
+        }
+        final Node host = Hudson.getInstance().getNode(hostName);
+        final Computer computer = host == null ? null : host.toComputer();
+        if (computer == null || computer.getChannel() == null) {
+            log(listener.getLogger(), Messages.EMULATOR_HOST_NOT_CONNECTED(hostName));
+            return null;
+        }
+        return host.createLauncher(listener);
+    }
+
+    /**
+     * Sends a snapshot command to the emulator, and checks that the console accepted it.
+     *
+     * @return {@code true} if the command succeeded.
+     */
+    protected boolean sendSnapshotCommand(Launcher launcher, PrintStream logger, int port, String action,
+            String snapshotName) {
+        String command = String.format("avd snapshot %s %s", action, snapshotName);
+        String output = Utils.getEmulatorCommandOutput(launcher, logger, port, command, getCommandTimeout());
+        return Utils.isEmulatorCommandAccepted(output);
+    }
+
+    /**
+     * Determines whether the emulator started for this build saves its snapshots into a throwaway
+     * copy of the AVD's snapshot image, i.e. a clone of the AVD, or a copy on a RAM disk.
+     *
+     * @return {@code true} if any snapshots saved will be deleted at the end of the build.
+     */
+    protected static boolean areSnapshotsDiscarded(AbstractBuild<?, ?> build, BuildListener listener) {
+        return "true".equals(expandVariable(build, listener, SNAPSHOTS_DISCARDED_VARIABLE));
+    }
+
+    /**
+     * Records that the given snapshot was used, and deletes the least recently used content-addressed
+     * snapshots of the AVD, if there are now more than the given limit.
+     */
+    protected void touchSnapshot(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener,
+            int port, String snapshotName, int limit) throws IOException, InterruptedException {
+        final String avdName = expandVariable(build, listener, "ANDROID_AVD_NAME");
+        if (avdName == null) {
+            // The emulator wasn't started by this plugin, so we don't know where its files are
+            return;
+        }
+        // An emulator host keeps its AVDs in its own home directory, rather than in the build's workspace
+        String sdkHome = null;
+        if (expandVariable(build, listener, EMULATOR_HOST_NODE_VARIABLE) == null) {
+            final AndroidSdk androidSdk = getAndroidSdk(build, launcher, listener);
+            sdkHome = androidSdk == null ? null : androidSdk.getSdkHome();
+        }
+
+        List<String> evicted = launcher.getChannel().call(new TouchSnapshotTask(sdkHome, avdName,
+                snapshotName, limit));
+        for (String oldSnapshot : evicted) {
+            log(listener.getLogger(), Messages.DELETING_OLD_SNAPSHOT(oldSnapshot));
+            sendSnapshotCommand(launcher, listener.getLogger(), port, "del", oldSnapshot);
+        }
+    }
+
+    /**
+     * Builds the name of a content-addressed snapshot.
+     *
+     * @param prefix Prefix for the snapshot name.
+     * @param apkHashes Map of APK file paths to their SHA-256 hashes.
+     * @param fixtureKey Key identifying any other data set up on the device.
+     * @return A snapshot name which will be the same for the same APK contents and fixture key.
+     */
+    static String getContentSnapshotName(String prefix, Map<String, String> apkHashes, String fixtureKey) {
+        MessageDigest digest = getSha256Digest();
+        // Sort by hash, so that the name doesn't depend on where in the workspace the APKs are
+        for (String hash : new TreeSet<String>(apkHashes.values())) {
+            digest.update(hash.getBytes());
+            digest.update((byte) '\n');
+        }
+        digest.update(fixtureKey.getBytes());
+        return prefix + "-" + Util.toHexString(digest.digest()).substring(0, CONTENT_HASH_LENGTH);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of each of the files matching the given patterns.
+     *
+     * @param baseDir The directory the patterns are relative to.
+     * @param patterns Comma-separated Ant-style file patterns.
+     * @return Map of matching file paths, relative to the base directory, to their SHA-256 hashes.
+     */
+    public static Map<String, String> hashFiles(FilePath baseDir, final String patterns)
+            throws IOException, InterruptedException {
+        return baseDir.act(new MasterToSlaveFileCallable<Map<String, String>>() {
+            private static final long serialVersionUID = 1L;
+
+            public Map<String, String> invoke(File dir, VirtualChannel channel) throws IOException {
+                Map<String, String> hashes = new TreeMap<String, String>();
+                DirectoryScanner scanner = Util.createFileSet(dir, patterns).getDirectoryScanner();
+                for (String path : scanner.getIncludedFiles()) {
+                    hashes.put(path, hashFile(new File(dir, path)));
+                }
+                return hashes;
+            }
+        });
+    }
+
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest = getSha256Digest();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    private static MessageDigest getSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     /** Retrieves the time in which the snapshot command should complete, in milliseconds. */
     protected int getCommandTimeout() {
         return DEFAULT_TIMEOUT_MS;
@@ -52,4 +274,27 @@ public abstract class AbstractSnapshotBuilder extends AbstractBuilder {
     /** Retrieves the log message to print when performing the snapshot action. */
     protected abstract String getLogMessage(String snapshotName, int avdPort);
 
+    /** Updates the snapshot index in an AVD directory. */
+    private static final class TouchSnapshotTask extends MasterToSlaveCallable<List<String>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String sdkHome;
+        private final String avdName;
+        private final String snapshotName;
+        private final int limit;
+
+        TouchSnapshotTask(String sdkHome, String avdName, String snapshotName, int limit) {
+            this.sdkHome = sdkHome;
+            this.avdName = avdName;
+            this.snapshotName = snapshotName;
+            this.limit = limit;
+        }
+
+        public List<String> call() throws IOException {
+            File avdDirectory = new File(Utils.getHomeDirectory(sdkHome), ".android/avd/" + avdName + ".avd");
+            return SnapshotIndex.touch(avdDirectory, snapshotName, limit);
+        }
+    }
+
 }
@@ -0,0 +1,55 @@
+package hudson.plugins.android_emulator.snapshot;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.InvisibleAction;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records which content-addressed snapshot was looked up for a build, and whether it was loaded.
+ * <p>
+ * If the snapshot was loaded, the APKs it was created from are already installed, so later install
+ * steps for the same APKs can be skipped.  The outcome is also exported to the build environment as
+ * <tt>ANDROID_SNAPSHOT_NAME</tt> and <tt>ANDROID_SNAPSHOT_HIT</tt>, so that build steps which set up
+ * test fixtures can skip their work too.
+ * </p>
+ */
+public class ContentSnapshotAction extends InvisibleAction implements EnvironmentContributingAction {
+
+    private final String snapshotName;
+    private final boolean loaded;
+    private final Set<String> apkHashes;
+
+    ContentSnapshotAction(String snapshotName, boolean loaded, Collection<String> apkHashes) {
+        this.snapshotName = snapshotName;
+        this.loaded = loaded;
+        this.apkHashes = new HashSet<String>(apkHashes);
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    /** @return {@code true} if the snapshot existed, and was loaded into the emulator. */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @param apkHash SHA-256 hash of an APK file.
+     * @return {@code true} if the given APK is already installed, by virtue of the snapshot being loaded.
+     */
+    public boolean isInstalled(String apkHash) {
+        return loaded && apkHashes.contains(apkHash);
+    }
+
+    public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        env.put("ANDROID_SNAPSHOT_NAME", snapshotName);
+        env.put("ANDROID_SNAPSHOT_HIT", Boolean.toString(loaded));
+    }
+
+}
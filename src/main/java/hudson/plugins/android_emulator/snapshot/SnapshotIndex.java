@@ -0,0 +1,85 @@
+package hudson.plugins.android_emulator.snapshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps track of when each content-addressed snapshot of an AVD was last used, so that the least
+ * recently used snapshots can be deleted once an AVD has too many of them.
+ * <p>
+ * The index is stored in the AVD directory, so these methods must be run on the machine where the
+ * AVD lives, i.e. from within a remote task.
+ * </p>
+ */
+final class SnapshotIndex {
+
+    /** Name of the index file within the AVD directory. */
+    private static final String INDEX_FILE = "jenkins-snapshots.properties";
+
+    private SnapshotIndex() {}
+
+    /**
+     * Records that the given snapshot has just been used, and works out which snapshots should be
+     * evicted to stay within the given limit.  Evicted snapshots are removed from the index.
+     *
+     * @param avdDirectory The directory of the AVD the snapshot belongs to.
+     * @param snapshotName The snapshot which was loaded or saved.
+     * @param limit Maximum number of snapshots to keep; zero or less means no limit.
+     * @return The names of the snapshots which should be deleted.
+     */
+    static synchronized List<String> touch(File avdDirectory, String snapshotName, int limit)
+            throws IOException {
+        final File indexFile = new File(avdDirectory, INDEX_FILE);
+        final Properties index = new Properties();
+        if (indexFile.exists()) {
+            InputStream in = new FileInputStream(indexFile);
+            try {
+                index.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        index.setProperty(snapshotName, Long.toString(System.currentTimeMillis()));
+
+        // Evict the least recently used snapshots
+        List<String> evicted = new ArrayList<String>();
+        if (limit > 0 && index.size() > limit) {
+            List<String> names = new ArrayList<String>(index.stringPropertyNames());
+            Collections.sort(names, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return Long.valueOf(lastUsed(index, a)).compareTo(lastUsed(index, b));
+                }
+            });
+            for (String name : names.subList(0, names.size() - limit)) {
+                index.remove(name);
+                evicted.add(name);
+            }
+        }
+
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            index.store(out, "Content-addressed emulator snapshots, and when they were last used");
+        } finally {
+            out.close();
+        }
+        return evicted;
+    }
+
+    private static long lastUsed(Properties index, String name) {
+        try {
+            return Long.parseLong(index.getProperty(name));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -1,20 +1,44 @@
 package hudson.plugins.android_emulator.snapshot;
 
+import static hudson.plugins.android_emulator.AndroidEmulator.log;
 import hudson.Extension;
 import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.plugins.android_emulator.Messages;
 import hudson.tasks.Builder;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.Map;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class SnapshotLoadBuilder extends AbstractSnapshotBuilder {
 
     @DataBoundConstructor
-    public SnapshotLoadBuilder(String name) {
-        super(name);
+    public SnapshotLoadBuilder(String name, String apkFiles, String fixtureKey) {
+        super(name, apkFiles, fixtureKey);
+    }
+
+    @Override
+    protected boolean performContentSnapshotAction(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, int port, String snapshotName, Map<String, String> apkHashes)
+                throws IOException, InterruptedException {
+        final PrintStream logger = listener.getLogger();
+        log(logger, getLogMessage(snapshotName, port));
+        boolean loaded = sendSnapshotCommand(launcher, logger, port, "load", snapshotName);
+        if (loaded) {
+            touchSnapshot(build, launcher, listener, port, snapshotName, 0);
+        } else {
+            // Not a failure: the build should go on to install the APKs, and save the snapshot
+            log(logger, Messages.CONTENT_SNAPSHOT_MISSING(snapshotName));
+        }
+        build.addAction(new ContentSnapshotAction(snapshotName, loaded, apkHashes.values()));
+        return true;
     }
 
     @Override
@@ -27,7 +51,7 @@ public class SnapshotLoadBuilder extends AbstractSnapshotBuilder {
         return Messages.LOADING_SNAPSHOT(name, port);
     }
 
-    //@Extension
+    @Extension
     public static class DescriptorImpl extends Descriptor<Builder> implements Serializable {
 
         private static final long serialVersionUID = 1L;
@@ -1,20 +1,73 @@
 package hudson.plugins.android_emulator.snapshot;
 
+import static hudson.plugins.android_emulator.AndroidEmulator.log;
 import hudson.Extension;
 import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.plugins.android_emulator.Messages;
 import hudson.tasks.Builder;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.Map;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.export.Exported;
 
 public class SnapshotSaveBuilder extends AbstractSnapshotBuilder {
 
+    /** Default number of content-addressed snapshots to keep per AVD. */
+    private static final int DEFAULT_MAX_SNAPSHOTS = 5;
+
+    /** Maximum number of content-addressed snapshots to keep per AVD. */
+    @Exported
+    public final int maxSnapshots;
+
     @DataBoundConstructor
-    public SnapshotSaveBuilder(String name) {
-        super(name);
+    public SnapshotSaveBuilder(String name, String apkFiles, String fixtureKey, int maxSnapshots) {
+        super(name, apkFiles, fixtureKey);
+        this.maxSnapshots = maxSnapshots > 0 ? maxSnapshots : DEFAULT_MAX_SNAPSHOTS;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+            throws InterruptedException, IOException {
+        if (areSnapshotsDiscarded(build, listener)) {
+            if (isContentAddressed()) {
+                // These snapshots only exist to be loaded by later builds, so there's no point
+                log(listener.getLogger(), Messages.CONTENT_SNAPSHOT_NOT_KEPT());
+                return true;
+            }
+            // Still of use for loading later in the same build
+            log(listener.getLogger(), Messages.SNAPSHOT_NOT_KEPT());
+        }
+        return super.perform(build, launcher, listener);
+    }
+
+    @Override
+    protected boolean performContentSnapshotAction(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, int port, String snapshotName, Map<String, String> apkHashes)
+                throws IOException, InterruptedException {
+        final PrintStream logger = listener.getLogger();
+
+        // Nothing to do if this snapshot was loaded earlier in the build
+        ContentSnapshotAction action = build.getAction(ContentSnapshotAction.class);
+        if (action != null && action.isLoaded() && action.getSnapshotName().equals(snapshotName)) {
+            log(logger, Messages.CONTENT_SNAPSHOT_ALREADY_LOADED(snapshotName));
+            return true;
+        }
+
+        log(logger, getLogMessage(snapshotName, port));
+        if (!sendSnapshotCommand(launcher, logger, port, "save", snapshotName)) {
+            log(logger, Messages.SNAPSHOT_CREATION_FAILED());
+            return false;
+        }
+        touchSnapshot(build, launcher, listener, port, snapshotName, maxSnapshots);
+        return true;
     }
 
     @Override
@@ -27,7 +80,7 @@ public class SnapshotSaveBuilder extends AbstractSnapshotBuilder {
         return Messages.SAVING_SNAPSHOT(name, port);
     }
 
-    //@Extension
+    @Extension
     public static class DescriptorImpl extends Descriptor<Builder> implements Serializable {
 
         private static final long serialVersionUID = 1L;
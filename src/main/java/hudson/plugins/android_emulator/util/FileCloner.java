@@ -0,0 +1,165 @@
+package hudson.plugins.android_emulator.util;
+
+import hudson.Functions;
+import hudson.util.NullStream;
+import hudson.util.StreamCopyThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates cheap copies of (potentially very large) emulator image files on the local machine.
+ * <p>
+ * These methods must be run on the machine where the files live, i.e. from within a remote task.
+ * </p>
+ */
+public class FileCloner {
+
+    private static final boolean IS_MAC = System.getProperty("os.name", "")
+            .toLowerCase(Locale.ENGLISH).contains("mac");
+
+    /** Size of the blocks which are left as holes in sparse copies if they contain only zeroes. */
+    private static final int SPARSE_BLOCK_SIZE = 4096;
+
+    /**
+     * Creates a copy-on-write clone of the given file, if the filesystem supports it.
+     * <p>
+     * On Linux this uses a reflink copy (e.g. on btrfs or XFS); on Mac OS X this uses APFS clones.
+     * In both cases, the clone takes up no extra space and is created almost instantly, regardless
+     * of the size of the source file.  No regular copy is attempted if cloning isn't supported.
+     * </p>
+     *
+     * @param source The file to clone.
+     * @param target Where the clone should be created; any existing file will be overwritten.
+     * @return {@code true} if the clone was created.
+     */
+    public static boolean reflink(File source, File target) {
+        if (Functions.isWindows() || !source.isFile()) {
+            return false;
+        }
+
+        List<String> cmd;
+        if (IS_MAC) {
+            cmd = Arrays.asList("cp", "-c", source.getAbsolutePath(), target.getAbsolutePath());
+        } else {
+            cmd = Arrays.asList("cp", "--reflink=always", source.getAbsolutePath(), target.getAbsolutePath());
+        }
+        if (run(cmd)) {
+            return true;
+        }
+
+        // Don't leave a partial file behind
+        target.delete();
+        return false;
+    }
+
+    /**
+     * Creates a hard link to the given file, so that it takes up no extra space.
+     * <p>
+     * As both names refer to the same data, this must only be used for files which will not be
+     * written to via either name.
+     * </p>
+     *
+     * @param source The file to link to.
+     * @param target Where the link should be created; must not already exist.
+     * @return {@code true} if the link was created.
+     */
+    public static boolean hardlink(File source, File target) {
+        if (!source.isFile()) {
+            return false;
+        }
+        if (Functions.isWindows()) {
+            return run(Arrays.asList("cmd", "/c", "mklink", "/h", target.getAbsolutePath(), source.getAbsolutePath()));
+        }
+        return run(Arrays.asList("ln", source.getAbsolutePath(), target.getAbsolutePath()));
+    }
+
+    /**
+     * Copies the given file, skipping over blocks which contain only zeroes, so that the copy is
+     * sparse on filesystems which support it (which includes tmpfs).
+     * <p>
+     * Emulator images, e.g. SD cards, are mostly empty, so this writes only a fraction of their
+     * size.  Reading the holes of a sparse source file is cheap, as they have no data on disk.
+     * </p>
+     *
+     * @param source The file to copy.
+     * @param target Where the copy should be created; any existing file will be overwritten.
+     * @return The number of bytes actually written, i.e. roughly the space used by the copy.
+     */
+    public static long copySparse(File source, File target) throws IOException {
+        final byte[] buffer = new byte[16 * SPARSE_BLOCK_SIZE];
+        long written = 0;
+        InputStream in = new FileInputStream(source);
+        try {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                out.setLength(0);
+                long position = 0;
+                int length;
+                while ((length = readFully(in, buffer)) > 0) {
+                    for (int offset = 0; offset < length; offset += SPARSE_BLOCK_SIZE) {
+                        int blockLength = Math.min(SPARSE_BLOCK_SIZE, length - offset);
+                        if (!isZero(buffer, offset, blockLength)) {
+                            out.seek(position + offset);
+                            out.write(buffer, offset, blockLength);
+                            written += blockLength;
+                        }
+                    }
+                    position += length;
+                }
+                // Any trailing holes still count towards the length of the file
+                out.setLength(position);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return written;
+    }
+
+    /** Reads until the buffer is full or the stream ends, returning the number of bytes read. */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int count;
+        while (total < buffer.length && (count = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static boolean isZero(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the given command to completion.
+     *
+     * @return {@code true} if the command ran and exited successfully.
+     */
+    static boolean run(List<String> cmd) {
+        try {
+            Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            new StreamCopyThread("", process.getInputStream(), new NullStream()).start();
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+}
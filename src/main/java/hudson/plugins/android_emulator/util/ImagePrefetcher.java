@@ -0,0 +1,110 @@
+package hudson.plugins.android_emulator.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads emulator image files sequentially, so that they're in the OS page cache by the time the
+ * emulator starts, rather than being read in on-demand via random access during boot.
+ * <p>
+ * These methods must be run on the machine where the files live, i.e. from within a remote task.
+ * </p>
+ */
+public class ImagePrefetcher {
+
+    /**
+     * How long we assume that a file we've read remains in the page cache.
+     * Java gives us no way to ask the OS whether a file is resident, so if we've read a file in the
+     * recent past and it hasn't changed since, we don't bother reading it again.
+     */
+    private static final long RESIDENCY_ASSUMPTION_MS = 30 * 60 * 1000;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** Map of file identities (path, size and modification time) to when we last read them. */
+    private static final ConcurrentMap<String, Long> lastReadTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Reads each of the given files in full, unless it's likely to be in the page cache already.
+     *
+     * @param files The files to read; any which don't exist are ignored.
+     * @return Statistics about what was read.
+     */
+    public static Result prefetch(Collection<File> files) {
+        final long start = System.currentTimeMillis();
+        Result result = new Result();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+
+            final String key = String.format("%s:%d:%d", file.getAbsolutePath(), file.length(), file.lastModified());
+            Long lastRead = lastReadTimes.get(key);
+            if (lastRead != null && System.currentTimeMillis() - lastRead < RESIDENCY_ASSUMPTION_MS) {
+                result.filesSkipped++;
+                continue;
+            }
+
+            try {
+                result.bytesRead += read(file, buffer);
+                result.filesRead++;
+                lastReadTimes.put(key, System.currentTimeMillis());
+            } catch (IOException e) {
+                // Not a problem; the emulator will just have to read it in itself
+            }
+        }
+
+        result.durationMs = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private static long read(File file, byte[] buffer) throws IOException {
+        long total = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                total += len;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    /** Statistics about a prefetch run. */
+    public static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int filesRead;
+        private int filesSkipped;
+        private long bytesRead;
+        private long durationMs;
+
+        public int getFilesRead() {
+            return filesRead;
+        }
+
+        public int getFilesSkipped() {
+            return filesSkipped;
+        }
+
+        public long getMegabytesRead() {
+            return bytesRead / (1024 * 1024);
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+    }
+
+}
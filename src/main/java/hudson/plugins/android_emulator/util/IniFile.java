@@ -0,0 +1,192 @@
+package hudson.plugins.android_emulator.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An editable view of a "key=value" file like an AVD's {@code config.ini}, which is loaded once,
+ * accumulates changes, and then writes them out in one go.
+ * <p>
+ * Unlike loading the file via {@link java.util.Properties}, the order of the entries, along with
+ * any comments and blank lines, is preserved, and backslashes in values (e.g. Windows paths) are
+ * left alone.  The file is only written if a value actually changed, and is written to a temporary
+ * file which then replaces the original, so that readers never see a partially-written file.
+ * </p><p>
+ * These methods must be run on the machine where the file lives, i.e. from within a remote task.
+ * </p>
+ */
+public final class IniFile {
+
+    private static final String ENCODING = "UTF-8";
+
+    private final File file;
+
+    /** Each line of the file, other than entries, which are {@code null} here. */
+    private final List<String> lines = new ArrayList<String>();
+
+    /** The key of the entry on each line of the file, or {@code null} for other lines. */
+    private final List<String> lineKeys = new ArrayList<String>();
+
+    /** Entries by key, in the order they appear in the file. */
+    private final Map<String, String> entries = new LinkedHashMap<String, String>();
+
+    private String lineSeparator = "\r\n";
+    private boolean modified;
+
+    private IniFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the given file.
+     *
+     * @param file The file to load; if it doesn't exist, the result will be empty.
+     * @return The file contents.
+     * @throws IOException If the file exists, but could not be read.
+     */
+    public static IniFile load(File file) throws IOException {
+        final IniFile ini = new IniFile(file);
+        if (!file.exists()) {
+            return ini;
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            // Keep whichever line endings the file already uses
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[8192];
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, len);
+            }
+            if (content.indexOf("\r\n") == -1 && content.indexOf("\n") != -1) {
+                ini.lineSeparator = "\n";
+            }
+
+            for (String line : content.toString().split("\r?\n")) {
+                ini.parseLine(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return ini;
+    }
+
+    private void parseLine(String line) {
+        final String trimmed = line.trim();
+        final int separator = trimmed.indexOf('=');
+        if (trimmed.length() == 0 || trimmed.startsWith("#") || trimmed.startsWith(";") || separator <= 0) {
+            lines.add(line);
+            lineKeys.add(null);
+            return;
+        }
+
+        final String key = trimmed.substring(0, separator).trim();
+        final String value = trimmed.substring(separator + 1).trim();
+        final int existing = lineKeys.indexOf(key);
+        if (existing != -1) {
+            // A repeated key overrides the earlier one, as with Properties; keep only the last
+            lines.remove(existing);
+            lineKeys.remove(existing);
+            entries.remove(key);
+        }
+        entries.put(key, value);
+        lines.add(null);
+        lineKeys.add(key);
+    }
+
+    /** @return The value for the given key, or {@code null} if not present. */
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    /** @return A copy of all entries, in file order. */
+    public Map<String, String> getAll() {
+        return new LinkedHashMap<String, String>(entries);
+    }
+
+    /**
+     * Sets the value for the given key, replacing it in place if it already exists, or otherwise
+     * adding it to the end of the file.
+     *
+     * @return {@code true} if this changed the value.
+     */
+    public boolean set(String key, String value) {
+        if (value.equals(entries.get(key))) {
+            return false;
+        }
+        if (!entries.containsKey(key)) {
+            lines.add(null);
+            lineKeys.add(key);
+        }
+        entries.put(key, value);
+        modified = true;
+        return true;
+    }
+
+    /**
+     * Sets each of the given values.
+     *
+     * @return {@code true} if this changed any value.
+     */
+    public boolean setAll(Map<String, String> values) {
+        boolean changed = false;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            changed |= set(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    /** @return {@code true} if there are changes which haven't been saved. */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Writes the file, if anything has changed since it was loaded or last saved.
+     *
+     * @return {@code true} if the file was written.
+     * @throws IOException If the file could not be written.
+     */
+    public boolean save() throws IOException {
+        if (!modified) {
+            return false;
+        }
+
+        final File directory = file.getAbsoluteFile().getParentFile();
+        final File temp = File.createTempFile("." + file.getName() + ".", ".tmp", directory);
+        try {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(temp), ENCODING);
+            try {
+                for (int i = 0; i < lines.size(); i++) {
+                    final String key = lineKeys.get(i);
+                    out.write(key == null ? lines.get(i) : key + "=" + entries.get(key));
+                    out.write(lineSeparator);
+                }
+            } finally {
+                out.close();
+            }
+
+            // Windows won't rename over an existing file; there, readers may briefly see no file at all
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Could not replace " + file);
+            }
+        } finally {
+            temp.delete();
+        }
+
+        modified = false;
+        return true;
+    }
+
+}
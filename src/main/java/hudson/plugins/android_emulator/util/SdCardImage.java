@@ -0,0 +1,213 @@
+package hudson.plugins.android_emulator.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates empty, FAT32-formatted SD card images, as {@code mksdcard} would.
+ * <p>
+ * Rather than writing out the full size of the card, only the filesystem metadata is written into a
+ * sparse file, so that creating a card takes a few milliseconds, and a fresh card barely uses any
+ * disk space until the emulator writes to it.  Filesystems without sparse file support will still
+ * allocate the full size, but at least we don't write it.
+ * </p><p>
+ * These methods must be run on the machine where the image is to be created, i.e. from within a
+ * remote task.
+ * </p>
+ */
+public final class SdCardImage {
+
+    /** The emulator refuses to use SD cards smaller than this. */
+    public static final long MIN_SIZE_BYTES = 9 * 1024 * 1024;
+
+    private static final int BYTES_PER_SECTOR = 512;
+    private static final int RESERVED_SECTORS = 32;
+    private static final int FAT_COUNT = 2;
+    private static final int FS_INFO_SECTOR = 1;
+    private static final int BACKUP_BOOT_SECTOR = 6;
+    private static final int ROOT_DIRECTORY_CLUSTER = 2;
+    private static final int MEDIA_DESCRIPTOR = 0xF8;
+
+    /** End-of-chain marker for FAT32 cluster entries. */
+    private static final int END_OF_CHAIN = 0x0FFFFFFF;
+
+    private static final Pattern SIZE = Pattern.compile("([0-9]+)([KMG]?)B?");
+
+    private SdCardImage() {}
+
+    /**
+     * Parses an SD card size in the format accepted by {@code mksdcard}, e.g. "512M".
+     *
+     * @param size Size with an optional K, M or G suffix; plain numbers are in bytes.
+     * @return The size in bytes, or {@code -1} if the size is not valid.
+     */
+    public static long parseSize(String size) {
+        if (size == null) {
+            return -1;
+        }
+        Matcher matcher = SIZE.matcher(size.trim().toUpperCase(Locale.ENGLISH));
+        if (!matcher.matches()) {
+            return -1;
+        }
+
+        long bytes;
+        try {
+            bytes = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        final String unit = matcher.group(2);
+        if (unit.equals("K")) {
+            bytes *= 1024;
+        } else if (unit.equals("M")) {
+            bytes *= 1024 * 1024;
+        } else if (unit.equals("G")) {
+            bytes *= 1024 * 1024 * 1024;
+        }
+        return bytes;
+    }
+
+    /**
+     * Creates an empty SD card image, replacing any existing file.
+     *
+     * @param file The image file to create.
+     * @param sizeBytes The size of the card; rounded down to a whole number of sectors.
+     * @throws IOException If the size is out of range, or the image could not be written.
+     */
+    public static void create(File file, long sizeBytes) throws IOException {
+        final long totalSectors = sizeBytes / BYTES_PER_SECTOR;
+        if (sizeBytes < MIN_SIZE_BYTES || totalSectors > 0xFFFFFFFFL) {
+            throw new IOException(String.format("SD card size must be between %dM and 2T; got %d bytes",
+                    MIN_SIZE_BYTES / (1024 * 1024), sizeBytes));
+        }
+
+        final int sectorsPerCluster = getSectorsPerCluster(sizeBytes);
+        final long fatSectors = getFatSectors(totalSectors, sectorsPerCluster);
+        final long dataSectors = totalSectors - RESERVED_SECTORS - (FAT_COUNT * fatSectors);
+        final long clusterCount = dataSectors / sectorsPerCluster;
+
+        // Truncate first, so that whatever was in an existing image doesn't survive
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            out.setLength(totalSectors * BYTES_PER_SECTOR);
+
+            final byte[] bootSector = getBootSector(totalSectors, sectorsPerCluster, fatSectors);
+            final byte[] fsInfoSector = getFsInfoSector(clusterCount);
+            writeSector(out, 0, bootSector);
+            writeSector(out, FS_INFO_SECTOR, fsInfoSector);
+            writeSector(out, BACKUP_BOOT_SECTOR, bootSector);
+            writeSector(out, BACKUP_BOOT_SECTOR + FS_INFO_SECTOR, fsInfoSector);
+
+            // Each FAT only needs its first entries set: the two reserved ones, and the root directory
+            ByteBuffer fat = newSector();
+            fat.putInt(0x0FFFFF00 | MEDIA_DESCRIPTOR);
+            fat.putInt(END_OF_CHAIN);
+            fat.putInt(END_OF_CHAIN);
+            for (int i = 0; i < FAT_COUNT; i++) {
+                writeSector(out, RESERVED_SECTORS + (i * fatSectors), fat.array());
+            }
+
+            // The root directory cluster is already zeroed, i.e. empty
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Chooses the cluster size Microsoft recommends for FAT32 volumes of the given size. */
+    private static int getSectorsPerCluster(long sizeBytes) {
+        final long mb = sizeBytes / (1024 * 1024);
+        if (mb < 260) {
+            return 1;
+        }
+        if (mb < 8 * 1024) {
+            return 8;
+        }
+        if (mb < 16 * 1024) {
+            return 16;
+        }
+        if (mb < 32 * 1024) {
+            return 32;
+        }
+        return 64;
+    }
+
+    /** Calculates the number of sectors each FAT needs, per the FAT32 specification. */
+    private static long getFatSectors(long totalSectors, int sectorsPerCluster) {
+        final long available = totalSectors - RESERVED_SECTORS;
+        final long divisor = ((256L * sectorsPerCluster) + FAT_COUNT) / 2;
+        return (available + divisor - 1) / divisor;
+    }
+
+    private static byte[] getBootSector(long totalSectors, int sectorsPerCluster, long fatSectors) {
+        ByteBuffer sector = newSector();
+        sector.put(new byte[] { (byte) 0xEB, 0x58, (byte) 0x90 });
+        sector.put(ascii("MSWIN4.1", 8));
+        sector.putShort((short) BYTES_PER_SECTOR);
+        sector.put((byte) sectorsPerCluster);
+        sector.putShort((short) RESERVED_SECTORS);
+        sector.put((byte) FAT_COUNT);
+        sector.putShort((short) 0); // Root entries; always zero for FAT32
+        sector.putShort((short) 0); // 16-bit total sectors; always zero for FAT32
+        sector.put((byte) MEDIA_DESCRIPTOR);
+        sector.putShort((short) 0); // 16-bit FAT size; always zero for FAT32
+        sector.putShort((short) 63); // Sectors per track
+        sector.putShort((short) 255); // Heads
+        sector.putInt(0); // Hidden sectors
+        sector.putInt((int) totalSectors);
+        sector.putInt((int) fatSectors);
+        sector.putShort((short) 0); // Mirror FATs
+        sector.putShort((short) 0); // Filesystem version
+        sector.putInt(ROOT_DIRECTORY_CLUSTER);
+        sector.putShort((short) FS_INFO_SECTOR);
+        sector.putShort((short) BACKUP_BOOT_SECTOR);
+        sector.position(64);
+        sector.put((byte) 0x80); // Drive number
+        sector.put((byte) 0);
+        sector.put((byte) 0x29); // Extended boot signature
+        sector.putInt((int) System.currentTimeMillis()); // Volume ID
+        sector.put(ascii("NO NAME", 11));
+        sector.put(ascii("FAT32", 8));
+        sector.position(510);
+        sector.put((byte) 0x55);
+        sector.put((byte) 0xAA);
+        return sector.array();
+    }
+
+    private static byte[] getFsInfoSector(long clusterCount) {
+        ByteBuffer sector = newSector();
+        sector.putInt(0x41615252);
+        sector.position(484);
+        sector.putInt(0x61417272);
+        sector.putInt((int) (clusterCount - 1)); // Free clusters; all but the root directory
+        sector.putInt(ROOT_DIRECTORY_CLUSTER + 1); // Next free cluster
+        sector.position(508);
+        sector.putInt(0xAA550000);
+        return sector.array();
+    }
+
+    private static ByteBuffer newSector() {
+        return ByteBuffer.allocate(BYTES_PER_SECTOR).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** @return The given text, padded with spaces to the given length. */
+    private static byte[] ascii(String text, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i < text.length() ? text.charAt(i) : ' ');
+        }
+        return bytes;
+    }
+
+    private static void writeSector(RandomAccessFile out, long sector, byte[] data) throws IOException {
+        out.seek(sector * BYTES_PER_SECTOR);
+        out.write(data);
+    }
+
+}
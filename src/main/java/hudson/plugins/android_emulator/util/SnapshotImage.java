@@ -0,0 +1,174 @@
+package hudson.plugins.android_emulator.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the list of snapshots stored in an AVD's {@code snapshots.img}, without having to start
+ * the emulator with {@code -snapshot-list}.
+ * <p>
+ * The image is in the qcow2 format, whose header points to a table with one entry per snapshot.
+ * Only that table is read, rather than any of the (potentially very large) snapshot data itself.
+ * </p><p>
+ * These methods must be run on the machine where the image lives, i.e. from within a remote task.
+ * </p>
+ */
+public final class SnapshotImage {
+
+    /** "QFI" followed by 0xFB. */
+    private static final int QCOW_MAGIC = 0x514649FB;
+
+    private static final int HEADER_SIZE = 72;
+    private static final int SNAPSHOT_HEADER_SIZE = 40;
+
+    /** Upper bound on the size of the snapshot table we're willing to read; it's normally tiny. */
+    private static final int MAX_TABLE_SIZE = 16 * 1024 * 1024;
+
+    private SnapshotImage() {}
+
+    /**
+     * Lists the snapshots in the given image.
+     *
+     * @param image The {@code snapshots.img} file.
+     * @return The snapshots, in the order they were taken, or {@code null} if the file isn't in a
+     *         format we understand.
+     * @throws IOException If the file could not be read.
+     */
+    public static List<Snapshot> read(File image) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(image, "r");
+        try {
+            if (in.length() < HEADER_SIZE || in.readInt() != QCOW_MAGIC) {
+                return null;
+            }
+            final int version = in.readInt();
+            if (version != 2 && version != 3) {
+                return null;
+            }
+
+            // Skip to the snapshot count and table location
+            in.seek(60);
+            final long count = in.readInt() & 0xFFFFFFFFL;
+            final long tableOffset = in.readLong();
+            final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+            if (count == 0) {
+                return snapshots;
+            }
+            if (tableOffset <= 0 || tableOffset >= in.length()) {
+                return null;
+            }
+
+            // Read the whole table in one go; we don't know its size up front, but it's at most this
+            final int tableSize = (int) Math.min(MAX_TABLE_SIZE, in.length() - tableOffset);
+            final byte[] table = new byte[tableSize];
+            in.seek(tableOffset);
+            in.readFully(table);
+
+            final DataInputStream entries = new DataInputStream(new ByteArrayInputStream(table));
+            int position = 0;
+            for (long i = 0; i < count; i++) {
+                if (position + SNAPSHOT_HEADER_SIZE > tableSize) {
+                    return null;
+                }
+                entries.skipBytes(12); // L1 table offset and size
+                final int idSize = entries.readUnsignedShort();
+                final int nameSize = entries.readUnsignedShort();
+                final long dateSeconds = entries.readInt() & 0xFFFFFFFFL;
+                final long dateNanos = entries.readInt() & 0xFFFFFFFFL;
+                final long vmClockNanos = entries.readLong();
+                long vmStateSize = entries.readInt() & 0xFFFFFFFFL;
+                final int extraSize = entries.readInt();
+
+                final int entrySize = SNAPSHOT_HEADER_SIZE + extraSize + idSize + nameSize;
+                if (extraSize < 0 || extraSize > tableSize || position + entrySize > tableSize) {
+                    return null;
+                }
+
+                // Version 3 may store a 64-bit VM state size as the first extra field
+                if (extraSize >= 8) {
+                    long largeVmStateSize = entries.readLong();
+                    if (largeVmStateSize != 0) {
+                        vmStateSize = largeVmStateSize;
+                    }
+                    entries.skipBytes(extraSize - 8);
+                } else {
+                    entries.skipBytes(extraSize);
+                }
+
+                final String id = readString(entries, idSize);
+                final String name = readString(entries, nameSize);
+                snapshots.add(new Snapshot(id, name, vmStateSize, (dateSeconds * 1000) + (dateNanos / 1000000),
+                        vmClockNanos));
+
+                // Entries are padded to a multiple of eight bytes
+                final int paddedSize = (entrySize + 7) & ~7;
+                entries.skipBytes(paddedSize - entrySize);
+                position += paddedSize;
+            }
+            return snapshots;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /** A snapshot listed in a snapshot image. */
+    public static final class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final String name;
+        private final long vmStateSize;
+        private final long timestamp;
+        private final long vmClockNanos;
+
+        Snapshot(String id, String name, long vmStateSize, long timestamp, long vmClockNanos) {
+            this.id = id;
+            this.name = name;
+            this.vmStateSize = vmStateSize;
+            this.timestamp = timestamp;
+            this.vmClockNanos = vmClockNanos;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** @return Size in bytes of the saved VM state; zero if only the disks were saved. */
+        public long getVmStateSize() {
+            return vmStateSize;
+        }
+
+        /** @return When the snapshot was taken, in milliseconds since the epoch. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return How long the emulator had been running when the snapshot was taken. */
+        public long getVmClockNanos() {
+            return vmClockNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s (%d bytes)", id, name, vmStateSize);
+        }
+
+    }
+
+}
@@ -17,6 +17,7 @@ import hudson.plugins.android_emulator.Constants;
 import hudson.plugins.android_emulator.Messages;
 import hudson.plugins.android_emulator.SdkInstallationException;
 import hudson.plugins.android_emulator.sdk.AndroidSdk;
+import hudson.plugins.android_emulator.sdk.SdkInventory;
 import hudson.plugins.android_emulator.sdk.Tool;
 import hudson.remoting.Callable;
 import hudson.remoting.Future;
@@ -259,8 +260,7 @@ public class Utils {
         }
 
         // Give the user a nice warning (not error) if they've not downloaded any platforms yet
-        File platformsDir = new File(sdkRoot, "platforms");
-        if (platformsDir.list().length == 0) {
+        if (SdkInventory.get(sdkRoot).getTargets().isEmpty()) {
             return ValidationResult.warning(Messages.SDK_PLATFORMS_EMPTY());
         }
 
@@ -590,8 +590,24 @@ public class Utils {
      */
     public static boolean sendEmulatorCommand(final Launcher launcher, final PrintStream logger,
             final int port, final String command, int timeoutMs) {
-        Boolean result = null;
-        Future<Boolean> future = null;
+        return getEmulatorCommandOutput(launcher, logger, port, command, timeoutMs) != null;
+    }
+
+    /**
+     * Sends a user command to the running emulator via its telnet interface, returning its output.<br>
+     * Execution will be cancelled if it takes longer than {@code timeoutMs}.
+     *
+     * @param logger The build logger.
+     * @param launcher The launcher for the remote node.
+     * @param port The emulator's telnet port.
+     * @param command The command to execute on the emulator's telnet interface.
+     * @param timeoutMs How long to wait (in ms) for the command to complete before cancelling it.
+     * @return The console output (including the initial banner), or {@code null} if sending the command failed.
+     */
+    public static String getEmulatorCommandOutput(final Launcher launcher, final PrintStream logger,
+            final int port, final String command, int timeoutMs) {
+        String result = null;
+        Future<String> future = null;
         try {
             // Execute the task on the remote machine asynchronously, with a timeout
             EmulatorCommandTask task = new EmulatorCommandTask(port, command);
@@ -607,7 +623,7 @@ public class Utils {
             // Exception thrown while trying to execute command
             if (command.equals("kill") && e.getCause() instanceof SocketException) {
                 // This is expected: sending "kill" causes the emulator process to kill itself
-                result = true;
+                result = "";
             } else {
                 // Otherwise, it was some generic failure
                 log(logger, Messages.SENDING_COMMAND_FAILED(command, e));
@@ -622,7 +638,35 @@ public class Utils {
             }
         }
 
-        return Boolean.TRUE.equals(result);
+        return result;
+    }
+
+    /**
+     * Determines whether the emulator console accepted a command, from its output.
+     * <p>
+     * The console ends its banner, and its reply to each command, with a line which is either
+     * "OK" or "KO: &lt;reason&gt;".  Any other text, e.g. a snapshot name, is not a reply line.
+     * </p>
+     *
+     * @param output The console output, as returned by {@link #getEmulatorCommandOutput}.
+     * @return {@code true} if the command was acknowledged with "OK".
+     */
+    public static boolean isEmulatorCommandAccepted(String output) {
+        if (output == null) {
+            return false;
+        }
+        boolean bannerEnded = false;
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (!line.equals("OK") && !line.startsWith("KO")) {
+                continue;
+            }
+            if (bannerEnded) {
+                return line.equals("OK");
+            }
+            bannerEnded = true;
+        }
+        return false;
     }
 
     /**
@@ -749,7 +793,7 @@ public class Utils {
     }
 
     /** Task that will execute a command on the given emulator's console port, then quit. */
-    private static final class EmulatorCommandTask extends MasterToSlaveCallable<Boolean, IOException> {
+    private static final class EmulatorCommandTask extends MasterToSlaveCallable<String, IOException> {
 
         private final int port;
         private final String command;
@@ -761,7 +805,8 @@ public class Utils {
         }
 
         @SuppressWarnings("null")
-        public Boolean call() throws IOException {
+        public String call() throws IOException {
+            StringBuilder output = new StringBuilder();
             Socket socket = null;
             BufferedReader in = null;
             PrintWriter out = null;
@@ -772,9 +817,11 @@ public class Utils {
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
                 // If we didn't get a banner response, give up
-                if (in.readLine() == null) {
-                    return false;
+                String line = in.readLine();
+                if (line == null) {
+                    return null;
                 }
+                output.append(line).append('\n');
 
                 // Send command, then exit the console
                 out.write(command);
@@ -784,8 +831,8 @@ public class Utils {
                 out.flush();
 
                 // Wait for the commands to return a response
-                while (in.readLine() != null) {
-                    // Ignore
+                while ((line = in.readLine()) != null) {
+                    output.append(line).append('\n');
                 }
             } finally {
                 try {
@@ -799,7 +846,7 @@ public class Utils {
                 } catch (Exception ignore) {}
             }
 
-            return true;
+            return output.toString();
         }
 
         private static final long serialVersionUID = 1L;
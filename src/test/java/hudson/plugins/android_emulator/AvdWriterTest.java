@@ -0,0 +1,123 @@
+package hudson.plugins.android_emulator;
+
+import hudson.plugins.android_emulator.sdk.TemporarySdk;
+import junit.framework.TestCase;
+
+public class AvdWriterTest extends TestCase {
+
+    private static final String GOOGLE_APIS = "Google Inc.:Google APIs:23";
+
+    private TemporarySdk sdk;
+
+    @Override
+    protected void setUp() throws Exception {
+        sdk = new TemporarySdk();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sdk.delete();
+    }
+
+    public void testResolve_PlatformMissing() throws Exception {
+        sdk.write("system-images/android-23/default/x86/system.img");
+        assertNull(resolve("23", "x86"));
+
+        // Not a platform we can find the API level of
+        assertNull(resolve("Some platform", "x86"));
+    }
+
+    public void testResolve_OnlyImage() throws Exception {
+        sdk.write("platforms/android-23/android.jar");
+        sdk.write("system-images/android-23/default/x86/system.img");
+
+        assertEquals("android-23 x86", resolve("23", null).getImageDescription());
+        assertEquals("android-23 x86", resolve("23", "x86").getImageDescription());
+        assertEquals("android-23 x86", resolve("23", "default/x86").getImageDescription());
+    }
+
+    public void testResolve_ImageMissing() throws Exception {
+        sdk.write("platforms/android-23/android.jar");
+        sdk.write("system-images/android-23/default/x86/system.img");
+
+        assertNull(resolve("23", "armeabi-v7a"));
+        assertNull(resolve("23", "google_apis/x86"));
+    }
+
+    public void testResolve_Ambiguous() throws Exception {
+        sdk.write("platforms/android-23/android.jar");
+        sdk.write("system-images/android-23/default/x86/system.img");
+        sdk.write("system-images/android-23/default/armeabi-v7a/system.img");
+        sdk.write("system-images/android-23/google_apis/x86/system.img");
+
+        try {
+            resolve("23", null);
+            fail("Expected an EmulatorCreationException");
+        } catch (EmulatorCreationException expected) {
+        }
+
+        // Images with other tags are only used when asked for
+        assertEquals("android-23 x86", resolve("23", "x86").getImageDescription());
+        assertEquals("android-23 google_apis/x86", resolve("23", "google_apis/x86").getImageDescription());
+    }
+
+    public void testResolve_UntaggedAndPlatformImages() throws Exception {
+        sdk.write("platforms/android-15/android.jar");
+        sdk.write("platforms/android-15/images/system.img");
+        sdk.write("platforms/android-15/images/source.properties", "SystemImage.Abi=armeabi-v7a");
+        sdk.write("system-images/android-15/x86/system.img");
+
+        assertEquals("android-15 armeabi-v7a", resolve("15", "armeabi-v7a").getImageDescription());
+        assertEquals("android-15 x86", resolve("15", "x86").getImageDescription());
+        try {
+            resolve("15", null);
+            fail("Expected an EmulatorCreationException");
+        } catch (EmulatorCreationException expected) {
+        }
+    }
+
+    public void testResolve_AddOnWithTaggedImages() throws Exception {
+        sdk.write("platforms/android-23/android.jar");
+        sdk.write("add-ons/addon-google_apis-google-23/manifest.ini",
+                "vendor=Google Inc.", "name=Google APIs", "api=23");
+        sdk.write("system-images/android-23/default/x86/system.img");
+        sdk.write("system-images/android-23/google_apis/x86/system.img");
+
+        // Stock images don't belong to the add-on
+        assertEquals(GOOGLE_APIS + " google_apis/x86", resolve(GOOGLE_APIS, null).getImageDescription());
+        assertEquals(GOOGLE_APIS + " google_apis/x86", resolve(GOOGLE_APIS, "x86").getImageDescription());
+
+        sdk.write("system-images/android-23/google_apis/armeabi-v7a/system.img");
+        try {
+            resolve(GOOGLE_APIS, null);
+            fail("Expected an EmulatorCreationException");
+        } catch (EmulatorCreationException expected) {
+        }
+    }
+
+    public void testResolve_AddOnWithOwnImages() throws Exception {
+        sdk.write("platforms/android-23/android.jar");
+        sdk.write("add-ons/addon-google_apis-google-23/manifest.ini",
+                "vendor=Google Inc.", "name=Google APIs", "api=23");
+        sdk.write("add-ons/addon-google_apis-google-23/images/x86/system.img");
+        sdk.write("add-ons/addon-google_apis-google-23/images/x86/source.properties", "SystemImage.TagId=google_apis");
+        sdk.write("system-images/android-23/google_apis/armeabi-v7a/system.img");
+
+        // The add-on's own images take precedence
+        assertEquals(GOOGLE_APIS + " google_apis/x86", resolve(GOOGLE_APIS, null).getImageDescription());
+        assertNull(resolve(GOOGLE_APIS, "armeabi-v7a"));
+    }
+
+    public void testResolve_AddOnMissing() throws Exception {
+        sdk.write("platforms/android-23/android.jar");
+        sdk.write("add-ons/addon-other-23/manifest.ini", "vendor=Other", "name=Other APIs", "api=23");
+        sdk.write("system-images/android-23/google_apis/x86/system.img");
+
+        assertNull(resolve(GOOGLE_APIS, "x86"));
+    }
+
+    private AvdWriter resolve(String platform, String abi) throws Exception {
+        return AvdWriter.resolve(sdk.getRoot(), AndroidPlatform.valueOf(platform), abi);
+    }
+
+}
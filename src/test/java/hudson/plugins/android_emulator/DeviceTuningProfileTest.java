@@ -0,0 +1,43 @@
+package hudson.plugins.android_emulator;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("static-method")
+public class DeviceTuningProfileTest extends TestCase {
+
+    public void testTooOldToTune() {
+        assertEquals("", DeviceTuningProfile.getShellCommand(AndroidPlatform.valueOf("4.1")));
+    }
+
+    public void testSettingsOnly() {
+        final String command = DeviceTuningProfile.getShellCommand(AndroidPlatform.valueOf("4.2"));
+        assertTrue(command.contains("settings put global window_animation_scale 0 >/dev/null 2>&1"));
+        assertTrue(command.contains("svc power stayon true"));
+        assertFalse(command.contains("wm dismiss-keyguard"));
+        assertFalse(command.contains("locksettings"));
+    }
+
+    public void testDismissesKeyguard() {
+        final String command = DeviceTuningProfile.getShellCommand(AndroidPlatform.valueOf("6.0"));
+        assertTrue(command.contains("settings put global animator_duration_scale 0"));
+        assertTrue(command.contains("wm dismiss-keyguard"));
+        assertFalse(command.contains("locksettings"));
+    }
+
+    public void testDisablesLockScreen() {
+        final String command = DeviceTuningProfile.getShellCommand(AndroidPlatform.valueOf("android-26"));
+        assertTrue(command.contains("locksettings set-disabled true"));
+        assertTrue(command.contains("wm dismiss-keyguard"));
+    }
+
+    public void testUnknownPlatform() {
+        // Named emulators are assumed to be recent
+        final String command = DeviceTuningProfile.getShellCommand(null);
+        assertTrue(command.contains("locksettings set-disabled true"));
+
+        // Each command is run regardless of whether the one before it failed
+        assertFalse(command.contains("&&"));
+        assertEquals(command.split("; ").length, command.split(">/dev/null 2>&1").length);
+    }
+
+}
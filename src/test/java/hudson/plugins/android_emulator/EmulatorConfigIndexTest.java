@@ -0,0 +1,82 @@
+package hudson.plugins.android_emulator;
+
+import junit.framework.TestCase;
+
+public class EmulatorConfigIndexTest extends TestCase {
+
+    private final Object localBuild = new Object();
+    private final Object remoteBuild = new Object();
+    private final Object otherRemoteBuild = new Object();
+
+    @Override
+    protected void tearDown() throws Exception {
+        EmulatorConfigIndex.remove(localBuild);
+        EmulatorConfigIndex.remove(remoteBuild);
+        EmulatorConfigIndex.remove(otherRemoteBuild);
+    }
+
+    public void testLocalEmulator() {
+        EmulatorConfigIndex.add(localBuild, "hudson_en-US_160_WVGA_android-23", "builder", 0);
+        assertTrue(EmulatorConfigIndex.isRunning("builder", "hudson_en-US_160_WVGA_android-23"));
+        assertEquals(1, EmulatorConfigIndex.getEmulatorCount("builder"));
+
+        EmulatorConfigIndex.remove(localBuild);
+        assertFalse(EmulatorConfigIndex.isRunning("builder", "hudson_en-US_160_WVGA_android-23"));
+        assertEquals(0, EmulatorConfigIndex.getEmulatorCount("builder"));
+    }
+
+    public void testRemoteEmulator_RecordedOnHost() {
+        final String hash = "hudson_en-US_160_WVGA_android-23";
+        EmulatorConfigIndex.add(remoteBuild, hash, null, 0);
+        assertEquals(hash, EmulatorConfigIndex.getHash(remoteBuild));
+
+        // Until a host is assigned, the emulator isn't running anywhere
+        assertEquals(0, EmulatorConfigIndex.getEmulatorCount("builder"));
+        assertTrue(EmulatorConfigIndex.getRunningHashes("host").isEmpty());
+
+        EmulatorConfigIndex.assignEmulatorHost(remoteBuild, "host");
+        assertTrue(EmulatorConfigIndex.isRunning("host", hash));
+        assertTrue(EmulatorConfigIndex.getRunningHashes("host").contains(hash));
+        assertEquals(1, EmulatorConfigIndex.getEmulatorCount("host"));
+        assertFalse(EmulatorConfigIndex.isRunning("builder", hash));
+        assertEquals(0, EmulatorConfigIndex.getEmulatorCount("builder"));
+
+        // Assigning again doesn't count the emulator twice
+        EmulatorConfigIndex.assignEmulatorHost(remoteBuild, "host");
+        assertEquals(1, EmulatorConfigIndex.getEmulatorCount("host"));
+
+        EmulatorConfigIndex.remove(remoteBuild);
+        assertFalse(EmulatorConfigIndex.isRunning("host", hash));
+        assertEquals(0, EmulatorConfigIndex.getEmulatorCount("host"));
+    }
+
+    public void testBuildsOnDifferentNodesShareHost() {
+        final String hash = "hudson_en-US_160_WVGA_android-23";
+        final String otherHash = "hudson_en-US_240_WXGA_android-21";
+
+        // A build running its emulator locally on the host, and two builds elsewhere using it
+        EmulatorConfigIndex.add(localBuild, hash, "host", 0);
+        EmulatorConfigIndex.add(remoteBuild, hash, null, 0);
+        EmulatorConfigIndex.add(otherRemoteBuild, otherHash, null, 0);
+        EmulatorConfigIndex.assignEmulatorHost(remoteBuild, "host");
+        EmulatorConfigIndex.assignEmulatorHost(otherRemoteBuild, "host");
+        assertEquals(3, EmulatorConfigIndex.getEmulatorCount("host"));
+        assertEquals(2, EmulatorConfigIndex.getRunningHashes("host").size());
+
+        // The AVD stays in use on the host until both builds using it are done
+        EmulatorConfigIndex.remove(localBuild);
+        assertTrue(EmulatorConfigIndex.isRunning("host", hash));
+        EmulatorConfigIndex.remove(remoteBuild);
+        assertFalse(EmulatorConfigIndex.isRunning("host", hash));
+        assertTrue(EmulatorConfigIndex.isRunning("host", otherHash));
+        assertEquals(1, EmulatorConfigIndex.getEmulatorCount("host"));
+    }
+
+    public void testRemoveUnknownBuild() {
+        EmulatorConfigIndex.remove(new Object());
+        EmulatorConfigIndex.assignEmulatorHost(new Object(), "host");
+        assertNull(EmulatorConfigIndex.getHash(new Object()));
+        assertEquals(0, EmulatorConfigIndex.getEmulatorCount("host"));
+    }
+
+}
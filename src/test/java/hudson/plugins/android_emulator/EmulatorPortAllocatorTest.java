@@ -0,0 +1,108 @@
+package hudson.plugins.android_emulator;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.model.Computer;
+import hudson.plugins.android_emulator.EmulatorPortAllocator.Ports;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.mockito.Matchers;
+
+@SuppressWarnings("static-method")
+public class EmulatorPortAllocatorTest extends TestCase {
+
+    public void testValidateRange() {
+        assertNull(EmulatorPortAllocator.validateRange(EmulatorPortAllocator.DEFAULT_PORT_RANGE_START,
+                EmulatorPortAllocator.DEFAULT_MAX_EMULATORS));
+        assertNull(EmulatorPortAllocator.validateRange(1024, 1));
+
+        // The range must start at an even, unprivileged port
+        assertNotNull(EmulatorPortAllocator.validateRange(1022, 1));
+        assertNotNull(EmulatorPortAllocator.validateRange(5683, 1));
+
+        // Four ports per emulator, which must all fit below 65536
+        assertNull(EmulatorPortAllocator.validateRange(65520, 4));
+        assertNotNull(EmulatorPortAllocator.validateRange(65520, 5));
+        assertNotNull(EmulatorPortAllocator.validateRange(6000, 0));
+    }
+
+    public void testSlotPorts() throws Exception {
+        final EmulatorPortAllocator allocator = EmulatorPortAllocator.get(createComputer("slots"), 6000, 4);
+        assertEquals("6000-6015", allocator.getPortRange());
+        final VirtualChannel channel = createChannel(true);
+
+        // Console and adb ports come from the first half of the range, the others from the second
+        final Ports first = allocator.allocate(channel);
+        assertEquals(6000, first.getUserPort());
+        assertEquals(6001, first.getAdbPort());
+        assertEquals(6008, first.getAdbServerPort());
+        assertEquals(6009, first.getEmulatorCallbackPort());
+
+        final Ports second = allocator.allocate(channel);
+        assertEquals(6002, second.getUserPort());
+        assertEquals(6003, second.getAdbPort());
+        assertEquals(6010, second.getAdbServerPort());
+        assertEquals(6011, second.getEmulatorCallbackPort());
+        assertEquals(2, allocator.getInUse());
+
+        // Freed ports aren't handed out again straight away
+        first.release();
+        first.release();
+        assertEquals(1, allocator.getInUse());
+        assertEquals(6004, allocator.allocate(channel).getUserPort());
+        assertEquals(2, allocator.getPeakInUse());
+    }
+
+    public void testPortsInUseElsewhere() throws Exception {
+        final EmulatorPortAllocator allocator = EmulatorPortAllocator.get(createComputer("collisions"), 6000, 4);
+
+        // The first two slots are in use by some other process
+        final Ports ports = allocator.allocate(createChannel(false, false, true));
+        assertEquals(6004, ports.getUserPort());
+        assertEquals(6012, ports.getAdbServerPort());
+        assertEquals(2, ports.getCollisions());
+        assertEquals(2, allocator.getCollisionCount());
+        assertEquals(1, allocator.getInUse());
+    }
+
+    public void testExhausted() throws Exception {
+        final EmulatorPortAllocator allocator = EmulatorPortAllocator.get(createComputer("exhausted"), 6000, 2);
+        final VirtualChannel channel = createChannel(true);
+        allocator.allocate(channel);
+        final Ports last = allocator.allocate(channel);
+        try {
+            allocator.allocate(channel);
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+        }
+
+        last.release();
+        assertEquals(6002, allocator.allocate(channel).getUserPort());
+    }
+
+    public void testRangeChanged() {
+        final Computer computer = createComputer("changed");
+        final EmulatorPortAllocator allocator = EmulatorPortAllocator.get(computer, 6000, 4);
+        assertSame(allocator, EmulatorPortAllocator.get(computer, 6000, 4));
+        assertNotSame(allocator, EmulatorPortAllocator.get(computer, 7000, 4));
+    }
+
+    private static Computer createComputer(String name) {
+        final Computer computer = mock(Computer.class);
+        when(computer.getName()).thenReturn(name);
+        return computer;
+    }
+
+    /** Creates a channel whose port checks give the given results, repeating the last one. */
+    private static VirtualChannel createChannel(Boolean free, Boolean... subsequent) throws Exception {
+        final VirtualChannel channel = mock(VirtualChannel.class);
+        when(channel.call(Matchers.<Callable<Boolean, IOException>>any())).thenReturn(free, subsequent);
+        return channel;
+    }
+
+}
@@ -0,0 +1,26 @@
+package hudson.plugins.android_emulator;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("static-method")
+public class EmulatorRamDiskTest extends TestCase {
+
+    private static final long DEFAULT = 42;
+
+    public void testParseSize() {
+        assertEquals(200L * 1024 * 1024, EmulatorRamDisk.parseSize("200M", DEFAULT));
+        assertEquals(200L * 1024 * 1024, EmulatorRamDisk.parseSize(" 200 mb ", DEFAULT));
+        assertEquals(2L * 1024 * 1024 * 1024, EmulatorRamDisk.parseSize("2G", DEFAULT));
+        assertEquals(66L * 1024, EmulatorRamDisk.parseSize("66k", DEFAULT));
+        assertEquals(69206016, EmulatorRamDisk.parseSize("69206016", DEFAULT));
+    }
+
+    public void testParseSize_Invalid() {
+        assertEquals(DEFAULT, EmulatorRamDisk.parseSize(null, DEFAULT));
+        assertEquals(DEFAULT, EmulatorRamDisk.parseSize("", DEFAULT));
+        assertEquals(DEFAULT, EmulatorRamDisk.parseSize("M", DEFAULT));
+        assertEquals(DEFAULT, EmulatorRamDisk.parseSize("200T", DEFAULT));
+        assertEquals(DEFAULT, EmulatorRamDisk.parseSize("1.5G", DEFAULT));
+    }
+
+}
@@ -0,0 +1,34 @@
+package hudson.plugins.android_emulator;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("static-method")
+public class SdkPackageCacheTest extends TestCase {
+
+    public void testGetComponentPath() {
+        assertEquals("platforms/android-23", SdkPackageCache.getComponentPath("android-23"));
+        assertEquals("add-ons/addon-google_apis-google-23",
+                SdkPackageCache.getComponentPath("addon-google_apis-google-23"));
+        assertEquals("build-tools/23.0.2", SdkPackageCache.getComponentPath("build-tools-23.0.2"));
+
+        // As given by "android list sdk --extended"
+        assertEquals("build-tools/23.0.2", SdkPackageCache.getComponentPath("\"build-tools-23.0.2\""));
+    }
+
+    public void testGetComponentPath_SystemImages() {
+        assertEquals("system-images/android-23/default/x86",
+                SdkPackageCache.getComponentPath("sys-img-x86-android-23"));
+        assertEquals("system-images/android-23/google_apis/x86_64",
+                SdkPackageCache.getComponentPath("sys-img-x86_64-google_apis-23"));
+        assertEquals("system-images/android-21/android-tv/armeabi-v7a",
+                SdkPackageCache.getComponentPath("sys-img-armeabi-v7a-android-tv-21"));
+    }
+
+    public void testGetComponentPath_NotCached() {
+        assertNull(SdkPackageCache.getComponentPath("platform-tool"));
+        assertNull(SdkPackageCache.getComponentPath("tool"));
+        assertNull(SdkPackageCache.getComponentPath("extra-android-m2repository"));
+        assertNull(SdkPackageCache.getComponentPath("sysimg-14"));
+    }
+
+}
@@ -0,0 +1,150 @@
+package hudson.plugins.android_emulator.sdk;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class SdkInventoryTest extends TestCase {
+
+    private TemporarySdk sdk;
+
+    @Override
+    protected void setUp() throws Exception {
+        sdk = new TemporarySdk();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sdk.delete();
+    }
+
+    public void testPlatforms() throws Exception {
+        sdk.write("platforms/android-23/source.properties", "AndroidVersion.ApiLevel=23");
+        sdk.write("platforms/android-N/source.properties", "AndroidVersion.ApiLevel=23", "AndroidVersion.CodeName=N");
+        sdk.write("platforms/broken/source.properties", "Pkg.Desc=Nothing useful");
+
+        SdkInventory inventory = SdkInventory.get(sdk.getRoot());
+        assertTrue(inventory.hasTarget("android-23"));
+        assertTrue(inventory.hasTarget("android-N"));
+        assertEquals(2, inventory.getTargets().size());
+        for (SdkInventory.Target target : inventory.getTargets()) {
+            assertEquals(23, target.getApiLevel());
+            assertFalse(target.isAddOn());
+        }
+    }
+
+    public void testSystemImages_TaggedAndUntagged() throws Exception {
+        sdk.write("platforms/android-15/source.properties", "AndroidVersion.ApiLevel=15");
+        sdk.write("platforms/android-23/source.properties", "AndroidVersion.ApiLevel=23");
+
+        // Untagged, directly under the API level, with the level taken from the directory name
+        sdk.write("system-images/android-15/armeabi-v7a/system.img");
+
+        // Tagged, with the level taken from the image's properties
+        sdk.write("system-images/android-23/default/x86/system.img");
+        sdk.write("system-images/android-23/google_apis/x86/system.img");
+        sdk.write("system-images/android-23/google_apis/x86/source.properties", "AndroidVersion.ApiLevel=23");
+
+        // Not a system image, nor for an installed platform
+        sdk.write("system-images/android-23/default/mips/readme.txt");
+        sdk.write("system-images/android-24/default/x86/system.img");
+
+        SdkInventory inventory = SdkInventory.get(sdk.getRoot());
+        assertEquals(Arrays.asList("default/armeabi-v7a"), getAbis(inventory, "android-15"));
+        List<String> abis = getAbis(inventory, "android-23");
+        assertEquals(2, abis.size());
+        assertTrue(abis.contains("default/x86"));
+        assertTrue(abis.contains("google_apis/x86"));
+
+        assertTrue(inventory.hasAbi("android-15", "armeabi-v7a"));
+        assertTrue(inventory.hasAbi("android-23", "x86"));
+        assertTrue(inventory.hasAbi("android-23", "google_apis/x86"));
+        assertFalse(inventory.hasAbi("android-23", "android-tv/x86"));
+        assertFalse(inventory.hasAbi("android-23", "mips"));
+        assertFalse(inventory.hasAbi("android-24", "x86"));
+    }
+
+    public void testSystemImages_InsidePlatform() throws Exception {
+        sdk.write("platforms/android-10/source.properties", "AndroidVersion.ApiLevel=10");
+        sdk.write("platforms/android-10/images/system.img");
+        sdk.write("platforms/android-10/images/source.properties", "SystemImage.Abi=armeabi");
+
+        assertEquals(Arrays.asList("default/armeabi"), getAbis(SdkInventory.get(sdk.getRoot()), "android-10"));
+    }
+
+    public void testAddOns() throws Exception {
+        sdk.write("platforms/android-23/source.properties", "AndroidVersion.ApiLevel=23");
+        sdk.write("system-images/android-23/default/x86/system.img");
+        sdk.write("system-images/android-23/google_apis/x86/system.img");
+        sdk.write("system-images/android-23/google_apis/armeabi-v7a/system.img");
+
+        // Newer add-on, whose images are tagged with its ID in the system images directory
+        sdk.write("add-ons/addon-google_apis-google-23/manifest.ini",
+                "vendor=Google Inc.", "name=Google APIs", "api=23");
+        sdk.write("add-ons/addon-google_apis-google-23/source.properties", "Addon.NameId=google_apis");
+
+        // Older add-on, with its own images
+        sdk.write("add-ons/addon-vendor-19/manifest.ini", "vendor=Vendor", "name=Vendor APIs", "api=19");
+        sdk.write("add-ons/addon-vendor-19/images/x86/system.img");
+        sdk.write("add-ons/addon-vendor-19/images/x86/source.properties", "SystemImage.TagId=vendor");
+
+        // Missing its name, so not usable
+        sdk.write("add-ons/addon-broken-23/manifest.ini", "vendor=Broken", "api=23");
+
+        SdkInventory inventory = SdkInventory.get(sdk.getRoot());
+        assertEquals(3, inventory.getTargets().size());
+
+        final String googleApis = "Google Inc.:Google APIs:23";
+        assertTrue(inventory.hasTarget(googleApis));
+        List<String> abis = getAbis(inventory, googleApis);
+        assertEquals(2, abis.size());
+        assertTrue(abis.contains("google_apis/x86"));
+        assertTrue(abis.contains("google_apis/armeabi-v7a"));
+        assertFalse(inventory.hasAbi(googleApis, "default/x86"));
+
+        assertEquals(Arrays.asList("vendor/x86"), getAbis(inventory, "Vendor:Vendor APIs:19"));
+        for (SdkInventory.Target target : inventory.getTargets()) {
+            assertEquals(!target.getName().equals("android-23"), target.isAddOn());
+        }
+    }
+
+    public void testBuildTools() throws Exception {
+        sdk.write("build-tools/19.1.0/source.properties", "Pkg.Revision=19.1.0");
+        sdk.write("build-tools/23.0.10/source.properties", "Pkg.Revision=23.0.10");
+        sdk.write("build-tools/23.0.2/source.properties", "Pkg.Revision=23.0.2");
+        sdk.write("build-tools/empty/readme.txt");
+
+        assertEquals(Arrays.asList("23.0.10", "23.0.2", "19.1.0"), SdkInventory.get(sdk.getRoot()).getBuildTools());
+    }
+
+    public void testEmptySdk() {
+        SdkInventory inventory = SdkInventory.get(sdk.getRoot());
+        assertTrue(inventory.getTargets().isEmpty());
+        assertTrue(inventory.getBuildTools().isEmpty());
+    }
+
+    public void testRescansWhenPackageAdded() throws Exception {
+        sdk.write("platforms/android-22/source.properties", "AndroidVersion.ApiLevel=22");
+        SdkInventory first = SdkInventory.get(sdk.getRoot());
+        assertSame(first, SdkInventory.get(sdk.getRoot()));
+
+        sdk.write("platforms/android-23/source.properties", "AndroidVersion.ApiLevel=23");
+        new File(sdk.getRoot(), "platforms").setLastModified(System.currentTimeMillis() + 2000);
+        SdkInventory second = SdkInventory.get(sdk.getRoot());
+        assertNotSame(first, second);
+        assertTrue(second.hasTarget("android-23"));
+    }
+
+    private static List<String> getAbis(SdkInventory inventory, String targetName) {
+        for (SdkInventory.Target target : inventory.getTargets()) {
+            if (target.getName().equals(targetName)) {
+                return target.getAbis();
+            }
+        }
+        fail("Target not found: " + targetName);
+        return null;
+    }
+
+}
@@ -0,0 +1,35 @@
+package hudson.plugins.android_emulator.sdk;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** An empty SDK directory, into which tests write just the package files they need. */
+public class TemporarySdk {
+
+    private final File root;
+
+    public TemporarySdk() throws IOException {
+        root = File.createTempFile("sdk", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /** Writes a text file at the given path within the SDK, creating its parent directories. */
+    public void write(String path, String... lines) throws IOException {
+        final File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        FileUtils.writeLines(file, Arrays.asList(lines));
+    }
+
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+}
@@ -0,0 +1,56 @@
+package hudson.plugins.android_emulator.snapshot;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@SuppressWarnings("static-method")
+public class AbstractSnapshotBuilderTest extends TestCase {
+
+    private static final String APP_HASH = "5d41402abc4b2a76b9719d911017c592";
+    private static final String TEST_HASH = "7d793037a0760186574b0282f2f435e7";
+
+    public void testContentSnapshotName() {
+        final Map<String, String> apks = new HashMap<String, String>();
+        apks.put("app/build/app.apk", APP_HASH);
+        apks.put("app/build/app-test.apk", TEST_HASH);
+
+        final String name = AbstractSnapshotBuilder.getContentSnapshotName("jenkins-apps", apks, "");
+        assertTrue(name.matches("jenkins-apps-[0-9a-f]{16}"));
+        assertEquals(name, AbstractSnapshotBuilder.getContentSnapshotName("jenkins-apps", apks, ""));
+    }
+
+    public void testContentSnapshotName_IndependentOfPaths() {
+        final Map<String, String> apks = new HashMap<String, String>();
+        apks.put("app/build/app.apk", APP_HASH);
+        apks.put("app/build/app-test.apk", TEST_HASH);
+
+        final Map<String, String> moved = new HashMap<String, String>();
+        moved.put("out/z.apk", APP_HASH);
+        moved.put("out/a.apk", TEST_HASH);
+
+        assertEquals(AbstractSnapshotBuilder.getContentSnapshotName("jenkins-apps", apks, "fixtures"),
+                AbstractSnapshotBuilder.getContentSnapshotName("jenkins-apps", moved, "fixtures"));
+    }
+
+    public void testContentSnapshotName_ChangesWithContent() {
+        final Map<String, String> apks = new HashMap<String, String>();
+        apks.put("app.apk", APP_HASH);
+        final String name = AbstractSnapshotBuilder.getContentSnapshotName("prefix", apks, "");
+        assertTrue(name.startsWith("prefix-"));
+
+        // Different fixtures
+        assertFalse(name.equals(AbstractSnapshotBuilder.getContentSnapshotName("prefix", apks, "users")));
+
+        // Different APK
+        apks.put("app.apk", TEST_HASH);
+        assertFalse(name.equals(AbstractSnapshotBuilder.getContentSnapshotName("prefix", apks, "")));
+
+        // Additional APK
+        apks.put("app.apk", APP_HASH);
+        apks.put("app-test.apk", TEST_HASH);
+        assertFalse(name.equals(AbstractSnapshotBuilder.getContentSnapshotName("prefix", apks, "")));
+    }
+
+}
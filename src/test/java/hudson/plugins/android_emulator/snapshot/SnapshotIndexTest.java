@@ -0,0 +1,73 @@
+package hudson.plugins.android_emulator.snapshot;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SnapshotIndexTest extends TestCase {
+
+    private File avdDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        avdDirectory = File.createTempFile("avd", "");
+        avdDirectory.delete();
+        avdDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(avdDirectory);
+    }
+
+    public void testTouch_WithinLimit() throws Exception {
+        assertTrue(SnapshotIndex.touch(avdDirectory, "jenkins-apps-1", 2).isEmpty());
+        assertTrue(SnapshotIndex.touch(avdDirectory, "jenkins-apps-2", 2).isEmpty());
+
+        // Touching an existing snapshot doesn't add another
+        assertTrue(SnapshotIndex.touch(avdDirectory, "jenkins-apps-1", 2).isEmpty());
+    }
+
+    public void testTouch_EvictsLeastRecentlyUsed() throws Exception {
+        writeIndex("jenkins-apps-old=1000", "jenkins-apps-older=500", "jenkins-apps-recent=2000");
+
+        assertEquals(Arrays.asList("jenkins-apps-older", "jenkins-apps-old"),
+                SnapshotIndex.touch(avdDirectory, "jenkins-apps-new", 2));
+
+        // The evicted snapshots are no longer in the index
+        assertEquals(Collections.singletonList("jenkins-apps-recent"),
+                SnapshotIndex.touch(avdDirectory, "jenkins-apps-newest", 2));
+    }
+
+    public void testTouch_RefreshesUsedSnapshot() throws Exception {
+        writeIndex("jenkins-apps-a=1000", "jenkins-apps-b=2000");
+
+        // Loading the oldest snapshot makes it the most recently used one
+        assertTrue(SnapshotIndex.touch(avdDirectory, "jenkins-apps-a", 2).isEmpty());
+        assertEquals(Collections.singletonList("jenkins-apps-b"),
+                SnapshotIndex.touch(avdDirectory, "jenkins-apps-c", 2));
+    }
+
+    public void testTouch_NoLimit() throws Exception {
+        writeIndex("jenkins-apps-a=1000", "jenkins-apps-b=2000", "jenkins-apps-c=3000");
+        List<String> evicted = SnapshotIndex.touch(avdDirectory, "jenkins-apps-d", 0);
+        assertTrue(evicted.isEmpty());
+    }
+
+    public void testTouch_UnreadableTimestamp() throws Exception {
+        // Treated as never used, so evicted first
+        writeIndex("jenkins-apps-a=1000", "jenkins-apps-broken=yesterday");
+        assertEquals(Collections.singletonList("jenkins-apps-broken"),
+                SnapshotIndex.touch(avdDirectory, "jenkins-apps-b", 2));
+    }
+
+    private void writeIndex(String... lines) throws Exception {
+        FileUtils.writeLines(new File(avdDirectory, "jenkins-snapshots.properties"), Arrays.asList(lines));
+    }
+
+}
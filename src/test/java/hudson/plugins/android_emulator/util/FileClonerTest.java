@@ -0,0 +1,45 @@
+package hudson.plugins.android_emulator.util;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+@SuppressWarnings("static-method")
+public class FileClonerTest extends TestCase {
+
+    public void testCopySparse() throws Exception {
+        final File source = File.createTempFile("source", ".img");
+        final File target = File.createTempFile("target", ".img");
+        source.deleteOnExit();
+        target.deleteOnExit();
+
+        // One block of data at the start, one in the middle, and an empty tail
+        RandomAccessFile file = new RandomAccessFile(source, "rw");
+        file.setLength(1024 * 1024);
+        file.write(new byte[] { 1, 2, 3 });
+        file.seek(512 * 1024 + 10);
+        file.write(new byte[] { 4 });
+        file.close();
+
+        assertEquals(2 * 4096, FileCloner.copySparse(source, target));
+        assertEquals(source.length(), target.length());
+        assertTrue(Arrays.equals(FileUtils.readFileToByteArray(source), FileUtils.readFileToByteArray(target)));
+    }
+
+    public void testCopySparse_OverwritesLongerFile() throws Exception {
+        final File source = File.createTempFile("source", ".img");
+        final File target = File.createTempFile("target", ".img");
+        source.deleteOnExit();
+        target.deleteOnExit();
+        FileUtils.writeByteArrayToFile(source, new byte[] { 0, 0, 5 });
+        FileUtils.writeByteArrayToFile(target, new byte[8192]);
+
+        assertEquals(3, FileCloner.copySparse(source, target));
+        assertTrue(Arrays.equals(new byte[] { 0, 0, 5 }, FileUtils.readFileToByteArray(target)));
+    }
+
+}
@@ -0,0 +1,62 @@
+package hudson.plugins.android_emulator.util;
+
+import hudson.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+@SuppressWarnings("static-method")
+public class IniFileTest extends TestCase {
+
+    public void testPreservesOrderAndComments() throws IOException {
+        File file = createFile("# comment\r\nb=2\r\n\r\na=1\r\n");
+        IniFile ini = IniFile.load(file);
+        ini.set("a", "3");
+        ini.set("c", "4");
+        assertTrue(ini.save());
+        assertEquals("# comment\r\nb=2\r\n\r\na=3\r\nc=4\r\n", read(file));
+    }
+
+    public void testUnchangedFileIsNotWritten() throws IOException {
+        File file = createFile("a=1\nb=2\n");
+        file.setLastModified(1000);
+        IniFile ini = IniFile.load(file);
+        assertFalse(ini.set("a", "1"));
+        assertFalse(ini.save());
+        assertEquals(1000, file.lastModified());
+    }
+
+    public void testKeepsLineEndingsAndBackslashes() throws IOException {
+        File file = createFile("path=C:\\Users\\foo\n");
+        IniFile ini = IniFile.load(file);
+        assertEquals("C:\\Users\\foo", ini.get("path"));
+        ini.set("b", "2");
+        ini.save();
+        assertEquals("path=C:\\Users\\foo\nb=2\n", read(file));
+    }
+
+    public void testMissingFileIsCreated() throws IOException {
+        File file = createFile("");
+        file.delete();
+        IniFile ini = IniFile.load(file);
+        ini.set("a", "1");
+        ini.save();
+        assertEquals("a=1\r\n", read(file));
+    }
+
+    private static File createFile(String content) throws IOException {
+        File file = File.createTempFile("config", ".ini");
+        file.deleteOnExit();
+        PrintWriter out = new PrintWriter(file);
+        out.print(content);
+        out.close();
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        return Util.loadFile(file, "UTF-8");
+    }
+
+}
@@ -0,0 +1,92 @@
+package hudson.plugins.android_emulator.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+@SuppressWarnings("static-method")
+public class SdCardImageTest extends TestCase {
+
+    public void testParseSize() {
+        assertEquals(512L * 1024 * 1024, SdCardImage.parseSize("512M"));
+        assertEquals(512L * 1024 * 1024, SdCardImage.parseSize(" 512mb "));
+        assertEquals(2L * 1024 * 1024 * 1024, SdCardImage.parseSize("2G"));
+        assertEquals(9216L * 1024, SdCardImage.parseSize("9216K"));
+        assertEquals(10000000, SdCardImage.parseSize("10000000"));
+    }
+
+    public void testParseSize_Invalid() {
+        assertEquals(-1, SdCardImage.parseSize(null));
+        assertEquals(-1, SdCardImage.parseSize(""));
+        assertEquals(-1, SdCardImage.parseSize("M"));
+        assertEquals(-1, SdCardImage.parseSize("512T"));
+        assertEquals(-1, SdCardImage.parseSize("1.5G"));
+        assertEquals(-1, SdCardImage.parseSize("99999999999999999999"));
+    }
+
+    public void testCreate() throws Exception {
+        final File file = File.createTempFile("sdcard", ".img");
+        file.deleteOnExit();
+        SdCardImage.create(file, 16 * 1024 * 1024);
+        assertEquals(16 * 1024 * 1024, file.length());
+
+        // 32768 sectors of one cluster each; 254 sectors per FAT leaves 32228 clusters
+        final ByteBuffer boot = readSector(file, 0);
+        assertEquals(512, boot.getShort(11));
+        assertEquals(1, boot.get(13));
+        assertEquals(32, boot.getShort(14));
+        assertEquals(2, boot.get(16));
+        assertEquals((byte) 0xF8, boot.get(21));
+        assertEquals(32768, boot.getInt(32));
+        assertEquals(254, boot.getInt(36));
+        assertEquals(2, boot.getInt(44));
+        assertEquals(1, boot.getShort(48));
+        assertEquals(6, boot.getShort(50));
+        assertEquals("FAT32   ", new String(boot.array(), 82, 8, "US-ASCII"));
+        assertEquals((short) 0xAA55, boot.getShort(510));
+        assertEquals(boot, readSector(file, 6));
+
+        final ByteBuffer fsInfo = readSector(file, 1);
+        assertEquals(0x41615252, fsInfo.getInt(0));
+        assertEquals(0x61417272, fsInfo.getInt(484));
+        assertEquals(32227, fsInfo.getInt(488));
+        assertEquals(3, fsInfo.getInt(492));
+        assertEquals(fsInfo, readSector(file, 7));
+
+        // Both FATs start with the reserved entries and the root directory's end of chain
+        for (long fatStart : new long[] { 32, 32 + 254 }) {
+            final ByteBuffer fat = readSector(file, fatStart);
+            assertEquals(0x0FFFFFF8, fat.getInt(0));
+            assertEquals(0x0FFFFFFF, fat.getInt(4));
+            assertEquals(0x0FFFFFFF, fat.getInt(8));
+            assertEquals(0, fat.getInt(12));
+        }
+    }
+
+    public void testCreate_TooSmall() throws Exception {
+        final File file = File.createTempFile("sdcard", ".img");
+        file.deleteOnExit();
+        try {
+            SdCardImage.create(file, SdCardImage.MIN_SIZE_BYTES - 1);
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static ByteBuffer readSector(File file, long sector) throws IOException {
+        final byte[] data = new byte[512];
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(sector * 512);
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
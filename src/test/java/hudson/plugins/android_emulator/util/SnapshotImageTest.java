@@ -0,0 +1,136 @@
+package hudson.plugins.android_emulator.util;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+@SuppressWarnings("static-method")
+public class SnapshotImageTest extends TestCase {
+
+    /** Where the fixtures put their snapshot table. */
+    private static final int TABLE_OFFSET = 512;
+
+    public void testRead_Version2() throws Exception {
+        ByteBuffer image = createImage(2, 2);
+        image.position(TABLE_OFFSET);
+        putSnapshot(image, "1", "jenkins", 1234567, new byte[0]);
+        putSnapshot(image, "2", "default-boot", 0, new byte[0]);
+
+        List<SnapshotImage.Snapshot> snapshots = SnapshotImage.read(write(image));
+        assertEquals(2, snapshots.size());
+        assertEquals("1", snapshots.get(0).getId());
+        assertEquals("jenkins", snapshots.get(0).getName());
+        assertEquals(1234567, snapshots.get(0).getVmStateSize());
+        assertEquals(1400000000500L, snapshots.get(0).getTimestamp());
+        assertEquals(90000000000L, snapshots.get(0).getVmClockNanos());
+        assertEquals("2", snapshots.get(1).getId());
+        assertEquals("default-boot", snapshots.get(1).getName());
+        assertEquals(0, snapshots.get(1).getVmStateSize());
+    }
+
+    public void testRead_Version3() throws Exception {
+        // Extra data holds the 64-bit VM state size, which overrides the 32-bit one, then the disk size
+        ByteBuffer extra = ByteBuffer.allocate(16);
+        extra.putLong(5L * 1024 * 1024 * 1024);
+        extra.putLong(512L * 1024 * 1024);
+
+        ByteBuffer image = createImage(3, 2);
+        image.position(TABLE_OFFSET);
+        putSnapshot(image, "1", "jenkins", 0, extra.array());
+        putSnapshot(image, "2", "other", 42, new byte[8]);
+
+        List<SnapshotImage.Snapshot> snapshots = SnapshotImage.read(write(image));
+        assertEquals(2, snapshots.size());
+        assertEquals("jenkins", snapshots.get(0).getName());
+        assertEquals(5L * 1024 * 1024 * 1024, snapshots.get(0).getVmStateSize());
+        assertEquals("other", snapshots.get(1).getName());
+        assertEquals(42, snapshots.get(1).getVmStateSize());
+    }
+
+    public void testRead_NoSnapshots() throws Exception {
+        List<SnapshotImage.Snapshot> snapshots = SnapshotImage.read(write(createImage(3, 0)));
+        assertNotNull(snapshots);
+        assertTrue(snapshots.isEmpty());
+    }
+
+    public void testRead_NotQcow() throws Exception {
+        ByteBuffer image = createImage(2, 0);
+        image.putInt(0, 0x12345678);
+        assertNull(SnapshotImage.read(write(image)));
+
+        image = createImage(4, 0);
+        assertNull(SnapshotImage.read(write(image)));
+    }
+
+    public void testRead_TruncatedTable() throws Exception {
+        ByteBuffer image = createImage(2, 2);
+        image.position(TABLE_OFFSET);
+        putSnapshot(image, "1", "jenkins", 0, new byte[0]);
+
+        // Only one of the two entries is there
+        ByteBuffer truncated = ByteBuffer.allocate(image.position());
+        truncated.put(image.array(), 0, image.position());
+        assertNull(SnapshotImage.read(write(truncated)));
+    }
+
+    /** Creates an image with a header for the given version, with room for a snapshot table. */
+    private static ByteBuffer createImage(int version, int snapshotCount) {
+        ByteBuffer image = ByteBuffer.allocate(4096);
+        image.putInt(0x514649FB);
+        image.putInt(version);
+        image.putLong(0); // Backing file offset
+        image.putInt(0); // Backing file size
+        image.putInt(16); // Cluster bits
+        image.putLong(512L * 1024 * 1024); // Virtual disk size
+        image.putInt(0); // Encryption method
+        image.putInt(0); // L1 size
+        image.putLong(0); // L1 table offset
+        image.putLong(0); // Refcount table offset
+        image.putInt(0); // Refcount table clusters
+        image.putInt(snapshotCount);
+        image.putLong(snapshotCount == 0 ? 0 : TABLE_OFFSET);
+        if (version >= 3) {
+            image.putLong(0); // Incompatible features
+            image.putLong(0); // Compatible features
+            image.putLong(0); // Autoclear features
+            image.putInt(4); // Refcount order
+            image.putInt(104); // Header length
+        }
+        return image;
+    }
+
+    /** Appends a snapshot table entry at the buffer's position, padded to a multiple of eight bytes. */
+    private static void putSnapshot(ByteBuffer image, String id, String name, int vmStateSize, byte[] extra)
+            throws Exception {
+        final byte[] idBytes = id.getBytes("UTF-8");
+        final byte[] nameBytes = name.getBytes("UTF-8");
+        final int start = image.position();
+        image.putLong(0); // L1 table offset
+        image.putInt(0); // L1 size
+        image.putShort((short) idBytes.length);
+        image.putShort((short) nameBytes.length);
+        image.putInt(1400000000); // Date, seconds
+        image.putInt(500000000); // Date, nanoseconds
+        image.putLong(90000000000L); // VM clock
+        image.putInt(vmStateSize);
+        image.putInt(extra.length);
+        image.put(extra);
+        image.put(idBytes);
+        image.put(nameBytes);
+        while ((image.position() - start) % 8 != 0) {
+            image.put((byte) 0);
+        }
+    }
+
+    private static File write(ByteBuffer image) throws Exception {
+        final File file = File.createTempFile("snapshots", ".img");
+        file.deleteOnExit();
+        FileUtils.writeByteArrayToFile(file, image.array());
+        return file;
+    }
+
+}
@@ -75,6 +75,20 @@ public class UtilsTest extends TestCase {
         assertEquals(-1, Utils.getApiLevelFromPlatform("Android 4.2"));
     }
 
+    public void testEmulatorCommandAccepted() {
+        final String banner = "Android Console: type 'help' for a list of commands\r\nOK\r\n";
+        assertTrue(Utils.isEmulatorCommandAccepted(banner + "OK\r\n"));
+        assertFalse(Utils.isEmulatorCommandAccepted(banner + "KO: snapshot save failed\r\n"));
+        assertFalse(Utils.isEmulatorCommandAccepted(banner));
+        assertFalse(Utils.isEmulatorCommandAccepted(null));
+    }
+
+    public void testEmulatorCommandAccepted_OnlyReplyLinesCount() {
+        final String banner = "Android Console: type 'help' for a list of commands\nOK\n";
+        assertTrue(Utils.isEmulatorCommandAccepted(banner + "ID  TAG  KOALA-snapshot\nOK\n"));
+        assertFalse(Utils.isEmulatorCommandAccepted(banner + "loading OK-looking state\nKO: bad\n"));
+    }
+
 	public void testReadProperties() throws Exception {
         final File temp = File.createTempFile("temp", ".txt");
         temp.deleteOnExit();